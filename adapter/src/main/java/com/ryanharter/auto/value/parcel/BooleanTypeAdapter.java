@@ -0,0 +1,46 @@
+package com.ryanharter.auto.value.parcel;
+
+import android.os.Parcel;
+
+/**
+ * A {@link TypeAdapter} for boolean properties, which generated code calls through {@link #readBoolean}
+ * and {@link #writeBoolean}, so the values are never boxed.
+ *
+ * <pre>
+ * <code>
+ * public class InvertedTypeAdapter implements BooleanTypeAdapter {
+ *   public boolean readBoolean(Parcel in) {
+ *     return in.readInt() == 0;
+ *   }
+ *
+ *   public void writeBoolean(boolean value, Parcel dest) {
+ *     dest.writeInt(value ? 0 : 1);
+ *   }
+ * }
+ * </code>
+ * </pre>
+ */
+public interface BooleanTypeAdapter extends TypeAdapter<Boolean> {
+
+  /**
+   * Reads a value from {@code in}.
+   * @param in The {@link Parcel} which contains the value.
+   * @return The value read from {@code in}.
+   */
+  boolean readBoolean(Parcel in);
+
+  /**
+   * Writes {@code value} into {@code dest}.
+   * @param value The value to be written.
+   * @param dest The {@link Parcel} in which to write {@code value}.
+   */
+  void writeBoolean(boolean value, Parcel dest);
+
+  @Override default Boolean fromParcel(Parcel in) {
+    return readBoolean(in);
+  }
+
+  @Override default void toParcel(Boolean value, Parcel dest) {
+    writeBoolean(value, dest);
+  }
+}
@@ -0,0 +1,46 @@
+package com.ryanharter.auto.value.parcel;
+
+import android.os.Parcel;
+
+/**
+ * A {@link TypeAdapter} for double properties, which generated code calls through {@link #readDouble}
+ * and {@link #writeDouble}, so the values are never boxed.
+ *
+ * <pre>
+ * <code>
+ * public class CoordinateTypeAdapter implements DoubleTypeAdapter {
+ *   public double readDouble(Parcel in) {
+ *     return in.readInt() / 1e7;
+ *   }
+ *
+ *   public void writeDouble(double value, Parcel dest) {
+ *     dest.writeInt((int) Math.round(value * 1e7));
+ *   }
+ * }
+ * </code>
+ * </pre>
+ */
+public interface DoubleTypeAdapter extends TypeAdapter<Double> {
+
+  /**
+   * Reads a value from {@code in}.
+   * @param in The {@link Parcel} which contains the value.
+   * @return The value read from {@code in}.
+   */
+  double readDouble(Parcel in);
+
+  /**
+   * Writes {@code value} into {@code dest}.
+   * @param value The value to be written.
+   * @param dest The {@link Parcel} in which to write {@code value}.
+   */
+  void writeDouble(double value, Parcel dest);
+
+  @Override default Double fromParcel(Parcel in) {
+    return readDouble(in);
+  }
+
+  @Override default void toParcel(Double value, Parcel dest) {
+    writeDouble(value, dest);
+  }
+}
@@ -0,0 +1,46 @@
+package com.ryanharter.auto.value.parcel;
+
+import android.os.Parcel;
+
+/**
+ * A {@link TypeAdapter} for int properties, which generated code calls through {@link #readInt}
+ * and {@link #writeInt}, so the values are never boxed.
+ *
+ * <pre>
+ * <code>
+ * public class PercentTypeAdapter implements IntTypeAdapter {
+ *   public int readInt(Parcel in) {
+ *     return in.readByte();
+ *   }
+ *
+ *   public void writeInt(int value, Parcel dest) {
+ *     dest.writeByte((byte) value);
+ *   }
+ * }
+ * </code>
+ * </pre>
+ */
+public interface IntTypeAdapter extends TypeAdapter<Integer> {
+
+  /**
+   * Reads a value from {@code in}.
+   * @param in The {@link Parcel} which contains the value.
+   * @return The value read from {@code in}.
+   */
+  int readInt(Parcel in);
+
+  /**
+   * Writes {@code value} into {@code dest}.
+   * @param value The value to be written.
+   * @param dest The {@link Parcel} in which to write {@code value}.
+   */
+  void writeInt(int value, Parcel dest);
+
+  @Override default Integer fromParcel(Parcel in) {
+    return readInt(in);
+  }
+
+  @Override default void toParcel(Integer value, Parcel dest) {
+    writeInt(value, dest);
+  }
+}
@@ -0,0 +1,46 @@
+package com.ryanharter.auto.value.parcel;
+
+import android.os.Parcel;
+
+/**
+ * A {@link TypeAdapter} for long properties, which generated code calls through {@link #readLong}
+ * and {@link #writeLong}, so the values are never boxed.
+ *
+ * <pre>
+ * <code>
+ * public class SecondsTypeAdapter implements LongTypeAdapter {
+ *   public long readLong(Parcel in) {
+ *     return in.readInt() * 1000L;
+ *   }
+ *
+ *   public void writeLong(long value, Parcel dest) {
+ *     dest.writeInt((int) (value / 1000));
+ *   }
+ * }
+ * </code>
+ * </pre>
+ */
+public interface LongTypeAdapter extends TypeAdapter<Long> {
+
+  /**
+   * Reads a value from {@code in}.
+   * @param in The {@link Parcel} which contains the value.
+   * @return The value read from {@code in}.
+   */
+  long readLong(Parcel in);
+
+  /**
+   * Writes {@code value} into {@code dest}.
+   * @param value The value to be written.
+   * @param dest The {@link Parcel} in which to write {@code value}.
+   */
+  void writeLong(long value, Parcel dest);
+
+  @Override default Long fromParcel(Parcel in) {
+    return readLong(in);
+  }
+
+  @Override default void toParcel(Long value, Parcel dest) {
+    writeLong(value, dest);
+  }
+}
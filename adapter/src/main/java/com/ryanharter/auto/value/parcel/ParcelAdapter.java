@@ -5,6 +5,7 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.Target;
 
 import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE_USE;
 import static java.lang.annotation.RetentionPolicy.SOURCE;
 
 /**
@@ -23,8 +24,21 @@ import static java.lang.annotation.RetentionPolicy.SOURCE;
  * The generated code will instantiate and use the {@code DateTypeAdapter} class to parcel and
  * unparcel the {@code date()} property. In order for the generated code to instantiate the
  * {@link TypeAdapter}, it needs a public, no-arg constructor.
+ *
+ * <p>The annotation can also be put on the element type of a {@code List}, or the value type of a
+ * {@code Map} with String keys, to adapt each of the elements instead of the whole property.  This
+ * needs JDK 9 or later, since javac 8 doesn't show annotations on type arguments to processors.
+ *
+ * <pre>
+ * <code>
+ * {@literal @}AutoValue public abstract class Foo extends Parcelable {
+ *   public abstract List&lt;{@literal @}ParcelAdapter(DateTypeAdapter.class) Date&gt; dates();
+ *   public abstract Map&lt;String, {@literal @}ParcelAdapter(DateTypeAdapter.class) Date&gt; deadlines();
+ * }
+ * </code>
+ * </pre>
  */
-@Target(METHOD)
+@Target({METHOD, TYPE_USE})
 @Retention(SOURCE)
 @Documented
 public @interface ParcelAdapter {
@@ -0,0 +1,84 @@
+package com.ryanharter.auto.value.parcel;
+
+import android.os.Parcel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds the single instance of each {@link TypeAdapter} class that generated code shares.
+ *
+ * <p>Generated classes used to create their own instance of every adapter they use, so a module
+ * with hundreds of classes using the same adapter had hundreds of identical instances.  Now they
+ * call {@link #get} from a nested holder class, the first time they use an adapter, which only
+ * calls the generated {@link Factory} if no other class has created that adapter yet.  Adapters
+ * that declare a public static {@code INSTANCE} field, and enum adapters with a single constant,
+ * are referenced directly by the generated code and never created here.
+ *
+ * <p>It also holds the methods generated code uses to parcel maps whose values are adapted.
+ */
+public final class ParcelAdapters {
+
+  private static final ConcurrentMap<Class<?>, Object> ADAPTERS = new ConcurrentHashMap<>();
+
+  private ParcelAdapters() {
+  }
+
+  /**
+   * Creates an adapter, generated as a reference to its no-arg constructor.
+   */
+  public interface Factory<T> {
+    T create();
+  }
+
+  /**
+   * Returns the shared instance of {@code type}, creating it with {@code factory} the first time
+   * it's requested.
+   */
+  public static <T> T get(Class<T> type, Factory<T> factory) {
+    Object adapter = ADAPTERS.get(type);
+    if (adapter == null) {
+      T created = factory.create();
+      adapter = ADAPTERS.putIfAbsent(type, created);
+      if (adapter == null) {
+        return created;
+      }
+    }
+    return type.cast(adapter);
+  }
+
+  /**
+   * Writes the size and keys of {@code map} into {@code dest}, followed by its values, which are
+   * written with {@code adapter}'s {@link TypeAdapter#toParcelAll}.
+   */
+  public static <V> void writeMap(Map<String, V> map, TypeAdapter<V> adapter, Parcel dest) {
+    List<V> values = new ArrayList<>(map.size());
+    dest.writeInt(map.size());
+    for (Map.Entry<String, V> entry : map.entrySet()) {
+      dest.writeString(entry.getKey());
+      values.add(entry.getValue());
+    }
+    adapter.toParcelAll(values, dest);
+  }
+
+  /**
+   * Reads a map that was written with {@link #writeMap} from {@code in}.
+   */
+  public static <V> Map<String, V> readMap(Parcel in, TypeAdapter<V> adapter) {
+    int size = in.readInt();
+    String[] keys = new String[size];
+    for (int i = 0; i < size; i++) {
+      keys[i] = in.readString();
+    }
+    List<V> values = adapter.fromParcelAll(in, size);
+    // Large enough that the map doesn't resize at the default load factor.
+    Map<String, V> map = new HashMap<>((int) (size / 0.75f) + 1);
+    for (int i = 0; i < size; i++) {
+      map.put(keys[i], values.get(i));
+    }
+    return map;
+  }
+}
@@ -0,0 +1,37 @@
+package com.ryanharter.auto.value.parcel;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+/**
+ * An annotation that indicates that a {@code byte[]} property should be parcelled through shared
+ * memory when it's larger than {@link #threshold()}, instead of being copied into the Parcel.
+ *
+ * <pre>
+ * <code>
+ * {@literal @}AutoValue public abstract class Foo implements Parcelable {
+ *   {@literal @}ParcelBlob public abstract byte[] thumbnail();
+ * }
+ * </code>
+ * </pre>
+ *
+ * Large arrays are copied into an {@code android.os.SharedMemory} region, and only its file
+ * descriptor is written to the Parcel, which keeps them out of the binder transaction buffer.
+ * Smaller arrays, and all arrays on devices before API 27, are written inline.  Parcels that
+ * can't contain file descriptors, like those of an {@code Intent}, will throw for arrays above the
+ * threshold.
+ */
+@Target(METHOD)
+@Retention(SOURCE)
+@Documented
+public @interface ParcelBlob {
+  /**
+   * The size in bytes above which the array is written to shared memory.  Defaults to the limit
+   * the platform uses for its own blobs.
+   */
+  int threshold() default 16 * 1024;
+}
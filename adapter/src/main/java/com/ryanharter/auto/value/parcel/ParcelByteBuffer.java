@@ -0,0 +1,34 @@
+package com.ryanharter.auto.value.parcel;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+/**
+ * An annotation that indicates that an AutoValue class's primitive properties should be
+ * parcelled together in a single byte array, instead of with one {@code Parcel} call each.
+ *
+ * <pre>
+ * <code>
+ * {@literal @}ParcelByteBuffer
+ * {@literal @}AutoValue public abstract class Point implements Parcelable {
+ *   public abstract double x();
+ *   public abstract double y();
+ *   public abstract long timestamp();
+ * }
+ * </code>
+ * </pre>
+ *
+ * The packed boolean and small primitive properties and the non-null int, long, float and double
+ * properties are put into a {@link java.nio.ByteBuffer} that's written with a single
+ * {@code writeByteArray} call.  Nullable and variable size properties are written after it as
+ * usual.
+ */
+@Target(TYPE)
+@Retention(SOURCE)
+@Documented
+public @interface ParcelByteBuffer {
+}
@@ -0,0 +1,31 @@
+package com.ryanharter.auto.value.parcel;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+/**
+ * An annotation that indicates that the nullability of an AutoValue class's properties should
+ * be parcelled as a single bitmap, instead of an int before each nullable property.
+ *
+ * <pre>
+ * <code>
+ * {@literal @}ParcelNullBitmap
+ * {@literal @}AutoValue public abstract class Foo implements Parcelable {
+ *   {@literal @}Nullable public abstract String name();
+ *   {@literal @}Nullable public abstract Long timestamp();
+ * }
+ * </code>
+ * </pre>
+ *
+ * The presence bits are written at the start of the Parcel, alongside the packed boolean and
+ * small primitive properties, and only the non-null values are written after them.
+ */
+@Target(TYPE)
+@Retention(SOURCE)
+@Documented
+public @interface ParcelNullBitmap {
+}
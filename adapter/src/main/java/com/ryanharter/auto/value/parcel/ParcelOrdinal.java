@@ -0,0 +1,38 @@
+package com.ryanharter.auto.value.parcel;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+/**
+ * An annotation that indicates that enum properties should be parcelled using their ordinal
+ * instead of their name.  It can be applied to a single property, or to the AutoValue class to
+ * apply to all of its enum properties.
+ *
+ * <pre>
+ * <code>
+ * {@literal @}AutoValue public abstract class Foo implements Parcelable {
+ *   {@literal @}ParcelOrdinal public abstract Color color();
+ * }
+ * </code>
+ * </pre>
+ *
+ * By default enums are written as their {@code name()} and read using {@link Enum#valueOf}.
+ * Annotated properties are written as a single int and read back from a cached {@code values()}
+ * array.  Ordinals depend on declaration order, so this should only be used when both ends of the
+ * Parcel use the same version of the enum.  An unknown ordinal throws an
+ * {@link IllegalArgumentException}, just like an unknown name would.
+ *
+ * <p>Properties whose type is a type variable, like {@code <E extends Enum<E>> E status()}, have no
+ * {@code values()} to read the ordinal from, so they're always written the default way.  Annotating
+ * one of them directly is an error.
+ */
+@Target({METHOD, TYPE})
+@Retention(SOURCE)
+@Documented
+public @interface ParcelOrdinal {
+}
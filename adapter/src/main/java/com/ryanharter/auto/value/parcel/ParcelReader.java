@@ -0,0 +1,39 @@
+package com.ryanharter.auto.value.parcel;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+/**
+ * An annotation that generates a reader class that can read single properties from a parcelled
+ * instance of an AutoValue class, without creating the whole object.
+ *
+ * <pre>
+ * <code>
+ * {@literal @}ParcelReader
+ * {@literal @}AutoValue public abstract class Message implements Parcelable {
+ *   public abstract String routingKey();
+ *   public abstract long timestamp();
+ *   public abstract List&lt;Attachment&gt; attachments();
+ * }
+ *
+ * int start = parcel.dataPosition();
+ * message.writeToParcel(parcel, 0);
+ * ...
+ * long timestamp = MessageParcelReader.readTimestamp(parcel, start);
+ * </code>
+ * </pre>
+ *
+ * The generated {@code writeToParcel} starts with a table of property offsets, which the reader
+ * uses to seek straight to a property.  The reader leaves the Parcel's position unchanged.
+ * Properties that can only be read along with the rest of the object, like the ones stored in the
+ * packed header, don't get a reader method.
+ */
+@Target(TYPE)
+@Retention(SOURCE)
+@Documented
+public @interface ParcelReader {
+}
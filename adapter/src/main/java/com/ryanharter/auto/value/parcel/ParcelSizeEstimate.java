@@ -0,0 +1,38 @@
+package com.ryanharter.auto.value.parcel;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+/**
+ * An annotation that makes the generated class implement {@link SizedParcelable}, so the size of
+ * what it writes to a Parcel is known before writing it.
+ *
+ * <pre>
+ * <code>
+ * {@literal @}ParcelSizeEstimate
+ * {@literal @}AutoValue public abstract class Point implements Parcelable {
+ *   public abstract int x();
+ *   public abstract int y();
+ * }
+ *
+ * ParcelSizes.writeAll(points, parcel, 0);
+ * </code>
+ * </pre>
+ *
+ * When every property has a fixed size, like primitives, non-null boxes and enums written as
+ * ordinals, the generated class also has a {@code PARCEL_SIZE} constant with the exact number of
+ * bytes.  Otherwise {@code estimateParcelSize()} adds up the lengths of strings and the sizes of
+ * collections and nested Parcelables when it's called.  {@link ParcelVarInt} properties are
+ * counted at their longest encoding and {@link ParcelStringTable} Strings as if each was written
+ * in full, so those make it an upper bound.  Values written by a {@link TypeAdapter} or a codec
+ * are counted as {@link ParcelSizes#UNKNOWN_SIZE}.
+ */
+@Target(TYPE)
+@Retention(SOURCE)
+@Documented
+public @interface ParcelSizeEstimate {
+}
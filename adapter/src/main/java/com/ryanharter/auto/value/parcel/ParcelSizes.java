@@ -0,0 +1,263 @@
+package com.ryanharter.auto.value.parcel;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the number of bytes values take in a Parcel, for the {@code estimateParcelSize()}
+ * methods generated for {@link ParcelSizeEstimate} classes, and writes objects into a Parcel after
+ * growing it to fit all of them.
+ *
+ * <pre>
+ * <code>
+ * Parcel parcel = Parcel.obtain();
+ * ParcelSizes.writeAll(messages, parcel, 0);
+ * </code>
+ * </pre>
+ *
+ * The sizes follow the platform's layout, where every value takes a multiple of four bytes.
+ */
+public final class ParcelSizes {
+
+  /**
+   * The number of bytes counted for a value whose size can't be known, like one written by a
+   * {@link TypeAdapter}, or a Parcelable that isn't a {@link SizedParcelable}.
+   */
+  public static final int UNKNOWN_SIZE = 16;
+
+  private ParcelSizes() {
+  }
+
+  /**
+   * Writes {@code value} to {@code dest}, after making sure {@code dest} has room for it.
+   */
+  public static void write(Parcelable value, Parcel dest, int flags) {
+    reserve(dest, estimate(value));
+    value.writeToParcel(dest, flags);
+  }
+
+  /**
+   * Writes each of {@code values} to {@code dest} in order, after making sure {@code dest} has
+   * room for all of them, so it's grown at most once.
+   */
+  public static void writeAll(List<? extends Parcelable> values, Parcel dest, int flags) {
+    int size = 0;
+    for (int i = 0, count = values.size(); i < count; i++) {
+      size += estimate(values.get(i));
+    }
+    reserve(dest, size);
+    for (int i = 0, count = values.size(); i < count; i++) {
+      values.get(i).writeToParcel(dest, flags);
+    }
+  }
+
+  /**
+   * Returns the number of bytes {@code value}'s {@code writeToParcel} writes, if it's a
+   * {@link SizedParcelable}, or {@link #UNKNOWN_SIZE}.
+   */
+  public static int estimate(Parcelable value) {
+    if (value instanceof SizedParcelable) {
+      return ((SizedParcelable) value).estimateParcelSize();
+    }
+    return UNKNOWN_SIZE;
+  }
+
+  private static void reserve(Parcel dest, int size) {
+    int capacity = dest.dataPosition() + size;
+    if (capacity > dest.dataCapacity()) {
+      dest.setDataCapacity(capacity);
+    }
+  }
+
+  /**
+   * Returns the size of {@code value} written with {@code writeString}.
+   */
+  public static int string(CharSequence value) {
+    if (value == null) {
+      return Integer.BYTES;
+    }
+    // The chars are followed by a null terminator, and padded to four bytes.
+    return Integer.BYTES + align((value.length() + 1) * Character.BYTES);
+  }
+
+  /**
+   * Returns the size of {@code value} written with {@code TextUtils.writeToParcel}, not counting
+   * any spans.
+   */
+  public static int charSequence(CharSequence value) {
+    return Integer.BYTES + string(value);
+  }
+
+  public static int array(boolean[] value) {
+    return value == null ? Integer.BYTES : Integer.BYTES + value.length * Integer.BYTES;
+  }
+
+  public static int array(byte[] value) {
+    return value == null ? Integer.BYTES : Integer.BYTES + align(value.length);
+  }
+
+  public static int array(char[] value) {
+    return value == null ? Integer.BYTES : Integer.BYTES + value.length * Integer.BYTES;
+  }
+
+  public static int array(int[] value) {
+    return value == null ? Integer.BYTES : Integer.BYTES + value.length * Integer.BYTES;
+  }
+
+  public static int array(long[] value) {
+    return value == null ? Integer.BYTES : Integer.BYTES + value.length * Long.BYTES;
+  }
+
+  public static int array(double[] value) {
+    return value == null ? Integer.BYTES : Integer.BYTES + value.length * Double.BYTES;
+  }
+
+  public static int array(String[] value) {
+    if (value == null) {
+      return Integer.BYTES;
+    }
+    int size = Integer.BYTES;
+    for (String element : value) {
+      size += string(element);
+    }
+    return size;
+  }
+
+  /**
+   * Returns the size of {@code value} written with its own {@code writeToParcel}.
+   */
+  public static int parcelable(Parcelable value) {
+    return estimate(value);
+  }
+
+  /**
+   * Returns the size of {@code value} written with {@code writeParcelable}, which writes the class
+   * name first.
+   */
+  public static int namedParcelable(Parcelable value) {
+    if (value == null) {
+      return string(null);
+    }
+    return string(value.getClass().getName()) + estimate(value);
+  }
+
+  /**
+   * Returns the size of {@code value} written with {@code writeStringList}.
+   */
+  public static int stringList(List<String> value) {
+    if (value == null) {
+      return Integer.BYTES;
+    }
+    int size = Integer.BYTES;
+    for (int i = 0, count = value.size(); i < count; i++) {
+      size += string(value.get(i));
+    }
+    return size;
+  }
+
+  /**
+   * Returns the size of {@code value} written with {@code writeTypedList}.
+   */
+  public static int typedList(List<? extends Parcelable> value) {
+    if (value == null) {
+      return Integer.BYTES;
+    }
+    int size = Integer.BYTES;
+    for (int i = 0, count = value.size(); i < count; i++) {
+      Parcelable element = value.get(i);
+      size += Integer.BYTES + (element == null ? 0 : estimate(element));
+    }
+    return size;
+  }
+
+  /**
+   * Returns the size of {@code value} written with {@code writeList}.
+   */
+  public static int list(Collection<?> value) {
+    if (value == null) {
+      return Integer.BYTES;
+    }
+    int size = Integer.BYTES;
+    for (Object element : value) {
+      size += value(element);
+    }
+    return size;
+  }
+
+  /**
+   * Returns the size of {@code value} written with {@code writeMap}.
+   */
+  public static int map(Map<?, ?> value) {
+    if (value == null) {
+      return Integer.BYTES;
+    }
+    int size = Integer.BYTES;
+    for (Map.Entry<?, ?> entry : value.entrySet()) {
+      size += value(entry.getKey()) + value(entry.getValue());
+    }
+    return size;
+  }
+
+  /**
+   * Returns the size of a List property whose elements are written by a {@link TypeAdapter}.
+   */
+  public static int adapted(Collection<?> value) {
+    return Integer.BYTES + value.size() * UNKNOWN_SIZE;
+  }
+
+  /**
+   * Returns the size of a Map property whose values are written by a {@link TypeAdapter}.
+   */
+  public static int adapted(Map<String, ?> value) {
+    int size = Integer.BYTES + value.size() * UNKNOWN_SIZE;
+    for (String key : value.keySet()) {
+      size += string(key);
+    }
+    return size;
+  }
+
+  /**
+   * Returns the size of {@code value} written with {@code writeValue}, including its type tag.
+   */
+  public static int value(Object value) {
+    int tag = Integer.BYTES;
+    if (value == null) {
+      return tag;
+    } else if (value instanceof String) {
+      return tag + string((String) value);
+    } else if (value instanceof Integer || value instanceof Short || value instanceof Byte
+        || value instanceof Boolean || value instanceof Float || value instanceof Character) {
+      return tag + Integer.BYTES;
+    } else if (value instanceof Long || value instanceof Double) {
+      return tag + Long.BYTES;
+    } else if (value instanceof Map) {
+      return tag + map((Map<?, ?>) value);
+    } else if (value instanceof Parcelable) {
+      return tag + namedParcelable((Parcelable) value);
+    } else if (value instanceof CharSequence) {
+      return tag + charSequence((CharSequence) value);
+    } else if (value instanceof Collection) {
+      return tag + list((Collection<?>) value);
+    } else if (value instanceof byte[]) {
+      return tag + array((byte[]) value);
+    } else if (value instanceof String[]) {
+      return tag + array((String[]) value);
+    } else if (value instanceof int[]) {
+      return tag + array((int[]) value);
+    } else if (value instanceof long[]) {
+      return tag + array((long[]) value);
+    } else if (value instanceof boolean[]) {
+      return tag + array((boolean[]) value);
+    } else if (value instanceof double[]) {
+      return tag + array((double[]) value);
+    }
+    return tag + UNKNOWN_SIZE;
+  }
+
+  private static int align(int size) {
+    return (size + 3) & ~3;
+  }
+}
@@ -0,0 +1,34 @@
+package com.ryanharter.auto.value.parcel;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+/**
+ * An annotation that indicates that an AutoValue class's String properties should be parcelled
+ * through a {@link StringTable}, so each distinct value is only written once.
+ *
+ * <pre>
+ * <code>
+ * {@literal @}ParcelStringTable
+ * {@literal @}AutoValue public abstract class Item implements Parcelable {
+ *   public abstract String category();
+ *   public abstract String locale();
+ * }
+ * </code>
+ * </pre>
+ *
+ * The first occurrence of a String is written in full, and every later occurrence as an index
+ * into the table.  Properties that hold other annotated classes directly, or as the elements of
+ * a collection or map, share the table with them, so a list of items only writes each category
+ * once.  Classes that aren't annotated, {@code Bundle}s, and classes that are also annotated with
+ * {@link ParcelReader} don't share their table, so their values can still be read on their own.
+ */
+@Target(TYPE)
+@Retention(SOURCE)
+@Documented
+public @interface ParcelStringTable {
+}
@@ -0,0 +1,36 @@
+package com.ryanharter.auto.value.parcel;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+/**
+ * An annotation that indicates that int and long properties should be parcelled as variable
+ * length integers.  It can be applied to a single property, or to the AutoValue class to apply to
+ * all of its int and long properties.
+ *
+ * <pre>
+ * <code>
+ * {@literal @}AutoValue public abstract class Foo implements Parcelable {
+ *   {@literal @}ParcelVarInt public abstract int count();
+ *   {@literal @}ParcelVarInt public abstract long id();
+ * }
+ * </code>
+ * </pre>
+ *
+ * Values are zigzag encoded, so small negative values stay small, and written 7 bits per byte,
+ * packed four bytes to an int, before the other properties.  Values close to zero take one or two
+ * bytes instead of the four or eight bytes of {@code writeInt} and {@code writeLong}, but large
+ * values can take up to five or ten, so the encoding only saves space when most values fit in
+ * three bytes, between -2<sup>20</sup> and 2<sup>20</sup>.  Nullable properties are written as
+ * usual.
+ */
+@Target({METHOD, TYPE})
+@Retention(SOURCE)
+@Documented
+public @interface ParcelVarInt {
+}
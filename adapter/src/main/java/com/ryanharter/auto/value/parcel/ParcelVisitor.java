@@ -0,0 +1,37 @@
+package com.ryanharter.auto.value.parcel;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+/**
+ * An annotation that generates a visitor interface for an AutoValue class, and a static
+ * {@code decode} method that passes each property read from a Parcel to it, without creating an
+ * instance.
+ *
+ * <pre>
+ * <code>
+ * {@literal @}ParcelVisitor
+ * {@literal @}AutoValue public abstract class LogEntry implements Parcelable {
+ *   public abstract int level();
+ *   public abstract String message();
+ *
+ *   static void decode(Parcel in, LogEntryVisitor visitor) {
+ *     AutoValue_LogEntry.decode(in, visitor);
+ *   }
+ * }
+ * </code>
+ * </pre>
+ *
+ * The generated {@code LogEntryVisitor} has an {@code on} method for each property, like
+ * {@code onLevel(int level)}, which are called in property order.  Primitive properties are
+ * passed without boxing.
+ */
+@Target(TYPE)
+@Retention(SOURCE)
+@Documented
+public @interface ParcelVisitor {
+}
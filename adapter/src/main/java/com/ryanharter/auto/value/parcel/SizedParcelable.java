@@ -0,0 +1,17 @@
+package com.ryanharter.auto.value.parcel;
+
+import android.os.Parcelable;
+
+/**
+ * A {@link Parcelable} that can tell how many bytes its {@code writeToParcel} will write, which
+ * {@link ParcelSizes} uses to grow a Parcel once before writing to it.  Classes annotated with
+ * {@link ParcelSizeEstimate} implement this.
+ */
+public interface SizedParcelable extends Parcelable {
+
+  /**
+   * Returns the number of bytes {@code writeToParcel} writes for this instance, or an estimate of
+   * it if some of the properties are written by code that doesn't report its size.
+   */
+  int estimateParcelSize();
+}
@@ -0,0 +1,132 @@
+package com.ryanharter.auto.value.parcel;
+
+import android.os.Parcel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deduplicates the String properties of classes annotated with {@link ParcelStringTable}.
+ *
+ * <p>Generated code calls {@link #begin} at the start of {@code writeToParcel} and
+ * {@code createFromParcel}, and {@link #end} when it's done.  Around properties that hold other
+ * annotated classes, like a list of annotated items, it calls {@link #share} and
+ * {@link #unshare}, and those nested classes join the open table instead of starting their own,
+ * so each String is only written once.  Nothing else joins an open table: values that may be read
+ * later from a different Parcel, like the contents of a {@code Bundle}, or read on their own, like
+ * a property read through a {@link ParcelReader}, always carry their own table.  Since the class
+ * that shares the table generates both the write and the read, the reader always rebuilds exactly
+ * the table the writer used.
+ *
+ * <p>Each String is written as an int: -1 for null, the index of a String that has already been
+ * written, or the next index followed by the String itself.
+ */
+public final class StringTable {
+
+  private static final ThreadLocal<StringTable> CURRENT = new ThreadLocal<>();
+
+  private final Parcel parcel;
+  private final StringTable previous;
+  private final Map<String, Integer> indices = new HashMap<>();
+  private final List<String> strings = new ArrayList<>();
+  private int depth;
+  private boolean shared;
+
+  private StringTable(Parcel parcel, StringTable previous) {
+    this.parcel = parcel;
+    this.previous = previous;
+  }
+
+  /**
+   * Returns the table that's open for {@code parcel} on this thread if it's being shared, or opens
+   * a new one.  Every call must be matched by a call to {@link #end}.
+   */
+  public static StringTable begin(Parcel parcel) {
+    StringTable current = CURRENT.get();
+    if (current != null && current.parcel == parcel && current.shared) {
+      // The nested class only shares the table further around its own nested classes.
+      current.shared = false;
+      current.depth++;
+      return current;
+    }
+    StringTable table = new StringTable(parcel, current);
+    CURRENT.set(table);
+    return table;
+  }
+
+  /**
+   * Closes this table once the outermost {@link #begin} call for its Parcel has ended.
+   */
+  public void end() {
+    if (depth > 0) {
+      depth--;
+      // Back in the class that shared the table with the one that's ending.
+      shared = true;
+    } else if (previous != null) {
+      CURRENT.set(previous);
+    } else {
+      CURRENT.remove();
+    }
+  }
+
+  /**
+   * Lets the annotated classes that are written or read next join this table, until
+   * {@link #unshare} is called.
+   */
+  public StringTable share() {
+    shared = true;
+    return this;
+  }
+
+  /**
+   * Stops sharing this table.
+   */
+  public void unshare() {
+    shared = false;
+  }
+
+  /**
+   * Stops sharing this table, and returns {@code value}, so a read can be wrapped in a single
+   * expression: {@code strings.share().unshare(Item.CREATOR.createFromParcel(in))}.
+   */
+  public <T> T unshare(T value) {
+    shared = false;
+    return value;
+  }
+
+  /**
+   * Writes {@code value}, which may be null, to the Parcel.
+   */
+  public void writeString(String value) {
+    if (value == null) {
+      parcel.writeInt(-1);
+      return;
+    }
+    Integer index = indices.get(value);
+    if (index != null) {
+      parcel.writeInt(index);
+      return;
+    }
+    int next = indices.size();
+    indices.put(value, next);
+    parcel.writeInt(next);
+    parcel.writeString(value);
+  }
+
+  /**
+   * Reads a String written by {@link #writeString}.
+   */
+  public String readString() {
+    int index = parcel.readInt();
+    if (index < 0) {
+      return null;
+    }
+    if (index < strings.size()) {
+      return strings.get(index);
+    }
+    String value = parcel.readString();
+    strings.add(value);
+    return value;
+  }
+}
@@ -1,6 +1,8 @@
 package com.ryanharter.auto.value.parcel;
 
 import android.os.Parcel;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Converts Java objects to and from Parcels.
@@ -27,7 +29,8 @@ import android.os.Parcel;
  * </pre>
  *
  * You can tell the Parcel Extension to use this TypeAdapter by using the {@link ParcelAdapter}
- * annotation on any Date properties.
+ * annotation on any Date properties, or on any {@code List<Date>} properties, whose elements are
+ * then written with {@link #toParcelAll} and read with {@link #fromParcelAll}.
  *
  * <pre>
  * <code>
@@ -53,4 +56,33 @@ public interface TypeAdapter<T> {
    */
   void toParcel(T value, Parcel dest);
 
+  /**
+   * Creates {@code count} new objects based on the values in the provided {@link Parcel}.  By
+   * default this calls {@link #fromParcel} once for each object; override it, along with
+   * {@link #toParcelAll}, to read all of the values at once, like a {@code long[]} of timestamps.
+   * @param in The {@link Parcel} which contains the values of {@code T}.
+   * @param count The number of objects to read, as passed to {@link #toParcelAll}.
+   * @return A mutable list of the {@code count} objects read from {@code in}.
+   */
+  default List<T> fromParcelAll(Parcel in, int count) {
+    List<T> values = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      values.add(fromParcel(in));
+    }
+    return values;
+  }
+
+  /**
+   * Writes all of {@code values} into {@code dest}.  The number of values is written by the caller,
+   * so it doesn't need to be written again.  By default this calls {@link #toParcel} once for each
+   * value, including null ones.
+   * @param values The objects to be written.
+   * @param dest The {@link Parcel} in which to write {@code values}.
+   */
+  default void toParcelAll(List<T> values, Parcel dest) {
+    for (T value : values) {
+      toParcel(value, dest);
+    }
+  }
+
 }
@@ -9,7 +9,6 @@ import com.google.auto.value.extension.AutoValueExtension;
 import com.google.common.base.CaseFormat;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.squareup.javapoet.AnnotationSpec;
@@ -27,26 +26,27 @@ import com.squareup.javapoet.TypeSpec;
 import com.squareup.javapoet.TypeVariableName;
 import com.squareup.javapoet.WildcardTypeName;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.ServiceLoader;
 import java.util.Set;
 
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.lang.model.element.AnnotationMirror;
 import javax.lang.model.element.AnnotationValue;
-import javax.lang.model.element.Element;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.TypeParameterElement;
 import javax.lang.model.element.VariableElement;
 import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
 import javax.lang.model.type.TypeVariable;
-import javax.lang.model.util.ElementFilter;
 import javax.lang.model.util.Elements;
 import javax.lang.model.util.Types;
 import javax.tools.Diagnostic;
@@ -63,6 +63,33 @@ public final class AutoValueParcelExtension extends AutoValueExtension {
 
   static final String FAIL_EXPLOSIVELY = "avparcel.failExplosively";
   private static final String PARCEL_ADAPTER = "com.ryanharter.auto.value.parcel.ParcelAdapter";
+  private static final String PARCEL_ORDINAL = "com.ryanharter.auto.value.parcel.ParcelOrdinal";
+  private static final String PARCEL_NULL_BITMAP =
+      "com.ryanharter.auto.value.parcel.ParcelNullBitmap";
+  private static final String PARCEL_VAR_INT = "com.ryanharter.auto.value.parcel.ParcelVarInt";
+  private static final String PARCEL_BYTE_BUFFER =
+      "com.ryanharter.auto.value.parcel.ParcelByteBuffer";
+  private static final String PARCEL_READER =
+      "com.ryanharter.auto.value.parcel.ParcelReader";
+  private static final String PARCEL_VISITOR =
+      "com.ryanharter.auto.value.parcel.ParcelVisitor";
+  private static final String PARCEL_BLOB = "com.ryanharter.auto.value.parcel.ParcelBlob";
+  private static final String PARCEL_STRING_TABLE =
+      "com.ryanharter.auto.value.parcel.ParcelStringTable";
+  private static final String PARCEL_SIZE_ESTIMATE =
+      "com.ryanharter.auto.value.parcel.ParcelSizeEstimate";
+
+  private final Iterable<? extends ParcelCodec> codecProviders;
+  private ParcelCodecs codecs;
+  private TypeAnalysis typeAnalysis;
+
+  public AutoValueParcelExtension() {
+    this(ServiceLoader.load(ParcelCodec.class, AutoValueParcelExtension.class.getClassLoader()));
+  }
+
+  AutoValueParcelExtension(Iterable<? extends ParcelCodec> codecProviders) {
+    this.codecProviders = codecProviders;
+  }
 
   static final class Property {
     final String methodName;
@@ -73,6 +100,26 @@ public final class AutoValueParcelExtension extends AutoValueExtension {
     final ImmutableList<AnnotationMirror> annotations;
     final boolean nullable;
     TypeMirror typeAdapter;
+    /** The primitive type {@link #typeAdapter} reads and writes without boxing, or null. */
+    TypeName typeAdapterPrimitive;
+    /** True if {@link #typeAdapter} adapts the elements of this List property as a batch. */
+    boolean typeAdapterElements;
+    /** True if {@link #typeAdapter} adapts the values of this Map property. */
+    boolean typeAdapterValues;
+    /** True if {@link #typeAdapter} was found on a type argument rather than the method. */
+    boolean typeArgumentAdapter;
+    boolean ordinal;
+    boolean varInt;
+    /** True if this String property is written through the shared {@code StringTable}. */
+    boolean stringTable;
+    /** True if the annotated classes this property holds join this class's {@code StringTable}. */
+    boolean sharesStringTable;
+    /** The size above which this byte[] property is written to shared memory, or -1. */
+    int blobThreshold = -1;
+    /** The class whose {@code CREATOR} reads this property directly, or null. */
+    ClassName creatorOwner;
+    /** The codec from the processor path that parcels this property, or null. */
+    ParcelCodec codec;
 
     public Property(String humanName, ExecutableElement element, TypeMirror actualType) {
       this.methodName = element.getSimpleName().toString();
@@ -87,6 +134,9 @@ public final class AutoValueParcelExtension extends AutoValueExtension {
       if (parcelAdapter.isPresent()) {
         AnnotationValue value = AnnotationMirrors.getAnnotationValue(parcelAdapter.get(), "value");
         typeAdapter = AnnotationValues.getTypeMirror(value);
+      } else {
+        typeAdapter = typeArgumentAdapter(element.getReturnType());
+        typeArgumentAdapter = typeAdapter != null;
       }
     }
 
@@ -113,6 +163,30 @@ public final class AutoValueParcelExtension extends AutoValueExtension {
       return false;
     }
 
+    private static boolean isParcelAdapter(AnnotationMirror annotation) {
+      return MoreElements.asType(annotation.getAnnotationType().asElement())
+          .getQualifiedName().contentEquals(PARCEL_ADAPTER);
+    }
+
+    /**
+     * Returns the type adapter of the {@code ParcelAdapter} annotation on one of the type arguments
+     * of {@code type}, or null.
+     */
+    private static TypeMirror typeArgumentAdapter(TypeMirror type) {
+      if (type.getKind() != TypeKind.DECLARED) {
+        return null;
+      }
+      for (TypeMirror argument : ((DeclaredType) type).getTypeArguments()) {
+        for (AnnotationMirror annotation : argument.getAnnotationMirrors()) {
+          if (isParcelAdapter(annotation)) {
+            return AnnotationValues.getTypeMirror(
+                AnnotationMirrors.getAnnotationValue(annotation, "value"));
+          }
+        }
+      }
+      return null;
+    }
+
     private boolean isNullableAnnotation(AnnotationMirror annotation) {
       return annotation.getAnnotationType().asElement().getSimpleName().contentEquals("Nullable");
     }
@@ -129,7 +203,10 @@ public final class AutoValueParcelExtension extends AutoValueExtension {
       TypeName typeName = TypeName.get(actualType);
       ImmutableList.Builder<AnnotationSpec> typeAnnotations = ImmutableList.builder();
       for (AnnotationMirror annotation : actualType.getAnnotationMirrors()) {
-        typeAnnotations.add(AnnotationSpec.get(annotation));
+        // A ParcelAdapter on the method also applies to its return type, but it's only read here.
+        if (!isParcelAdapter(annotation)) {
+          typeAnnotations.add(AnnotationSpec.get(annotation));
+        }
       }
 
       return typeName.annotated(typeAnnotations.build());
@@ -204,35 +281,71 @@ public final class AutoValueParcelExtension extends AutoValueExtension {
         TypeName.get(env.getTypeUtils().erasure(context.autoValueClass().asType()));
 
     ImmutableList<Property> properties = readProperties(context);
-    if (!validateProperties(env, properties)) {
+    if (!validateProperties(env, properties, context.packageName())) {
       return null;
     }
 
-    ImmutableMap<TypeMirror, FieldSpec> typeAdapters = getTypeAdapters(properties);
-
+    NameAllocator nameAllocator = new NameAllocator();
+    nameAllocator.newName("CREATOR");
+    boolean parcelSizeEstimate =
+        MoreElements.isAnnotationPresent(context.autoValueClass(), PARCEL_SIZE_ESTIMATE);
+    if (parcelSizeEstimate) {
+      nameAllocator.newName(SizeEstimate.CONSTANT);
+    }
+    TypeAdapterFields typeAdapters = TypeAdapterFields.create(properties, nameAllocator);
+    GeneratedMembers members = new GeneratedMembers(nameAllocator);
+    PackedHeader header = PackedHeader.create(typeAnalysis(env), properties,
+        MoreElements.isAnnotationPresent(context.autoValueClass(), PARCEL_NULL_BITMAP));
+    VarIntRegion varInts = VarIntRegion.create(properties, members);
+    ByteBufferRegion byteBuffer = ByteBufferRegion.create(properties, header, varInts,
+        MoreElements.isAnnotationPresent(context.autoValueClass(), PARCEL_BYTE_BUFFER), members);
+    boolean parcelReader =
+        MoreElements.isAnnotationPresent(context.autoValueClass(), PARCEL_READER);
+    if (parcelReader && !context.autoValueClass().getTypeParameters().isEmpty()) {
+      env.getMessager().printMessage(Diagnostic.Kind.ERROR,
+          "@ParcelReader can't be used on generic classes.", context.autoValueClass());
+      return null;
+    }
+    boolean parcelVisitor =
+        MoreElements.isAnnotationPresent(context.autoValueClass(), PARCEL_VISITOR);
+    if (parcelVisitor && !context.autoValueClass().getTypeParameters().isEmpty()) {
+      env.getMessager().printMessage(Diagnostic.Kind.ERROR,
+          "@ParcelVisitor can't be used on generic classes.", context.autoValueClass());
+      return null;
+    }
+    OffsetTable offsets =
+        OffsetTable.create(properties, header, varInts, byteBuffer, parcelReader);
     ClassName type = ClassName.get(context.packageName(), className);
     TypeSpec.Builder subclass = TypeSpec.classBuilder(className)
         .addModifiers(FINAL)
         .addMethod(generateConstructor(properties))
-        .addMethod(generateWriteToParcel(env, properties, typeAdapters));
+        .addMethod(generateWriteToParcel(env, autoValueType, properties, typeAdapters, members,
+            header, varInts, byteBuffer, offsets));
 
-    GeneratedAnnotations.generatedAnnotation(env.getElementUtils(), env.getSourceVersion())
-        .map(
-            annotation ->
-                AnnotationSpec.builder(ClassName.get(annotation))
-                    .addMember("value", "$S", getClass().getName())
-                    .build())
-        .ifPresent(subclass::addAnnotation);
+    addGeneratedAnnotation(env, subclass);
 
-    if (!typeAdapters.isEmpty()) {
-      for (FieldSpec field : typeAdapters.values()) {
-        subclass.addField(field);
-      }
-    }
+    typeAdapters.addTo(subclass);
 
     List<? extends TypeParameterElement> typeParameters =
         context.autoValueClass().getTypeParameters();
-    subclass.addField(generateCreator(env, autoValueType, properties, type, typeAdapters, typeParameters));
+    FieldSpec creator = generateCreator(env, autoValueType, properties, type, typeAdapters,
+        typeParameters, members, header, varInts, byteBuffer, offsets);
+    if (parcelVisitor) {
+      ClassName visitor = siblingClass(autoValueType, "Visitor");
+      subclass.addMethod(generateDecode(env, autoValueType, properties, typeAdapters, members,
+          header, varInts, byteBuffer, offsets, visitor));
+      writeVisitor(context, visitor, properties);
+    }
+    SizeEstimate sizeEstimate = null;
+    if (parcelSizeEstimate) {
+      sizeEstimate = SizeEstimate.create(typeAnalysis(env), properties, autoValueType, header,
+          varInts, byteBuffer, offsets, members);
+    }
+    subclass.addFields(members.fields());
+    if (sizeEstimate != null && sizeEstimate.constant() != null) {
+      subclass.addField(sizeEstimate.constant());
+    }
+    subclass.addField(creator);
 
     ClassName superClass = ClassName.get(context.packageName(), classToExtend);
     List<? extends TypeParameterElement> tpes = context.autoValueClass().getTypeParameters();
@@ -247,18 +360,192 @@ public final class AutoValueParcelExtension extends AutoValueExtension {
       }
       subclass.superclass(ParameterizedTypeName.get(superClass, superTypeVariables));
     }
+    subclass.addMethods(members.methods());
     if (needsContentDescriptor(context)) {
-      subclass.addMethod(generateDescribeContents());
+      subclass.addMethod(generateDescribeContents(usesBlobs(properties)));
+    }
+    if (sizeEstimate != null) {
+      subclass.addSuperinterface(SizeEstimate.SIZED_PARCELABLE);
+      subclass.addMethod(sizeEstimate.method());
+    }
+
+    if (!offsets.properties().isEmpty()) {
+      writeParcelReader(context, autoValueType, offsets, header);
     }
 
     JavaFile javaFile = JavaFile.builder(context.packageName(), subclass.build()).build();
     return javaFile.toString();
   }
 
-  private static boolean needsContentDescriptor(Context context) {
+  /**
+   * Returns the top level class in the AutoValue class's package that's named after it, with
+   * {@code suffix} appended.
+   */
+  private static ClassName siblingClass(TypeName autoValueType, String suffix) {
+    ClassName autoValueClass = (ClassName) autoValueType;
+    return ClassName.get(autoValueClass.packageName(),
+        String.join("_", autoValueClass.simpleNames()) + suffix);
+  }
+
+  private void addGeneratedAnnotation(ProcessingEnvironment env, TypeSpec.Builder type) {
+    GeneratedAnnotations.generatedAnnotation(env.getElementUtils(), env.getSourceVersion())
+        .map(
+            annotation ->
+                AnnotationSpec.builder(ClassName.get(annotation))
+                    .addMember("value", "$S", getClass().getName())
+                    .build())
+        .ifPresent(type::addAnnotation);
+  }
+
+  /**
+   * Returns the name of the visitor callback for {@code property}.
+   */
+  private static String visitorMethodName(Property property) {
+    return "on" + CaseFormat.LOWER_CAMEL.to(CaseFormat.UPPER_CAMEL, property.humanName);
+  }
+
+  /**
+   * Generates the static {@code decode} method, which reads the properties in the same order as
+   * {@code createFromParcel}, but passes each one to {@code visitor} instead of creating an
+   * instance.
+   */
+  MethodSpec generateDecode(ProcessingEnvironment env, TypeName autoValueType,
+      List<Property> properties, TypeAdapterFields typeAdapters, GeneratedMembers members,
+      PackedHeader header, VarIntRegion varInts, ByteBufferRegion byteBuffer,
+      OffsetTable offsets, ClassName visitor) {
+    TypeAnalysis analysis = typeAnalysis(env);
+    CodeBlock.Builder body = CodeBlock.builder();
+    beginRead(body, properties, varInts, byteBuffer, offsets);
+    boolean requiresSuppressWarnings = false;
+    for (Property property : properties) {
+      body.add("visitor.$L(", visitorMethodName(property));
+      requiresSuppressWarnings |= readProperty(analysis, body, property, autoValueType,
+          typeAdapters, members, header, varInts, byteBuffer);
+      body.add(");\n");
+    }
+    endRead(body, properties);
+
+    MethodSpec.Builder decode = MethodSpec.methodBuilder("decode")
+        .addModifiers(PUBLIC, STATIC)
+        .addParameter(ClassName.get("android.os", "Parcel"), "in")
+        .addParameter(visitor, "visitor")
+        .addCode(body.build());
+    if (requiresSuppressWarnings) {
+      decode.addAnnotation(createSuppressUncheckedWarningAnnotation());
+    }
+    return decode.build();
+  }
+
+  /**
+   * Writes the visitor interface that {@code decode} passes the properties of {@code context} to.
+   */
+  private void writeVisitor(Context context, ClassName visitor, List<Property> properties) {
     ProcessingEnvironment env = context.processingEnvironment();
-    for (ExecutableElement element : MoreElements.getLocalAndInheritedMethods(
-        context.autoValueClass(), env.getElementUtils())) {
+    TypeSpec.Builder type = TypeSpec.interfaceBuilder(visitor)
+        .addOriginatingElement(context.autoValueClass());
+    if (context.autoValueClass().getModifiers().contains(PUBLIC)) {
+      type.addModifiers(PUBLIC);
+    }
+    addGeneratedAnnotation(env, type);
+    for (Property property : properties) {
+      ParameterSpec.Builder parameter = ParameterSpec.builder(property.type, property.humanName);
+      AnnotationMirror nonTypeNullableAnnotation = property.nonTypeNullableAnnotation();
+      if (nonTypeNullableAnnotation != null) {
+        parameter.addAnnotation(
+            ClassName.bestGuess(nonTypeNullableAnnotation.getAnnotationType().toString()));
+      }
+      type.addMethod(MethodSpec.methodBuilder(visitorMethodName(property))
+          .addModifiers(PUBLIC, ABSTRACT)
+          .addParameter(parameter.build())
+          .build());
+    }
+
+    try {
+      JavaFile.builder(visitor.packageName(), type.build()).build().writeTo(env.getFiler());
+    } catch (IOException e) {
+      env.getMessager().printMessage(Diagnostic.Kind.ERROR,
+          "Could not write " + visitor.simpleName() + ": " + e.getMessage(),
+          context.autoValueClass());
+    }
+  }
+
+  /**
+   * Writes the {@code ParcelReader} class for {@code context}, with a static method that reads
+   * each property in {@code offsets} straight from a parcelled instance.
+   */
+  private void writeParcelReader(Context context, TypeName autoValueType, OffsetTable offsets,
+      PackedHeader header) {
+    ProcessingEnvironment env = context.processingEnvironment();
+    TypeAnalysis analysis = typeAnalysis(env);
+    String readerName = siblingClass(autoValueType, "ParcelReader").simpleName();
+
+    NameAllocator nameAllocator = new NameAllocator();
+    Map<Property, String> methodNames = new LinkedHashMap<>();
+    for (Property property : offsets.properties()) {
+      methodNames.put(property, nameAllocator.newName(
+          "read" + CaseFormat.LOWER_CAMEL.to(CaseFormat.UPPER_CAMEL, property.humanName)));
+    }
+    TypeAdapterFields typeAdapters =
+        TypeAdapterFields.create(offsets.properties(), nameAllocator);
+    GeneratedMembers members = new GeneratedMembers(nameAllocator);
+
+    TypeSpec.Builder reader = TypeSpec.classBuilder(readerName)
+        .addOriginatingElement(context.autoValueClass())
+        .addModifiers(FINAL);
+    if (context.autoValueClass().getModifiers().contains(PUBLIC)) {
+      reader.addModifiers(PUBLIC);
+    }
+    addGeneratedAnnotation(env, reader);
+    typeAdapters.addTo(reader);
+    reader.addMethod(MethodSpec.constructorBuilder().addModifiers(PRIVATE).build());
+
+    for (Property property : offsets.properties()) {
+      int entryOffset = offsets.entryOffset(property);
+      CodeBlock entry = entryOffset == 0
+          ? CodeBlock.of("start")
+          : CodeBlock.of("start + $L", entryOffset);
+      CodeBlock.Builder value = CodeBlock.builder();
+      if (property.typeAdapter != null) {
+        Parcelables.readValueWithTypeAdapter(value, property,
+            typeAdapters.get(property.typeAdapter), header);
+      } else {
+        Parcelables.readValue(analysis, value, property,
+            Parcelables.getTypeNameFromProperty(property, analysis), autoValueType, members,
+            header);
+      }
+      MethodSpec.Builder method = MethodSpec.methodBuilder(methodNames.get(property))
+          .addModifiers(PUBLIC, STATIC)
+          .returns(property.type)
+          .addParameter(ClassName.get("android.os", "Parcel"), "in")
+          .addParameter(int.class, "start")
+          .addStatement("int position = in.dataPosition()")
+          .addStatement("in.setDataPosition($L)", entry)
+          .addStatement("in.setDataPosition(start + in.readInt())")
+          .beginControlFlow("try")
+          .addStatement("return $L", value.build())
+          .nextControlFlow("finally")
+          .addStatement("in.setDataPosition(position)")
+          .endControlFlow();
+      if (Parcelables.isTypeRequiresSuppressWarnings(property.type)) {
+        method.addAnnotation(createSuppressUncheckedWarningAnnotation());
+      }
+      reader.addMethod(method.build());
+    }
+    reader.addFields(members.fields());
+    reader.addMethods(members.methods());
+
+    try {
+      JavaFile.builder(context.packageName(), reader.build()).build().writeTo(env.getFiler());
+    } catch (IOException e) {
+      env.getMessager().printMessage(Diagnostic.Kind.ERROR,
+          "Could not write " + readerName + ": " + e.getMessage(), context.autoValueClass());
+    }
+  }
+
+  private boolean needsContentDescriptor(Context context) {
+    ProcessingEnvironment env = context.processingEnvironment();
+    for (ExecutableElement element : typeAnalysis(env)
+        .methods(context.autoValueClass(), env.getElementUtils())) {
       if (element.getSimpleName().contentEquals("describeContents")
           && MoreTypes.isTypeOf(int.class, element.getReturnType())
           && element.getParameters().isEmpty()
@@ -269,11 +556,11 @@ public final class AutoValueParcelExtension extends AutoValueExtension {
     return true;
   }
 
-  private static ExecutableElement findWriteToParcel(Context context) {
+  private ExecutableElement findWriteToParcel(Context context) {
     ProcessingEnvironment env = context.processingEnvironment();
     TypeMirror parcel = env.getElementUtils().getTypeElement("android.os.Parcel").asType();
-    for (ExecutableElement element : MoreElements.getLocalAndInheritedMethods(
-        context.autoValueClass(), env.getElementUtils())) {
+    for (ExecutableElement element : typeAnalysis(env)
+        .methods(context.autoValueClass(), env.getElementUtils())) {
       if (element.getSimpleName().contentEquals("writeToParcel")
           && MoreTypes.isTypeOf(void.class, element.getReturnType())
           && !element.getModifiers().contains(ABSTRACT)) {
@@ -288,13 +575,12 @@ public final class AutoValueParcelExtension extends AutoValueExtension {
     return null;
   }
 
-  private static VariableElement findCreator(Context context) {
+  private VariableElement findCreator(Context context) {
     ProcessingEnvironment env = context.processingEnvironment();
     Types typeUtils = env.getTypeUtils();
     Elements elementUtils = env.getElementUtils();
     TypeMirror creatorType = typeUtils.erasure(elementUtils.getTypeElement("android.os.Parcelable.Creator").asType());
-    List<? extends Element> members = env.getElementUtils().getAllMembers(context.autoValueClass());
-    for (VariableElement field : ElementFilter.fieldsIn(members)) {
+    for (VariableElement field : typeAnalysis(env).fields(context.autoValueClass(), elementUtils)) {
       if (field.getSimpleName().contentEquals("CREATOR")
           && typeUtils.isSameType(creatorType, typeUtils.erasure(field.asType()))
           && field.getModifiers().contains(STATIC)) {
@@ -304,19 +590,138 @@ public final class AutoValueParcelExtension extends AutoValueExtension {
     return null;
   }
 
+  /**
+   * Returns the {@link TypeAnalysis} for {@code env}.  It's replaced when the extension is used
+   * with another processing environment, so it never holds on to the elements of an earlier
+   * compilation.
+   */
+  TypeAnalysis typeAnalysis(ProcessingEnvironment env) {
+    if (typeAnalysis == null || !typeAnalysis.isFor(env.getTypeUtils())) {
+      typeAnalysis = new TypeAnalysis(env.getTypeUtils());
+    }
+    return typeAnalysis;
+  }
+
+  /**
+   * Returns the codecs found on the processor path, loading them the first time they're needed.
+   */
+  private ParcelCodecs codecs(ProcessingEnvironment env) {
+    if (codecs == null) {
+      codecs = ParcelCodecs.create(codecProviders, env.getMessager());
+    }
+    return codecs;
+  }
+
   private ImmutableList<Property> readProperties(Context context) {
+    boolean ordinalEnums = MoreElements.isAnnotationPresent(context.autoValueClass(), PARCEL_ORDINAL);
+    boolean varInts = MoreElements.isAnnotationPresent(context.autoValueClass(), PARCEL_VAR_INT);
+    boolean stringTable =
+        MoreElements.isAnnotationPresent(context.autoValueClass(), PARCEL_STRING_TABLE);
+    // Properties read through a ParcelReader have to be readable without the rest of the table.
+    boolean shareStringTable = stringTable
+        && !MoreElements.isAnnotationPresent(context.autoValueClass(), PARCEL_READER);
+    TypeAnalysis analysis = typeAnalysis(context.processingEnvironment());
+    ParcelCodecs codecs = codecs(context.processingEnvironment());
     ImmutableList.Builder<Property> values = ImmutableList.builder();
     for (Map.Entry<String, ExecutableElement> entry : context.properties().entrySet()) {
       String name = entry.getKey();
-      values.add(new Property(name, entry.getValue(), context.propertyTypes().get(name)));
+      Property property = new Property(name, entry.getValue(), context.propertyTypes().get(name));
+      // A type variable has no values() to resolve an ordinal against, so it's written by name.
+      property.ordinal = (ordinalEnums
+          || MoreElements.isAnnotationPresent(entry.getValue(), PARCEL_ORDINAL))
+          && property.typeMirror.getKind() != TypeKind.TYPEVAR;
+      property.varInt = varInts
+          || MoreElements.isAnnotationPresent(entry.getValue(), PARCEL_VAR_INT);
+      if (property.typeAdapter != null) {
+        property.typeAdapterPrimitive = Parcelables.typeAdapterPrimitive(analysis.types(),
+            context.processingEnvironment().getElementUtils(), property);
+        property.typeAdapterElements = Parcelables.typeAdapterElements(analysis.types(),
+            context.processingEnvironment().getElementUtils(), property);
+        property.typeAdapterValues = Parcelables.typeAdapterValues(analysis.types(),
+            context.processingEnvironment().getElementUtils(), property);
+      } else {
+        property.stringTable = stringTable
+            && Parcelables.STRING.equals(property.type.withoutAnnotations());
+        Optional<AnnotationMirror> blob =
+            MoreElements.getAnnotationMirror(entry.getValue(), PARCEL_BLOB);
+        if (blob.isPresent()
+            && Parcelables.BYTEARRAY.equals(property.type.withoutAnnotations())) {
+          property.blobThreshold =
+              (Integer) AnnotationMirrors.getAnnotationValue(blob.get(), "threshold").getValue();
+        }
+        property.creatorOwner =
+            Parcelables.findCreatorOwner(analysis, property.typeMirror, context.packageName());
+        property.codec = codecs.forProperty(property);
+        property.sharesStringTable = shareStringTable && property.codec == null
+            && holdsStringTableClass(property.typeMirror);
+      }
+      values.add(property);
     }
     return values.build();
   }
 
-  private boolean validateProperties(ProcessingEnvironment env, List<Property> properties) {
-    Types typeUtils = env.getTypeUtils();
+  /**
+   * Returns true if {@code type}, or one of its type arguments, is annotated with
+   * {@code ParcelStringTable}.  Those are written and read right away, into the same Parcel, so
+   * they can share the table of the class that holds them.
+   */
+  private static boolean holdsStringTableClass(TypeMirror type) {
+    if (type.getKind() != TypeKind.DECLARED) {
+      return false;
+    }
+    DeclaredType declaredType = MoreTypes.asDeclared(type);
+    if (MoreElements.isAnnotationPresent(declaredType.asElement(), PARCEL_STRING_TABLE)) {
+      return true;
+    }
+    for (TypeMirror argument : declaredType.getTypeArguments()) {
+      if (argument.getKind() == TypeKind.DECLARED
+          && MoreElements.isAnnotationPresent(MoreTypes.asElement(argument), PARCEL_STRING_TABLE)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean validateProperties(ProcessingEnvironment env, List<Property> properties,
+      String packageName) {
+    TypeAnalysis analysis = typeAnalysis(env);
     for (Property property : properties) {
+      if (property.typeMirror.getKind() == TypeKind.TYPEVAR
+          && MoreElements.isAnnotationPresent(property.element, PARCEL_ORDINAL)) {
+        env.getMessager().printMessage(Diagnostic.Kind.ERROR, "ParcelOrdinal can't be used on "
+            + "property " + property.methodName + ", since its type is a type variable.  Remove "
+            + "it to write the enum by name.", property.element);
+        if (env.getOptions().containsKey(FAIL_EXPLOSIVELY)) {
+          throw new AutoValueParcelException();
+        } else {
+          return false;
+        }
+      }
+      if (property.typeArgumentAdapter && !property.typeAdapterElements
+          && !property.typeAdapterValues) {
+        env.getMessager().printMessage(Diagnostic.Kind.ERROR, "ParcelAdapter can only be used on "
+            + "the element type of a List, or the value type of a Map with String keys, and must "
+            + "adapt that type.", property.element);
+        if (env.getOptions().containsKey(FAIL_EXPLOSIVELY)) {
+          throw new AutoValueParcelException();
+        } else {
+          return false;
+        }
+      }
       if (property.typeAdapter != null) {
+        String problem = TypeAdapterFields.checkCreatable(property.typeAdapter, packageName);
+        if (problem != null) {
+          env.getMessager().printMessage(Diagnostic.Kind.ERROR, "TypeAdapter "
+              + property.typeAdapter + " " + problem + ".", property.element);
+          if (env.getOptions().containsKey(FAIL_EXPLOSIVELY)) {
+            throw new AutoValueParcelException();
+          } else {
+            return false;
+          }
+        }
+        continue;
+      }
+      if (property.codec != null) {
         continue;
       }
       TypeMirror type = property.typeMirror;
@@ -328,10 +733,10 @@ public final class AutoValueParcelExtension extends AutoValueExtension {
         TypeVariable vType = (TypeVariable) type;
         type = vType.getUpperBound();
       }
-      TypeElement element = (TypeElement) typeUtils.asElement(type);
-      if ((element == null || !Parcelables.isValidType(typeUtils, type))
+      TypeElement element = (TypeElement) analysis.types().asElement(type);
+      if ((element == null || !Parcelables.isValidType(analysis, type))
           && !Parcelables.isValidType(TypeName.get(type))) {
-        if (element != null && Parcelables.MAP.equals(Parcelables.getParcelableType(typeUtils, element))) {
+        if (element != null && Parcelables.MAP.equals(Parcelables.getParcelableType(analysis, element))) {
           env.getMessager().printMessage(Diagnostic.Kind.ERROR, "Maps can only have String objects "
               + "for keys and valid Parcelable types for values.", property.element);
         } else {
@@ -376,8 +781,10 @@ public final class AutoValueParcelExtension extends AutoValueExtension {
   }
 
   FieldSpec generateCreator(ProcessingEnvironment env, TypeName autoValueType,
-      List<Property> properties, ClassName type, Map<TypeMirror, FieldSpec> typeAdapters,
-      List<? extends TypeParameterElement> typeParameters) {
+      List<Property> properties, ClassName type, TypeAdapterFields typeAdapters,
+      List<? extends TypeParameterElement> typeParameters, GeneratedMembers members,
+      PackedHeader header, VarIntRegion varInts, ByteBufferRegion byteBuffer,
+      OffsetTable offsets) {
 
     ClassName creator = ClassName.bestGuess("android.os.Parcelable.Creator");
     TypeName typeWithParameters;
@@ -385,7 +792,7 @@ public final class AutoValueParcelExtension extends AutoValueExtension {
       TypeName[] elements = typeParameters.stream().map(
               param -> {
                 TypeMirror bound = param.getBounds().get(0);
-                TypeName typeName = TypeName.get(bound);
+                TypeName typeName = Parcelables.staticBound(TypeName.get(bound));
                 // TODO: support types with multiple bounds.
                 return WildcardTypeName.subtypeOf(typeName);
               }
@@ -396,8 +803,9 @@ public final class AutoValueParcelExtension extends AutoValueExtension {
     }
     TypeName creatorOfClass = ParameterizedTypeName.get(creator, typeWithParameters);
 
-    Types typeUtils = env.getTypeUtils();
+    TypeAnalysis analysis = typeAnalysis(env);
     CodeBlock.Builder ctorCall = CodeBlock.builder();
+    beginRead(ctorCall, properties, varInts, byteBuffer, offsets);
     if (!typeParameters.isEmpty()) {
       ctorCall.add("return ($T) new $T(\n", typeWithParameters, type);
     } else {
@@ -407,20 +815,15 @@ public final class AutoValueParcelExtension extends AutoValueExtension {
     boolean requiresSuppressWarnings = false;
     for (int i = 0, n = properties.size(); i < n; i++) {
       Property property = properties.get(i);
-      if (property.typeAdapter != null && typeAdapters.containsKey(property.typeAdapter)) {
-        Parcelables.readValueWithTypeAdapter(ctorCall, property,
-            typeAdapters.get(property.typeAdapter));
-      } else {
-        final TypeName typeName = Parcelables.getTypeNameFromProperty(property, typeUtils);
-        requiresSuppressWarnings |= Parcelables.isTypeRequiresSuppressWarnings(property.type);
-        Parcelables.readValue(typeUtils, ctorCall, property, typeName, autoValueType);
-      }
+      requiresSuppressWarnings |= readProperty(analysis, ctorCall, property, autoValueType,
+          typeAdapters, members, header, varInts, byteBuffer);
 
       if (i < n - 1) ctorCall.add(",");
       ctorCall.add("\n");
     }
     ctorCall.unindent().unindent();
     ctorCall.add(");\n");
+    endRead(ctorCall, properties);
 
     MethodSpec.Builder createFromParcel = MethodSpec.methodBuilder("createFromParcel")
         .addAnnotation(Override.class);
@@ -455,8 +858,69 @@ public final class AutoValueParcelExtension extends AutoValueExtension {
         .build();
   }
 
-  MethodSpec generateWriteToParcel(ProcessingEnvironment env, List<Property> properties,
-      Map<TypeMirror, FieldSpec> typeAdapters) {
+  /**
+   * Adds the statements that come before the first property is read from {@code in}: skipping
+   * the offset table, opening the string table and reading the packed regions.
+   */
+  private static void beginRead(CodeBlock.Builder block, List<Property> properties,
+      VarIntRegion varInts, ByteBufferRegion byteBuffer, OffsetTable offsets) {
+    block.add(offsets.skip());
+    if (usesStringTable(properties)) {
+      block.addStatement("$T $L = $T.begin(in)", Parcelables.STRING_TABLE,
+          Parcelables.STRING_TABLE_LOCAL, Parcelables.STRING_TABLE);
+      block.beginControlFlow("try");
+    }
+    block.add(byteBuffer.read());
+    block.add(varInts.read());
+  }
+
+  /**
+   * Closes the string table opened by {@link #beginRead}, if there is one.
+   */
+  private static void endRead(CodeBlock.Builder block, List<Property> properties) {
+    if (usesStringTable(properties)) {
+      block.nextControlFlow("finally");
+      block.addStatement("$L.end()", Parcelables.STRING_TABLE_LOCAL);
+      block.endControlFlow();
+    }
+  }
+
+  /**
+   * Adds the expression that reads {@code property} from {@code in}, and returns true if it
+   * needs unchecked warnings to be suppressed.
+   */
+  private static boolean readProperty(TypeAnalysis analysis, CodeBlock.Builder block,
+      Property property, TypeName autoValueType, TypeAdapterFields typeAdapters,
+      GeneratedMembers members, PackedHeader header, VarIntRegion varInts,
+      ByteBufferRegion byteBuffer) {
+    if (header.contains(property)) {
+      block.add(header.readValue(property));
+    } else if (byteBuffer.contains(property)) {
+      block.add(byteBuffer.readValue(property));
+    } else if (varInts.contains(property)) {
+      block.add(varInts.readValue(property));
+    } else if (property.typeAdapter != null && typeAdapters.contains(property.typeAdapter)) {
+      Parcelables.readValueWithTypeAdapter(block, property,
+          typeAdapters.get(property.typeAdapter), header);
+    } else {
+      final TypeName typeName = Parcelables.getTypeNameFromProperty(property, analysis);
+      if (property.sharesStringTable) {
+        block.add("$L.share().unshare(", Parcelables.STRING_TABLE_LOCAL);
+      }
+      Parcelables.readValue(analysis, block, property, typeName, autoValueType, members,
+          header);
+      if (property.sharesStringTable) {
+        block.add(")");
+      }
+      return Parcelables.isTypeRequiresSuppressWarnings(property.type);
+    }
+    return false;
+  }
+
+  MethodSpec generateWriteToParcel(ProcessingEnvironment env, TypeName autoValueType,
+      List<Property> properties, TypeAdapterFields typeAdapters, GeneratedMembers members,
+      PackedHeader header, VarIntRegion varInts, ByteBufferRegion byteBuffer,
+      OffsetTable offsets) {
     ParameterSpec dest = ParameterSpec
         .builder(ClassName.get("android.os", "Parcel"), "dest")
         .build();
@@ -467,49 +931,85 @@ public final class AutoValueParcelExtension extends AutoValueExtension {
         .addParameter(dest)
         .addParameter(flags);
 
-    Types typeUtils = env.getTypeUtils();
+    builder.addCode(offsets.writeStart(dest));
+    boolean stringTable = usesStringTable(properties);
+    if (stringTable) {
+      builder.addStatement("$T $L = $T.begin($N)", Parcelables.STRING_TABLE,
+          Parcelables.STRING_TABLE_LOCAL, Parcelables.STRING_TABLE, dest);
+      builder.beginControlFlow("try");
+    }
+    builder.addCode(byteBuffer.write(dest));
+    builder.addCode(varInts.write(dest));
+
+    TypeAnalysis analysis = typeAnalysis(env);
     for (Property p : properties) {
-      if (p.typeAdapter != null && typeAdapters.containsKey(p.typeAdapter)) {
-        FieldSpec typeAdapter = typeAdapters.get(p.typeAdapter);
-        builder.addCode(Parcelables.writeValueWithTypeAdapter(typeAdapter, p, dest));
+      if (header.contains(p) || varInts.contains(p) || byteBuffer.contains(p)) {
+        continue;
+      }
+      if (offsets.contains(p)) {
+        builder.addCode(offsets.writeOffset(p, dest));
+      }
+      if (p.typeAdapter != null && typeAdapters.contains(p.typeAdapter)) {
+        CodeBlock typeAdapter = typeAdapters.get(p.typeAdapter);
+        builder.addCode(Parcelables.writeValueWithTypeAdapter(typeAdapter, p, dest, header));
+      } else if (p.sharesStringTable) {
+        builder.addStatement("$L.share()", Parcelables.STRING_TABLE_LOCAL);
+        builder.addCode(Parcelables.writeValue(analysis, p, dest, flags, autoValueType, members,
+            header));
+        builder.addStatement("$L.unshare()", Parcelables.STRING_TABLE_LOCAL);
       } else {
-        builder.addCode(Parcelables.writeValue(typeUtils, p, dest, flags));
+        builder.addCode(Parcelables.writeValue(analysis, p, dest, flags, autoValueType, members,
+            header));
       }
     }
+    builder.addCode(offsets.writeEnd(dest));
+    if (stringTable) {
+      builder.nextControlFlow("finally");
+      builder.addStatement("$L.end()", Parcelables.STRING_TABLE_LOCAL);
+      builder.endControlFlow();
+    }
 
     return builder.build();
   }
 
+  private static boolean usesStringTable(List<Property> properties) {
+    for (Property property : properties) {
+      if (property.stringTable || property.sharesStringTable) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   private static AnnotationSpec createSuppressUncheckedWarningAnnotation() {
     return AnnotationSpec.builder(SuppressWarnings.class)
       .addMember("value", "\"unchecked\"")
       .addMember("value", "\"rawtypes\"")
       .build();
   }
-  private ImmutableMap<TypeMirror, FieldSpec> getTypeAdapters(List<Property> properties) {
-    Map<TypeMirror, FieldSpec> typeAdapters = new LinkedHashMap<>();
-    NameAllocator nameAllocator = new NameAllocator();
-    nameAllocator.newName("CREATOR");
+  /**
+   * Returns true if any of {@code properties} may be written to shared memory, whose file
+   * descriptor is written into the Parcel.
+   */
+  private static boolean usesBlobs(List<Property> properties) {
     for (Property property : properties) {
-      if (property.typeAdapter != null && !typeAdapters.containsKey(property.typeAdapter)) {
-        ClassName typeName = (ClassName) TypeName.get(property.typeAdapter);
-        String name = CaseFormat.LOWER_CAMEL.to(CaseFormat.UPPER_UNDERSCORE, typeName.simpleName());
-        name = nameAllocator.newName(name, typeName);
-
-        typeAdapters.put(property.typeAdapter, FieldSpec.builder(
-            typeName, NameAllocator.toJavaIdentifier(name), PRIVATE, STATIC, FINAL)
-            .initializer("new $T()", typeName).build());
+      if (property.blobThreshold >= 0) {
+        return true;
       }
     }
-    return ImmutableMap.copyOf(typeAdapters);
+    return false;
   }
 
-  MethodSpec generateDescribeContents() {
-    return MethodSpec.methodBuilder("describeContents")
+  MethodSpec generateDescribeContents(boolean fileDescriptors) {
+    MethodSpec.Builder builder = MethodSpec.methodBuilder("describeContents")
         .addAnnotation(Override.class)
         .addModifiers(PUBLIC)
-        .returns(int.class)
-        .addStatement("return 0")
-        .build();
+        .returns(int.class);
+    if (fileDescriptors) {
+      builder.addStatement("return $T.CONTENTS_FILE_DESCRIPTOR", Parcelables.PARCELABLE);
+    } else {
+      builder.addStatement("return 0");
+    }
+    return builder.build();
   }
 }
@@ -0,0 +1,121 @@
+package com.ryanharter.auto.value.parcel;
+
+import com.squareup.javapoet.ArrayTypeName;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.TypeName;
+import java.nio.ByteBuffer;
+
+import static javax.lang.model.element.Modifier.PRIVATE;
+import static javax.lang.model.element.Modifier.STATIC;
+
+/**
+ * Generates the helper methods for {@code byte[]} properties annotated with {@code ParcelBlob},
+ * which move arrays above the property's threshold through {@code android.os.SharedMemory}.
+ *
+ * <p>{@code Parcel.writeBlob} does the same for the platform, but it isn't part of the public
+ * SDK.  Each array is preceded by an int: -1 for null, 0 for an inline array, or 1 for shared
+ * memory, so blob properties don't need a separate null marker.
+ */
+final class Blobs {
+
+  private static final ClassName PARCEL = ClassName.get("android.os", "Parcel");
+  private static final ClassName BUILD = ClassName.get("android.os", "Build");
+  private static final ClassName SHARED_MEMORY = ClassName.get("android.os", "SharedMemory");
+  private static final ClassName ERRNO_EXCEPTION =
+      ClassName.get("android.system", "ErrnoException");
+  private static final ClassName BYTE_BUFFER = ClassName.get(ByteBuffer.class);
+  private static final TypeName BYTE_ARRAY = ArrayTypeName.of(byte.class);
+
+  private Blobs() {
+  }
+
+  /**
+   * Returns the method that writes a blob, taking the Parcel, the array, the threshold and the
+   * flags.
+   */
+  static MethodSpec writer(GeneratedMembers members) {
+    return members.method("writeBlob", "writeBlob", Blobs::generateWriter);
+  }
+
+  /**
+   * Returns the method that reads a blob written by {@link #writer}, taking the Parcel.
+   */
+  static MethodSpec reader(GeneratedMembers members) {
+    return members.method("readBlob", "readBlob", Blobs::generateReader);
+  }
+
+  private static MethodSpec generateWriter(String name) {
+    ParameterSpec out = ParameterSpec.builder(PARCEL, "dest").build();
+    ParameterSpec value = ParameterSpec.builder(BYTE_ARRAY, "value").build();
+    return MethodSpec.methodBuilder(name)
+        .addModifiers(PRIVATE, STATIC)
+        .addParameter(out)
+        .addParameter(value)
+        .addParameter(int.class, "threshold")
+        .addParameter(int.class, "flags")
+        .beginControlFlow("if ($N == null)", value)
+        .addStatement("$N.writeInt(-1)", out)
+        .nextControlFlow("else if ($N.length <= threshold || $T.VERSION.SDK_INT < $T.VERSION_CODES.O_MR1)",
+            value, BUILD, BUILD)
+        .addStatement("$N.writeInt(0)", out)
+        .addStatement("$N.writeByteArray($N)", out, value)
+        .nextControlFlow("else")
+        .addStatement("$T memory", SHARED_MEMORY)
+        .beginControlFlow("try")
+        .addStatement("memory = $T.create(null, $N.length)", SHARED_MEMORY, value)
+        .nextControlFlow("catch ($T e)", ERRNO_EXCEPTION)
+        .addStatement("throw new $T(e)", IllegalStateException.class)
+        .endControlFlow()
+        // Close the region whatever happens, the Parcel holds its own duplicate of the file
+        // descriptor once it's written.
+        .beginControlFlow("try")
+        .addStatement("$T buffer = memory.mapReadWrite()", BYTE_BUFFER)
+        .beginControlFlow("try")
+        .addStatement("buffer.put($N)", value)
+        .nextControlFlow("finally")
+        .addStatement("$T.unmap(buffer)", SHARED_MEMORY)
+        .endControlFlow()
+        .addStatement("$N.writeInt(1)", out)
+        .addStatement("memory.writeToParcel($N, flags)", out)
+        .nextControlFlow("catch ($T e)", ERRNO_EXCEPTION)
+        .addStatement("throw new $T(e)", IllegalStateException.class)
+        .nextControlFlow("finally")
+        .addStatement("memory.close()")
+        .endControlFlow()
+        .endControlFlow()
+        .build();
+  }
+
+  private static MethodSpec generateReader(String name) {
+    ParameterSpec in = ParameterSpec.builder(PARCEL, "in").build();
+    return MethodSpec.methodBuilder(name)
+        .addModifiers(PRIVATE, STATIC)
+        .returns(BYTE_ARRAY)
+        .addParameter(in)
+        .addStatement("int kind = $N.readInt()", in)
+        .beginControlFlow("if (kind < 0)")
+        .addStatement("return null")
+        .nextControlFlow("else if (kind == 0)")
+        .addStatement("return $N.createByteArray()", in)
+        .endControlFlow()
+        .addStatement("$T memory = $T.CREATOR.createFromParcel($N)", SHARED_MEMORY, SHARED_MEMORY,
+            in)
+        .beginControlFlow("try")
+        .addStatement("$T buffer = memory.mapReadOnly()", BYTE_BUFFER)
+        .beginControlFlow("try")
+        .addStatement("byte[] value = new byte[buffer.remaining()]")
+        .addStatement("buffer.get(value)")
+        .addStatement("return value")
+        .nextControlFlow("finally")
+        .addStatement("$T.unmap(buffer)", SHARED_MEMORY)
+        .endControlFlow()
+        .nextControlFlow("catch ($T e)", ERRNO_EXCEPTION)
+        .addStatement("throw new $T(e)", IllegalStateException.class)
+        .nextControlFlow("finally")
+        .addStatement("memory.close()")
+        .endControlFlow()
+        .build();
+  }
+}
@@ -0,0 +1,242 @@
+package com.ryanharter.auto.value.parcel;
+
+import com.google.common.collect.ImmutableList;
+import com.ryanharter.auto.value.parcel.AutoValueParcelExtension.Property;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PRIVATE;
+import static javax.lang.model.element.Modifier.PROTECTED;
+import static javax.lang.model.element.Modifier.STATIC;
+
+/**
+ * Puts the packed header words and the non-null primitive properties of a class annotated with
+ * {@code ParcelByteBuffer} into a single {@code ByteBuffer}, which is written with one
+ * {@code writeByteArray} call instead of one {@code Parcel} call per value.
+ *
+ * <p>The buffer always has the same size, so each thread reuses a single one, which is filled and
+ * written, or read into with {@code readByteArray} and decoded into locals, before any other
+ * property is written or read.  Nullable and variable size properties keep being written to the
+ * Parcel after the buffer.  When the class isn't annotated, or it has nothing to put in the
+ * buffer, the header is written to the Parcel as usual.
+ */
+final class ByteBufferRegion {
+
+  private static final ClassName BYTE_BUFFER = ClassName.get(ByteBuffer.class);
+  private static final String BUFFER = "buffer";
+  private static final String VALUE = "buffered";
+
+  private final PackedHeader header;
+  private final ImmutableList<Property> properties;
+  private final boolean enabled;
+  private final GeneratedMembers members;
+
+  private ByteBufferRegion(PackedHeader header, List<Property> properties, boolean enabled,
+      GeneratedMembers members) {
+    this.header = header;
+    this.properties = ImmutableList.copyOf(properties);
+    this.enabled = enabled;
+    this.members = members;
+  }
+
+  /**
+   * Creates the region for {@code properties}, leaving out the ones that are already stored in
+   * {@code header} or {@code varInts}.
+   */
+  static ByteBufferRegion create(List<Property> properties, PackedHeader header,
+      VarIntRegion varInts, boolean byteBuffer, GeneratedMembers members) {
+    ImmutableList.Builder<Property> fixedWidth = ImmutableList.builder();
+    if (byteBuffer) {
+      for (Property property : properties) {
+        if (!header.contains(property) && !varInts.contains(property)
+            && size(property) > 0) {
+          fixedWidth.add(property);
+        }
+      }
+    }
+    ImmutableList<Property> buffered = fixedWidth.build();
+    return new ByteBufferRegion(header, buffered,
+        byteBuffer && (!buffered.isEmpty() || header.byteCount() > 0), members);
+  }
+
+  /**
+   * Returns the number of bytes {@code property} takes in the buffer, or 0 if it can't be put in
+   * the buffer.
+   */
+  private static int size(Property property) {
+    if (property.typeAdapter != null) {
+      return 0;
+    }
+    TypeName type = property.type.withoutAnnotations();
+    if (type.isBoxedPrimitive()) {
+      if (property.nullable()) {
+        return 0;
+      }
+      type = type.unbox();
+    }
+    if (type.equals(TypeName.BOOLEAN) || type.equals(TypeName.BYTE)) {
+      return Byte.BYTES;
+    } else if (type.equals(TypeName.SHORT)) {
+      return Short.BYTES;
+    } else if (type.equals(TypeName.CHAR)) {
+      return Character.BYTES;
+    } else if (type.equals(TypeName.INT)) {
+      return Integer.BYTES;
+    } else if (type.equals(TypeName.LONG)) {
+      return Long.BYTES;
+    } else if (type.equals(TypeName.FLOAT)) {
+      return Float.BYTES;
+    } else if (type.equals(TypeName.DOUBLE)) {
+      return Double.BYTES;
+    }
+    return 0;
+  }
+
+  private static TypeName primitiveType(Property property) {
+    TypeName type = property.type.withoutAnnotations();
+    return type.isBoxedPrimitive() ? type.unbox() : type;
+  }
+
+  /**
+   * Returns true if the value of {@code property} is stored in the buffer.
+   */
+  boolean contains(Property property) {
+    return properties.contains(property);
+  }
+
+  /**
+   * Returns the statements that write the header and the buffered properties to {@code out}.
+   */
+  CodeBlock write(ParameterSpec out) {
+    if (!enabled) {
+      return header.write(out);
+    }
+    CodeBlock.Builder block = CodeBlock.builder();
+    block.addStatement("$T $L = $N.get()", BYTE_BUFFER, BUFFER, threadBuffer());
+    block.addStatement("$L.clear()", BUFFER);
+    block.add(header.put(BUFFER));
+    for (Property property : properties) {
+      block.addStatement("$L.$L", BUFFER, put(property));
+    }
+    block.addStatement("$N.writeByteArray($L.array())", out, BUFFER);
+    return block.build();
+  }
+
+  /**
+   * Returns the number of bytes {@link #write} writes to the Parcel.
+   */
+  int byteCount() {
+    if (!enabled) {
+      return header.byteCount();
+    }
+    // writeByteArray writes the length, and pads the bytes to a multiple of four.
+    return Integer.BYTES + ((bufferSize() + 3) & ~3);
+  }
+
+  private int bufferSize() {
+    int size = header.byteCount();
+    for (Property property : properties) {
+      size += size(property);
+    }
+    return size;
+  }
+
+  private static CodeBlock put(Property property) {
+    TypeName type = primitiveType(property);
+    String name = property.methodName;
+    if (type.equals(TypeName.BOOLEAN)) {
+      return CodeBlock.of("put((byte) ($N() ? 1 : 0))", name);
+    } else if (type.equals(TypeName.BYTE)) {
+      return CodeBlock.of("put($N())", name);
+    } else if (type.equals(TypeName.SHORT)) {
+      return CodeBlock.of("putShort($N())", name);
+    } else if (type.equals(TypeName.CHAR)) {
+      return CodeBlock.of("putChar($N())", name);
+    } else if (type.equals(TypeName.INT)) {
+      return CodeBlock.of("putInt($N())", name);
+    } else if (type.equals(TypeName.LONG)) {
+      return CodeBlock.of("putLong($N())", name);
+    } else if (type.equals(TypeName.FLOAT)) {
+      return CodeBlock.of("putFloat($N())", name);
+    }
+    return CodeBlock.of("putDouble($N())", name);
+  }
+
+  /**
+   * Returns the {@code ThreadLocal} field that holds each thread's buffer.
+   */
+  private FieldSpec threadBuffer() {
+    TypeName type = ParameterizedTypeName.get(ClassName.get(ThreadLocal.class), BYTE_BUFFER);
+    return members.field(BYTE_BUFFER, "BUFFER", name -> FieldSpec
+        .builder(type, name, PRIVATE, STATIC, FINAL)
+        .initializer("$L", TypeSpec.anonymousClassBuilder("")
+            .superclass(type)
+            .addMethod(MethodSpec.methodBuilder("initialValue")
+                .addAnnotation(Override.class)
+                .addModifiers(PROTECTED)
+                .returns(BYTE_BUFFER)
+                .addStatement("return $T.allocate($L)", BYTE_BUFFER, bufferSize())
+                .build())
+            .build())
+        .build());
+  }
+
+  /**
+   * Returns the statements that read the header, and the buffer if there is one, from
+   * {@code in} into locals.
+   */
+  CodeBlock read() {
+    if (!enabled) {
+      return header.read();
+    }
+    CodeBlock.Builder block = CodeBlock.builder()
+        .addStatement("$T $L = $N.get()", BYTE_BUFFER, BUFFER, threadBuffer())
+        .addStatement("in.readByteArray($L.array())", BUFFER)
+        .addStatement("$L.clear()", BUFFER)
+        .add(header.get(BUFFER));
+    // Nested values of the same class are read into the same buffer, so everything is taken out
+    // of it before they are.
+    for (int i = 0; i < properties.size(); i++) {
+      Property property = properties.get(i);
+      block.addStatement("$T $L = $L", primitiveType(property), VALUE + i, get(property));
+    }
+    return block.build();
+  }
+
+  /**
+   * Returns the expression for the value of {@code property}, from the locals declared by
+   * {@link #read()}.
+   */
+  CodeBlock readValue(Property property) {
+    return CodeBlock.of("$L", VALUE + properties.indexOf(property));
+  }
+
+  private static CodeBlock get(Property property) {
+    TypeName type = primitiveType(property);
+    if (type.equals(TypeName.BOOLEAN)) {
+      return CodeBlock.of("$L.get() != 0", BUFFER);
+    } else if (type.equals(TypeName.BYTE)) {
+      return CodeBlock.of("$L.get()", BUFFER);
+    } else if (type.equals(TypeName.SHORT)) {
+      return CodeBlock.of("$L.getShort()", BUFFER);
+    } else if (type.equals(TypeName.CHAR)) {
+      return CodeBlock.of("$L.getChar()", BUFFER);
+    } else if (type.equals(TypeName.INT)) {
+      return CodeBlock.of("$L.getInt()", BUFFER);
+    } else if (type.equals(TypeName.LONG)) {
+      return CodeBlock.of("$L.getLong()", BUFFER);
+    } else if (type.equals(TypeName.FLOAT)) {
+      return CodeBlock.of("$L.getFloat()", BUFFER);
+    }
+    return CodeBlock.of("$L.getDouble()", BUFFER);
+  }
+}
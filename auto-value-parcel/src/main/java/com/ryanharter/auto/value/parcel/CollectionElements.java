@@ -0,0 +1,208 @@
+package com.ryanharter.auto.value.parcel;
+
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+
+/**
+ * Reads and writes the elements of collections whose element type is known statically, using the
+ * matching {@code Parcel} methods instead of {@code writeValue}, which writes a type tag, and a
+ * class name for Parcelables, before every element.
+ *
+ * <p>Elements that are themselves immutable collections go through the {@link
+ * ImmutableCollections} helpers, since {@code readValue} would return an {@code ArrayList} or
+ * {@code HashMap} for them.  Immutable collections those helpers don't support can't be elements
+ * here at all, see {@link #supports}.
+ */
+final class CollectionElements {
+
+  private static final String GUAVA_COLLECT_PACKAGE =
+      ((ClassName) Parcelables.IMMUTABLE_COLLECTION).packageName();
+
+  private CollectionElements() {
+  }
+
+  /**
+   * Returns the expression that reads an element of {@code type} written by {@link #write}.
+   */
+  static CodeBlock read(TypeAnalysis analysis, TypeMirror type, ParameterSpec in,
+      TypeName autoValueType, GeneratedMembers members) {
+    TypeName typeName = TypeName.get(type);
+    if (typeName.equals(Parcelables.STRING)) {
+      return CodeBlock.of("$N.readString()", in);
+    } else if (typeName.equals(TypeName.INT.box())) {
+      return CodeBlock.of("$N.readInt()", in);
+    } else if (typeName.equals(TypeName.LONG.box())) {
+      return CodeBlock.of("$N.readLong()", in);
+    } else if (typeName.equals(TypeName.FLOAT.box())) {
+      return CodeBlock.of("$N.readFloat()", in);
+    } else if (typeName.equals(TypeName.DOUBLE.box())) {
+      return CodeBlock.of("$N.readDouble()", in);
+    } else if (typeName.equals(TypeName.BOOLEAN.box())) {
+      return CodeBlock.of("$N.readInt() == 1", in);
+    }
+    MethodSpec reader = ImmutableCollections.reader(analysis, type, autoValueType, members);
+    if (reader != null) {
+      return CodeBlock.of("$N($N)", reader, in);
+    }
+    ClassName creatorOwner = Parcelables.findCreatorOwner(analysis, type, packageOf(autoValueType));
+    if (creatorOwner != null) {
+      return CodeBlock.of("$T.CREATOR.createFromParcel($N)", creatorOwner, in);
+    } else if (typeName.equals(TypeName.OBJECT)) {
+      return CodeBlock.of("$N.readValue($T.class.getClassLoader())", in, autoValueType);
+    }
+    return CodeBlock.of("($T) $N.readValue($T.class.getClassLoader())", typeName, in,
+        autoValueType);
+  }
+
+  /**
+   * Returns the statement that writes {@code element}, which mustn't be null, to {@code out}.
+   */
+  static CodeBlock write(TypeAnalysis analysis, TypeMirror type, CodeBlock element,
+      ParameterSpec out, ParameterSpec flags, TypeName autoValueType, GeneratedMembers members) {
+    TypeName typeName = TypeName.get(type);
+    MethodSpec writer = ImmutableCollections.writer(analysis, type, autoValueType, members);
+    if (typeName.equals(Parcelables.STRING)) {
+      return CodeBlock.of("$N.writeString($L);\n", out, element);
+    } else if (typeName.equals(TypeName.INT.box())) {
+      return CodeBlock.of("$N.writeInt($L);\n", out, element);
+    } else if (typeName.equals(TypeName.LONG.box())) {
+      return CodeBlock.of("$N.writeLong($L);\n", out, element);
+    } else if (typeName.equals(TypeName.FLOAT.box())) {
+      return CodeBlock.of("$N.writeFloat($L);\n", out, element);
+    } else if (typeName.equals(TypeName.DOUBLE.box())) {
+      return CodeBlock.of("$N.writeDouble($L);\n", out, element);
+    } else if (typeName.equals(TypeName.BOOLEAN.box())) {
+      return CodeBlock.of("$N.writeInt($L ? 1 : 0);\n", out, element);
+    } else if (writer != null) {
+      return CodeBlock.of("$N($L, $N, $N);\n", writer, element, out, flags);
+    } else if (Parcelables.findCreatorOwner(analysis, type, packageOf(autoValueType)) != null) {
+      return CodeBlock.of("$L.writeToParcel($N, $N);\n", element, out, flags);
+    }
+    return CodeBlock.of("$N.writeValue($L);\n", out, element);
+  }
+
+  /**
+   * Returns the expression for the number of bytes {@link #write} writes for {@code element}.
+   */
+  static CodeBlock size(TypeAnalysis analysis, TypeMirror type, CodeBlock element,
+      TypeName autoValueType, GeneratedMembers members) {
+    TypeName typeName = TypeName.get(type);
+    MethodSpec sizer = ImmutableCollections.sizer(analysis, type, autoValueType, members);
+    if (typeName.equals(Parcelables.STRING)) {
+      return CodeBlock.of("$T.string($L)", SizeEstimate.PARCEL_SIZES, element);
+    } else if (typeName.equals(TypeName.INT.box()) || typeName.equals(TypeName.FLOAT.box())
+        || typeName.equals(TypeName.BOOLEAN.box())) {
+      return CodeBlock.of("$L", Integer.BYTES);
+    } else if (typeName.equals(TypeName.LONG.box()) || typeName.equals(TypeName.DOUBLE.box())) {
+      return CodeBlock.of("$L", Long.BYTES);
+    } else if (sizer != null) {
+      return CodeBlock.of("$N($L)", sizer, element);
+    } else if (Parcelables.findCreatorOwner(analysis, type, packageOf(autoValueType)) != null) {
+      return CodeBlock.of("$T.parcelable($L)", SizeEstimate.PARCEL_SIZES, element);
+    }
+    return CodeBlock.of("$T.value($L)", SizeEstimate.PARCEL_SIZES, element);
+  }
+
+  /**
+   * Like {@link #read}, for elements written by {@link #writeNullable}.
+   */
+  static CodeBlock readNullable(TypeAnalysis analysis, TypeMirror type, ParameterSpec in,
+      TypeName autoValueType, GeneratedMembers members) {
+    CodeBlock read = read(analysis, type, in, autoValueType, members);
+    if (handlesNull(analysis, type, autoValueType)) {
+      return read;
+    }
+    return CodeBlock.of("$N.readInt() == 0 ? $L : null", in, read);
+  }
+
+  /**
+   * Like {@link #write}, but {@code element} may be null.  Types that don't handle null
+   * themselves are preceded by a null marker, like nullable properties.
+   */
+  static CodeBlock writeNullable(TypeAnalysis analysis, TypeMirror type, CodeBlock element,
+      ParameterSpec out, ParameterSpec flags, TypeName autoValueType, GeneratedMembers members) {
+    CodeBlock write = write(analysis, type, element, out, flags, autoValueType, members);
+    if (handlesNull(analysis, type, autoValueType)) {
+      return write;
+    }
+    return CodeBlock.builder()
+        .beginControlFlow("if ($L == null)", element)
+        .addStatement("$N.writeInt(1)", out)
+        .nextControlFlow("else")
+        .addStatement("$N.writeInt(0)", out)
+        .add(write)
+        .endControlFlow()
+        .build();
+  }
+
+  /**
+   * Like {@link #size}, for elements written by {@link #writeNullable}.
+   */
+  static CodeBlock sizeNullable(TypeAnalysis analysis, TypeMirror type, CodeBlock element,
+      TypeName autoValueType, GeneratedMembers members) {
+    CodeBlock size = size(analysis, type, element, autoValueType, members);
+    if (handlesNull(analysis, type, autoValueType)) {
+      return size;
+    }
+    return CodeBlock.of("($L == null ? $L : $L + $L)", element, Integer.BYTES, Integer.BYTES,
+        size);
+  }
+
+  /**
+   * Returns true if reading an element of {@code type} needs an unchecked cast.
+   */
+  static boolean needsUncheckedCast(TypeAnalysis analysis, TypeMirror type,
+      TypeName autoValueType) {
+    return TypeName.get(type) instanceof ParameterizedTypeName
+        && !ImmutableCollections.supports(type)
+        && Parcelables.findCreatorOwner(analysis, type, packageOf(autoValueType)) == null;
+  }
+
+  /**
+   * Returns false if {@code type} is one of Guava's immutable types that the {@link
+   * ImmutableCollections} helpers can't read, which {@code readValue} would return as a mutable
+   * collection.  Collections of such elements have to be read some other way.
+   */
+  static boolean supports(TypeMirror type) {
+    if (type.getKind() != TypeKind.DECLARED) {
+      return true;
+    }
+    ClassName rawType = ClassName.get((TypeElement) ((DeclaredType) type).asElement());
+    return !rawType.packageName().equals(GUAVA_COLLECT_PACKAGE)
+        || !rawType.simpleName().startsWith("Immutable")
+        || ImmutableCollections.supports(type);
+  }
+
+  /**
+   * Strings and values written with {@code writeValue} can be null without a marker.
+   */
+  private static boolean handlesNull(TypeAnalysis analysis, TypeMirror type,
+      TypeName autoValueType) {
+    TypeName typeName = TypeName.get(type);
+    if (typeName.equals(Parcelables.STRING)) {
+      return true;
+    }
+    if (ImmutableCollections.supports(type)) {
+      return false;
+    }
+    if (typeName.isBoxedPrimitive()) {
+      TypeName unboxed = typeName.unbox();
+      return !unboxed.equals(TypeName.INT) && !unboxed.equals(TypeName.LONG)
+          && !unboxed.equals(TypeName.FLOAT) && !unboxed.equals(TypeName.DOUBLE)
+          && !unboxed.equals(TypeName.BOOLEAN);
+    }
+    return Parcelables.findCreatorOwner(analysis, type, packageOf(autoValueType)) == null;
+  }
+
+  private static String packageOf(TypeName autoValueType) {
+    return ((ClassName) autoValueType).packageName();
+  }
+}
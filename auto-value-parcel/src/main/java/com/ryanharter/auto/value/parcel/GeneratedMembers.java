@@ -0,0 +1,58 @@
+package com.ryanharter.auto.value.parcel;
+
+import com.google.common.collect.ImmutableList;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.NameAllocator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Collects the private static fields and methods that generated read and write code relies on,
+ * so each one is only emitted once per generated class, no matter how many properties use it.
+ */
+final class GeneratedMembers {
+
+  private final NameAllocator nameAllocator;
+  private final Map<Object, FieldSpec> fields = new LinkedHashMap<>();
+  private final Map<Object, MethodSpec> methods = new LinkedHashMap<>();
+
+  GeneratedMembers(NameAllocator nameAllocator) {
+    this.nameAllocator = nameAllocator;
+  }
+
+  /**
+   * Returns the field registered for {@code key}, creating it with {@code factory} and a unique
+   * name based on {@code suggestedName} the first time it's requested.
+   */
+  FieldSpec field(Object key, String suggestedName, Function<String, FieldSpec> factory) {
+    FieldSpec field = fields.get(key);
+    if (field == null) {
+      field = factory.apply(nameAllocator.newName(suggestedName));
+      fields.put(key, field);
+    }
+    return field;
+  }
+
+  /**
+   * Returns the method registered for {@code key}, creating it with {@code factory} and a unique
+   * name based on {@code suggestedName} the first time it's requested.
+   */
+  MethodSpec method(Object key, String suggestedName, Function<String, MethodSpec> factory) {
+    MethodSpec method = methods.get(key);
+    if (method == null) {
+      method = factory.apply(nameAllocator.newName(suggestedName));
+      methods.put(key, method);
+    }
+    return method;
+  }
+
+  ImmutableList<FieldSpec> fields() {
+    return ImmutableList.copyOf(fields.values());
+  }
+
+  ImmutableList<MethodSpec> methods() {
+    return ImmutableList.copyOf(methods.values());
+  }
+}
@@ -0,0 +1,273 @@
+package com.ryanharter.auto.value.parcel;
+
+import com.google.common.collect.ImmutableSet;
+import com.ryanharter.auto.value.parcel.AutoValueParcelExtension.Property;
+import com.squareup.javapoet.AnnotationSpec;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+
+import static javax.lang.model.element.Modifier.PRIVATE;
+import static javax.lang.model.element.Modifier.STATIC;
+
+/**
+ * Generates the helper methods that write Guava's immutable collections as a size followed by
+ * their elements, and read them straight into a builder presized with
+ * {@code builderWithExpectedSize}, instead of copying a temporary {@code ArrayList} or
+ * {@code HashMap}.
+ *
+ * <p>Only the collection types that have {@code builderWithExpectedSize} are supported, and only
+ * when their type arguments are concrete types.  Immutable collections never contain null, so
+ * elements are written with {@link CollectionElements#write}, without null markers.  Elements that
+ * are supported immutable collections themselves use these helpers too.
+ */
+final class ImmutableCollections {
+
+  private static final ClassName PARCEL = ClassName.get("android.os", "Parcel");
+  private static final ClassName IMMUTABLE_LIST = guavaClass("ImmutableList");
+  private static final ClassName IMMUTABLE_SET = guavaClass("ImmutableSet");
+  private static final ClassName IMMUTABLE_MAP = guavaClass("ImmutableMap");
+  private static final ClassName IMMUTABLE_BI_MAP = guavaClass("ImmutableBiMap");
+
+  private static final ImmutableSet<ClassName> SIZED_COLLECTIONS =
+      ImmutableSet.of(IMMUTABLE_LIST, IMMUTABLE_SET);
+  private static final ImmutableSet<ClassName> SIZED_MAPS =
+      ImmutableSet.of(IMMUTABLE_MAP, IMMUTABLE_BI_MAP);
+
+  private static ClassName guavaClass(String simpleName) {
+    return ClassName.get(((ClassName) Parcelables.IMMUTABLE_COLLECTION).packageName(), simpleName);
+  }
+
+  private ImmutableCollections() {
+  }
+
+  /**
+   * Returns the method that reads {@code property}, or null if its type isn't supported and it
+   * has to be copied from a temporary collection instead.
+   */
+  static MethodSpec reader(TypeAnalysis analysis, Property property, TypeName autoValueType,
+      GeneratedMembers members) {
+    return reader(analysis, property.typeMirror, autoValueType, members);
+  }
+
+  /**
+   * Like {@link #reader(TypeAnalysis, Property, TypeName, GeneratedMembers)}, for a collection of
+   * {@code type}, such as an element of another collection.
+   */
+  static MethodSpec reader(TypeAnalysis analysis, TypeMirror type, TypeName autoValueType,
+      GeneratedMembers members) {
+    Layout layout = Layout.of(type);
+    if (layout == null) {
+      return null;
+    }
+    return members.method(CodeBlock.of("read $T", layout.type),
+        "read" + layout.rawType.simpleName(),
+        name -> generateReader(name, analysis, layout, autoValueType, members));
+  }
+
+  /**
+   * Returns the method that writes {@code property}, or null if its type isn't supported and it
+   * has to be written as a {@code List} or {@code Map} instead.
+   */
+  static MethodSpec writer(TypeAnalysis analysis, Property property, TypeName autoValueType,
+      GeneratedMembers members) {
+    return writer(analysis, property.typeMirror, autoValueType, members);
+  }
+
+  /**
+   * Like {@link #writer(TypeAnalysis, Property, TypeName, GeneratedMembers)}, for a collection of
+   * {@code type}, such as an element of another collection.
+   */
+  static MethodSpec writer(TypeAnalysis analysis, TypeMirror type, TypeName autoValueType,
+      GeneratedMembers members) {
+    Layout layout = Layout.of(type);
+    if (layout == null) {
+      return null;
+    }
+    return members.method(CodeBlock.of("write $T", layout.type),
+        "write" + layout.rawType.simpleName(),
+        name -> generateWriter(name, analysis, layout, autoValueType, members));
+  }
+
+  /**
+   * Returns the method that works out the number of bytes {@link #writer}'s method writes, or
+   * null if {@code property}'s type isn't supported.
+   */
+  static MethodSpec sizer(TypeAnalysis analysis, Property property, TypeName autoValueType,
+      GeneratedMembers members) {
+    return sizer(analysis, property.typeMirror, autoValueType, members);
+  }
+
+  /**
+   * Like {@link #sizer(TypeAnalysis, Property, TypeName, GeneratedMembers)}, for a collection of
+   * {@code type}, such as an element of another collection.
+   */
+  static MethodSpec sizer(TypeAnalysis analysis, TypeMirror type, TypeName autoValueType,
+      GeneratedMembers members) {
+    Layout layout = Layout.of(type);
+    if (layout == null) {
+      return null;
+    }
+    return members.method(CodeBlock.of("size $T", layout.type),
+        "sizeOf" + layout.rawType.simpleName(),
+        name -> generateSizer(name, analysis, layout, autoValueType, members));
+  }
+
+  /**
+   * Returns true if {@code type} is an immutable collection these helpers can read and write.
+   */
+  static boolean supports(TypeMirror type) {
+    return Layout.of(type) != null;
+  }
+
+  private static MethodSpec generateReader(String name, TypeAnalysis analysis, Layout layout,
+      TypeName autoValueType, GeneratedMembers members) {
+    ParameterSpec in = ParameterSpec.builder(PARCEL, "in").build();
+    List<CodeBlock> reads = new ArrayList<>();
+    boolean unchecked = false;
+    for (TypeMirror argument : layout.arguments) {
+      reads.add(CollectionElements.read(analysis, argument, in, autoValueType, members));
+      unchecked |= CollectionElements.needsUncheckedCast(analysis, argument, autoValueType);
+    }
+
+    MethodSpec.Builder builder = MethodSpec.methodBuilder(name)
+        .addModifiers(PRIVATE, STATIC)
+        .returns(layout.type)
+        .addParameter(in);
+    if (unchecked) {
+      builder.addAnnotation(AnnotationSpec.builder(SuppressWarnings.class)
+          .addMember("value", "$S", "unchecked")
+          .build());
+    }
+    builder.addStatement("int size = $N.readInt()", in)
+        .beginControlFlow("if (size == 0)")
+        .addStatement("return $T.of()", layout.rawType)
+        .endControlFlow()
+        .addStatement("$T builder = $T.builderWithExpectedSize(size)",
+            ParameterizedTypeName.get(layout.rawType.nestedClass("Builder"),
+                layout.argumentNames()),
+            layout.rawType)
+        .beginControlFlow("for (int i = 0; i < size; i++)");
+    if (layout.isMap) {
+      builder.addStatement("builder.put($L, $L)", reads.get(0), reads.get(1));
+    } else {
+      builder.addStatement("builder.add($L)", reads.get(0));
+    }
+    return builder.endControlFlow()
+        .addStatement("return builder.build()")
+        .build();
+  }
+
+  private static MethodSpec generateWriter(String name, TypeAnalysis analysis, Layout layout,
+      TypeName autoValueType, GeneratedMembers members) {
+    ParameterSpec value = ParameterSpec.builder(layout.type, "value").build();
+    ParameterSpec out = ParameterSpec.builder(PARCEL, "dest").build();
+    ParameterSpec flags = ParameterSpec.builder(int.class, "flags").build();
+    TypeName[] argumentNames = layout.argumentNames();
+
+    MethodSpec.Builder builder = MethodSpec.methodBuilder(name)
+        .addModifiers(PRIVATE, STATIC)
+        .addParameter(value)
+        .addParameter(out)
+        .addParameter(flags)
+        .addStatement("$N.writeInt($N.size())", out, value);
+    if (layout.isMap) {
+      builder.beginControlFlow("for ($T entry : $N.entrySet())",
+          ParameterizedTypeName.get(ClassName.get(Map.Entry.class), argumentNames), value)
+          .addCode(CollectionElements.write(analysis, layout.arguments.get(0),
+              CodeBlock.of("entry.getKey()"), out, flags, autoValueType, members))
+          .addCode(CollectionElements.write(analysis, layout.arguments.get(1),
+              CodeBlock.of("entry.getValue()"), out, flags, autoValueType, members));
+    } else {
+      builder.beginControlFlow("for ($T element : $N)", argumentNames[0], value)
+          .addCode(CollectionElements.write(analysis, layout.arguments.get(0),
+              CodeBlock.of("element"), out, flags, autoValueType, members));
+    }
+    return builder.endControlFlow().build();
+  }
+
+  private static MethodSpec generateSizer(String name, TypeAnalysis analysis, Layout layout,
+      TypeName autoValueType, GeneratedMembers members) {
+    ParameterSpec value = ParameterSpec.builder(layout.type, "value").build();
+    TypeName[] argumentNames = layout.argumentNames();
+
+    MethodSpec.Builder builder = MethodSpec.methodBuilder(name)
+        .addModifiers(PRIVATE, STATIC)
+        .returns(int.class)
+        .addParameter(value)
+        .addStatement("int size = $L", Integer.BYTES);
+    if (layout.isMap) {
+      builder.beginControlFlow("for ($T entry : $N.entrySet())",
+          ParameterizedTypeName.get(ClassName.get(Map.Entry.class), argumentNames), value)
+          .addStatement("size += $L", CollectionElements.size(analysis, layout.arguments.get(0),
+              CodeBlock.of("entry.getKey()"), autoValueType, members))
+          .addStatement("size += $L", CollectionElements.size(analysis, layout.arguments.get(1),
+              CodeBlock.of("entry.getValue()"), autoValueType, members));
+    } else {
+      builder.beginControlFlow("for ($T element : $N)", argumentNames[0], value)
+          .addStatement("size += $L", CollectionElements.size(analysis, layout.arguments.get(0),
+              CodeBlock.of("element"), autoValueType, members));
+    }
+    return builder.endControlFlow()
+        .addStatement("return size")
+        .build();
+  }
+
+  /** The raw type and type arguments of a supported immutable collection property. */
+  private static final class Layout {
+    final ClassName rawType;
+    final TypeName type;
+    final List<? extends TypeMirror> arguments;
+    final boolean isMap;
+
+    private Layout(ClassName rawType, TypeName type, List<? extends TypeMirror> arguments,
+        boolean isMap) {
+      this.rawType = rawType;
+      this.type = type;
+      this.arguments = arguments;
+      this.isMap = isMap;
+    }
+
+    static Layout of(TypeMirror type) {
+      if (type.getKind() != TypeKind.DECLARED) {
+        return null;
+      }
+      DeclaredType declaredType = (DeclaredType) type;
+      ClassName rawType = ClassName.get((TypeElement) declaredType.asElement());
+      boolean isMap = SIZED_MAPS.contains(rawType);
+      if (!isMap && !SIZED_COLLECTIONS.contains(rawType)) {
+        return null;
+      }
+      List<? extends TypeMirror> arguments = declaredType.getTypeArguments();
+      if (arguments.isEmpty()) {
+        // Raw types keep being written as a List or Map of values.
+        return null;
+      }
+      for (TypeMirror argument : arguments) {
+        if (argument.getKind() != TypeKind.DECLARED || !CollectionElements.supports(argument)) {
+          return null;
+        }
+      }
+      TypeName[] argumentNames = new TypeName[arguments.size()];
+      for (int i = 0; i < argumentNames.length; i++) {
+        argumentNames[i] = TypeName.get(arguments.get(i));
+      }
+      return new Layout(rawType, ParameterizedTypeName.get(rawType, argumentNames), arguments,
+          isMap);
+    }
+
+    TypeName[] argumentNames() {
+      return ((ParameterizedTypeName) type).typeArguments.toArray(new TypeName[0]);
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package com.ryanharter.auto.value.parcel;
+
+import com.google.common.collect.ImmutableList;
+import com.ryanharter.auto.value.parcel.AutoValueParcelExtension.Property;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.ParameterSpec;
+import java.util.List;
+
+/**
+ * Lays out the table of property offsets that's written at the start of classes annotated with
+ * {@code ParcelReader}, which lets the generated reader class seek straight to a single property.
+ *
+ * <p>The table holds one int per property that's written on its own, relative to the position
+ * the object starts at.  Properties stored in the packed header, the varint region, the byte
+ * buffer or the string table, and nullable properties whose presence bit is in the header, can't
+ * be read without the rest of the object, so they don't get an entry.  The offsets are only known
+ * once the properties have been written, so the table is filled in with zeros first and
+ * overwritten at the end of {@code writeToParcel}.
+ */
+final class OffsetTable {
+
+  private static final String START = "offsetTableStart";
+  private static final String OFFSETS = "offsets";
+  private static final String END = "offsetTableEnd";
+
+  private final ImmutableList<Property> properties;
+
+  private OffsetTable(List<Property> properties) {
+    this.properties = ImmutableList.copyOf(properties);
+  }
+
+  static OffsetTable create(List<Property> properties, PackedHeader header, VarIntRegion varInts,
+      ByteBufferRegion byteBuffer, boolean enabled) {
+    ImmutableList.Builder<Property> entries = ImmutableList.builder();
+    if (enabled) {
+      for (Property property : properties) {
+        if (!header.contains(property) && !header.hasPresenceBit(property)
+            && !varInts.contains(property) && !byteBuffer.contains(property)
+            && !property.stringTable) {
+          entries.add(property);
+        }
+      }
+    }
+    return new OffsetTable(entries.build());
+  }
+
+  /**
+   * Returns the properties that have an entry in the table, in the order they're written.
+   */
+  ImmutableList<Property> properties() {
+    return properties;
+  }
+
+  /**
+   * Returns true if {@code property} has an entry in the table.
+   */
+  boolean contains(Property property) {
+    return properties.contains(property);
+  }
+
+  /**
+   * Returns the position of {@code property}'s entry, relative to the start of the object.
+   */
+  int entryOffset(Property property) {
+    return properties.indexOf(property) * Integer.BYTES;
+  }
+
+  /**
+   * Returns the statements that reserve the table at the start of {@code writeToParcel}.
+   */
+  CodeBlock writeStart(ParameterSpec out) {
+    CodeBlock.Builder block = CodeBlock.builder();
+    if (properties.isEmpty()) {
+      return block.build();
+    }
+    return block.addStatement("int $L = $N.dataPosition()", START, out)
+        .addStatement("int[] $L = new int[$L]", OFFSETS, properties.size())
+        .beginControlFlow("for (int i = 0; i < $L.length; i++)", OFFSETS)
+        .addStatement("$N.writeInt(0)", out)
+        .endControlFlow()
+        .build();
+  }
+
+  /**
+   * Returns the statement that records the offset of {@code property}, right before it's written.
+   */
+  CodeBlock writeOffset(Property property, ParameterSpec out) {
+    return CodeBlock.of("$L[$L] = $N.dataPosition() - $L;\n", OFFSETS,
+        properties.indexOf(property), out, START);
+  }
+
+  /**
+   * Returns the statements that fill in the table once all of the properties are written.
+   */
+  CodeBlock writeEnd(ParameterSpec out) {
+    CodeBlock.Builder block = CodeBlock.builder();
+    if (properties.isEmpty()) {
+      return block.build();
+    }
+    return block.addStatement("int $L = $N.dataPosition()", END, out)
+        .addStatement("$N.setDataPosition($L)", out, START)
+        .beginControlFlow("for (int offset : $L)", OFFSETS)
+        .addStatement("$N.writeInt(offset)", out)
+        .endControlFlow()
+        .addStatement("$N.setDataPosition($L)", out, END)
+        .build();
+  }
+
+  /**
+   * Returns the statement that skips over the table at the start of {@code createFromParcel}.
+   */
+  CodeBlock skip() {
+    CodeBlock.Builder block = CodeBlock.builder();
+    if (properties.isEmpty()) {
+      return block.build();
+    }
+    return block.addStatement("in.setDataPosition(in.dataPosition() + $L)",
+        properties.size() * Integer.BYTES)
+        .build();
+  }
+}
@@ -0,0 +1,283 @@
+package com.ryanharter.auto.value.parcel;
+
+import com.google.common.collect.ImmutableList;
+import com.ryanharter.auto.value.parcel.AutoValueParcelExtension.Property;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.TypeName;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lays out the boolean, byte, short and char properties of a class into as few int or long words
+ * as possible, which are written at the start of the parcel instead of one int per property.
+ * When requested, the header also holds a presence bit for each nullable property, replacing the
+ * int that would otherwise precede it.
+ *
+ * <p>Slots are assigned in property order, and a slot never spans two words.  Each word holds up
+ * to 64 bits, and is written as an int if its slots fit in 32 bits.
+ */
+final class PackedHeader {
+
+  private static final int WORD_SIZE = 64;
+
+  private static final class Word {
+    final String name;
+    int bits;
+
+    Word(String name) {
+      this.name = name;
+    }
+
+    boolean isLong() {
+      return bits > Integer.SIZE;
+    }
+  }
+
+  private static final class Slot {
+    final Property property;
+    final boolean presence;
+    final Word word;
+    final int offset;
+    final TypeName type;
+
+    Slot(Property property, boolean presence, Word word, int offset, TypeName type) {
+      this.property = property;
+      this.presence = presence;
+      this.word = word;
+      this.offset = offset;
+      this.type = type;
+    }
+  }
+
+  private final ImmutableList<Word> words;
+  private final ImmutableList<Slot> slots;
+  private final Map<Property, Slot> values = new LinkedHashMap<>();
+  private final Map<Property, Slot> presence = new LinkedHashMap<>();
+
+  private PackedHeader(List<Word> words, List<Slot> slots) {
+    this.words = ImmutableList.copyOf(words);
+    this.slots = ImmutableList.copyOf(slots);
+    for (Slot slot : slots) {
+      (slot.presence ? presence : values).put(slot.property, slot);
+    }
+  }
+
+  /**
+   * Creates the header for {@code properties}.  If {@code nullBitmap} is true, every property
+   * that would otherwise be preceded by a null marker int gets a presence bit instead.
+   */
+  static PackedHeader create(TypeAnalysis analysis, List<Property> properties, boolean nullBitmap) {
+    int slotCount = 0;
+    for (Property property : properties) {
+      if (nullBitmap && needsPresenceBit(analysis, property)) {
+        slotCount++;
+      }
+      if (width(property) > 0) {
+        slotCount++;
+      }
+    }
+    List<Word> words = new ArrayList<>();
+    List<Slot> slots = new ArrayList<>();
+    // A single slot gains nothing from packing, it would still take a whole int.
+    if (slotCount < 2) {
+      return new PackedHeader(words, slots);
+    }
+
+    Word word = null;
+    for (Property property : properties) {
+      boolean hasPresenceBit = nullBitmap && needsPresenceBit(analysis, property);
+      int width = width(property);
+      if (hasPresenceBit) {
+        if (word == null || word.bits + 1 > WORD_SIZE) {
+          word = new Word("packed" + words.size());
+          words.add(word);
+        }
+        slots.add(new Slot(property, true, word, word.bits, TypeName.BOOLEAN));
+        word.bits += 1;
+      }
+      if (width > 0) {
+        if (word == null || word.bits + width > WORD_SIZE) {
+          word = new Word("packed" + words.size());
+          words.add(word);
+        }
+        slots.add(new Slot(property, false, word, word.bits,
+            property.type.withoutAnnotations().unbox()));
+        word.bits += width;
+      }
+    }
+    return new PackedHeader(words, slots);
+  }
+
+  private static boolean needsPresenceBit(TypeAnalysis analysis, Property property) {
+    if (property.typeAdapter != null) {
+      return property.nullable();
+    }
+    return Parcelables.needsNullCheck(analysis, property,
+        Parcelables.getTypeNameFromProperty(property, analysis));
+  }
+
+  /**
+   * Returns the number of bits needed to store {@code property}, or 0 if it can't be packed.
+   */
+  private static int width(Property property) {
+    if (property.typeAdapter != null) {
+      return 0;
+    }
+    TypeName type = property.type.withoutAnnotations();
+    if (type.isBoxedPrimitive()) {
+      if (property.nullable()) {
+        return 0;
+      }
+      type = type.unbox();
+    }
+    if (type.equals(TypeName.BOOLEAN)) {
+      return 1;
+    } else if (type.equals(TypeName.BYTE)) {
+      return Byte.SIZE;
+    } else if (type.equals(TypeName.SHORT)) {
+      return Short.SIZE;
+    } else if (type.equals(TypeName.CHAR)) {
+      return Character.SIZE;
+    }
+    return 0;
+  }
+
+  /**
+   * Returns true if the value of {@code property} is stored in the header.
+   */
+  boolean contains(Property property) {
+    return values.containsKey(property);
+  }
+
+  /**
+   * Returns true if the header stores whether {@code property} is null, instead of a separate
+   * null marker int.
+   */
+  boolean hasPresenceBit(Property property) {
+    return presence.containsKey(property);
+  }
+
+  /**
+   * Returns the statements that write all of the packed words to {@code out}.
+   */
+  CodeBlock write(ParameterSpec out) {
+    return write(CodeBlock.of("$N", out), "writeInt", "writeLong");
+  }
+
+  /**
+   * Returns the statements that put all of the packed words into the {@code ByteBuffer} local
+   * named {@code buffer}.
+   */
+  CodeBlock put(String buffer) {
+    return write(CodeBlock.of("$L", buffer), "putInt", "putLong");
+  }
+
+  private CodeBlock write(CodeBlock target, String writeInt, String writeLong) {
+    CodeBlock.Builder block = CodeBlock.builder();
+    for (Word word : words) {
+      block.add("$L.$L(", target, word.isLong() ? writeLong : writeInt);
+      block.add("$>$>");
+      boolean first = true;
+      for (Slot slot : slots) {
+        if (slot.word != word) {
+          continue;
+        }
+        if (!first) {
+          block.add("\n| ");
+        }
+        block.add(writeSlot(slot));
+        first = false;
+      }
+      block.add("$<$<);\n");
+    }
+    return block.build();
+  }
+
+  private static CodeBlock writeSlot(Slot slot) {
+    Property property = slot.property;
+    boolean isLong = slot.word.isLong();
+    String suffix = isLong ? "L" : "";
+    CodeBlock value;
+    if (slot.presence) {
+      value = CodeBlock.of("($N() != null ? 1$L : 0$L)", property.methodName, suffix, suffix);
+    } else if (slot.type.equals(TypeName.BOOLEAN)) {
+      value = CodeBlock.of("($N() ? 1$L : 0$L)", property.methodName, suffix, suffix);
+    } else if (slot.type.equals(TypeName.BYTE)) {
+      value = CodeBlock.of("($N() & 0xFF$L)", property.methodName, suffix);
+    } else {
+      value = CodeBlock.of("($N() & 0xFFFF$L)", property.methodName, suffix);
+    }
+    if (slot.offset == 0) {
+      return value;
+    }
+    return CodeBlock.of("$L << $L", value, slot.offset);
+  }
+
+  /**
+   * Returns the statements that read all of the packed words from {@code in} into locals.
+   */
+  CodeBlock read() {
+    return read("in", "readInt", "readLong");
+  }
+
+  /**
+   * Like {@link #read()}, but gets the words from the {@code ByteBuffer} local named
+   * {@code buffer}.
+   */
+  CodeBlock get(String buffer) {
+    return read(buffer, "getInt", "getLong");
+  }
+
+  private CodeBlock read(String source, String readInt, String readLong) {
+    CodeBlock.Builder block = CodeBlock.builder();
+    for (Word word : words) {
+      if (word.isLong()) {
+        block.addStatement("long $L = $L.$L()", word.name, source, readLong);
+      } else {
+        block.addStatement("int $L = $L.$L()", word.name, source, readInt);
+      }
+    }
+    return block.build();
+  }
+
+  /**
+   * Returns the number of bytes the packed words take.
+   */
+  int byteCount() {
+    int count = 0;
+    for (Word word : words) {
+      count += word.isLong() ? Long.BYTES : Integer.BYTES;
+    }
+    return count;
+  }
+
+  /**
+   * Returns the expression that extracts {@code property} from the locals declared by
+   * {@link #read()}.
+   */
+  CodeBlock readValue(Property property) {
+    Slot slot = values.get(property);
+    String word = slot.word.name;
+    if (slot.type.equals(TypeName.BOOLEAN)) {
+      return readBit(slot);
+    }
+    String shifted = slot.offset == 0 ? word : "(" + word + " >>> " + slot.offset + ")";
+    return CodeBlock.of("($T) $L", slot.type, shifted);
+  }
+
+  /**
+   * Returns the expression that checks whether {@code property} was non-null when it was
+   * written, using the locals declared by {@link #read()}.
+   */
+  CodeBlock readPresence(Property property) {
+    return readBit(presence.get(property));
+  }
+
+  private static CodeBlock readBit(Slot slot) {
+    return CodeBlock.of("($L & 0x$L$L) != 0", slot.word.name,
+        Long.toHexString(1L << slot.offset).toUpperCase(), slot.word.isLong() ? "L" : "");
+  }
+}
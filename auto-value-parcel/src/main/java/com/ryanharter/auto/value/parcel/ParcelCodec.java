@@ -0,0 +1,67 @@
+package com.ryanharter.auto.value.parcel;
+
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.TypeName;
+import java.util.Set;
+import javax.lang.model.type.TypeMirror;
+
+/**
+ * Generates the code that parcels and unparcels properties of specific types, so those types don't
+ * need a {@link ParcelAdapter} on every property, or a {@code TypeAdapter} instance at runtime.
+ *
+ * <p>Codecs are found with {@link java.util.ServiceLoader} on the annotation processor path, so to
+ * add one, list its class name in {@code META-INF/services/com.ryanharter.auto.value.parcel.ParcelCodec}
+ * in the same artifact as the codec, and add that artifact next to the extension.
+ *
+ * <pre>
+ * <code>
+ * public final class MoneyCodec implements ParcelCodec {
+ *   public Set&lt;TypeName&gt; types() {
+ *     return Collections.singleton(ClassName.get("com.example", "Money"));
+ *   }
+ *
+ *   public CodeBlock read(TypeMirror type, ParameterSpec in) {
+ *     return CodeBlock.of("new Money($N.readLong(), $N.readString())", in, in);
+ *   }
+ *
+ *   public CodeBlock write(TypeMirror type, CodeBlock value, ParameterSpec out,
+ *       ParameterSpec flags) {
+ *     return CodeBlock.builder()
+ *         .addStatement("$N.writeLong($L.cents())", out, value)
+ *         .addStatement("$N.writeString($L.currency())", out, value)
+ *         .build();
+ *   }
+ * }
+ * </code>
+ * </pre>
+ *
+ * Properties of the codec's types are matched by their raw type, before any of the extension's own
+ * handling, except for a {@link ParcelAdapter} on the property, which still wins.  Nullable
+ * properties get the usual null marker, so codecs only ever see non-null values.  Primitives,
+ * boxed primitives, Strings and arrays always use the extension's own code, so codecs can't claim
+ * them.
+ */
+public interface ParcelCodec {
+
+  /**
+   * Returns the raw types of the properties this codec parcels.
+   */
+  Set<TypeName> types();
+
+  /**
+   * Returns the expression that reads a value of {@code type} from {@code in}.
+   * @param type The type of the property being read, including any type arguments.
+   * @param in The {@code Parcel} to read the value from.
+   */
+  CodeBlock read(TypeMirror type, ParameterSpec in);
+
+  /**
+   * Returns the statements that write {@code value} to {@code out}.
+   * @param type The type of the property being written, including any type arguments.
+   * @param value The expression that evaluates to the value, which may be evaluated more than once.
+   * @param out The {@code Parcel} to write the value to.
+   * @param flags The flags passed to {@code writeToParcel}.
+   */
+  CodeBlock write(TypeMirror type, CodeBlock value, ParameterSpec out, ParameterSpec flags);
+}
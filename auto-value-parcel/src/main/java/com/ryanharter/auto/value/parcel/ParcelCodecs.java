@@ -0,0 +1,176 @@
+package com.ryanharter.auto.value.parcel;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.ryanharter.auto.value.parcel.AutoValueParcelExtension.Property;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.Messager;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+
+import static com.ryanharter.auto.value.parcel.Parcelables.BOOLEANARRAY;
+import static com.ryanharter.auto.value.parcel.Parcelables.BYTEARRAY;
+import static com.ryanharter.auto.value.parcel.Parcelables.CHARARRAY;
+import static com.ryanharter.auto.value.parcel.Parcelables.CHARSEQUENCE;
+import static com.ryanharter.auto.value.parcel.Parcelables.INTARRAY;
+import static com.ryanharter.auto.value.parcel.Parcelables.LONGARRAY;
+import static com.ryanharter.auto.value.parcel.Parcelables.SIZE;
+import static com.ryanharter.auto.value.parcel.Parcelables.SIZEF;
+import static com.ryanharter.auto.value.parcel.Parcelables.SPARSEBOOLEANARRAY;
+import static com.ryanharter.auto.value.parcel.Parcelables.STRING;
+import static com.ryanharter.auto.value.parcel.Parcelables.STRINGARRAY;
+import static com.ryanharter.auto.value.parcel.Parcelables.TEXTUTILS;
+
+/**
+ * Looks up the {@link ParcelCodec} for a type, either one of the built in codecs for the types
+ * that {@code Parcel} reads and writes with a single call, or one that was found on the processor
+ * path.
+ */
+final class ParcelCodecs {
+
+  /** The codecs for the parcelable types that don't depend on anything but the value. */
+  private static final ImmutableMap<TypeName, ParcelCodec> BUILT_IN = builtIn();
+
+  private final ImmutableMap<TypeName, ParcelCodec> codecs;
+
+  private ParcelCodecs(Map<TypeName, ParcelCodec> codecs) {
+    this.codecs = ImmutableMap.copyOf(codecs);
+  }
+
+  /**
+   * Indexes {@code codecs} by type, reporting codecs that claim a type the extension always
+   * handles itself, or that another codec already claimed.
+   */
+  static ParcelCodecs create(Iterable<? extends ParcelCodec> codecs, Messager messager) {
+    Map<TypeName, ParcelCodec> byType = new LinkedHashMap<>();
+    for (ParcelCodec codec : codecs) {
+      for (TypeName type : codec.types()) {
+        if (type.isPrimitive() || type.isBoxedPrimitive() || STRING.equals(type)
+            || !(type instanceof ClassName)) {
+          messager.printMessage(Diagnostic.Kind.ERROR, "ParcelCodec "
+              + codec.getClass().getName() + " can only claim declared types other than boxed "
+              + "primitives and String, but claims " + type + ".");
+        } else if (byType.containsKey(type)) {
+          messager.printMessage(Diagnostic.Kind.ERROR, "ParcelCodecs "
+              + byType.get(type).getClass().getName() + " and " + codec.getClass().getName()
+              + " both claim " + type + ".");
+        } else {
+          byType.put(type, codec);
+        }
+      }
+    }
+    return new ParcelCodecs(byType);
+  }
+
+  /**
+   * Returns the codec found on the processor path for the raw type of {@code property}, or null.
+   */
+  ParcelCodec forProperty(Property property) {
+    if (codecs.isEmpty()) {
+      return null;
+    }
+    TypeName type = property.type.withoutAnnotations();
+    if (type instanceof ParameterizedTypeName) {
+      type = ((ParameterizedTypeName) type).rawType;
+    }
+    return codecs.get(type);
+  }
+
+  /**
+   * Returns the built in codec for properties whose parcelable type is {@code parcelableType}, or
+   * null if the type needs more than a single call.
+   */
+  static ParcelCodec builtIn(TypeName parcelableType) {
+    return parcelableType == null ? null : BUILT_IN.get(parcelableType);
+  }
+
+  private static ImmutableMap<TypeName, ParcelCodec> builtIn() {
+    Map<TypeName, ParcelCodec> codecs = new HashMap<>();
+    add(codecs, "$in:N.readString()", "$out:N.writeString($value:L)", STRING);
+    add(codecs, "$in:N.readByte()", "$out:N.writeInt($value:L)",
+        TypeName.BYTE, TypeName.BYTE.box());
+    add(codecs, "$in:N.readInt()", "$out:N.writeInt($value:L)",
+        TypeName.INT, TypeName.INT.box());
+    add(codecs, "(short) $in:N.readInt()", "$out:N.writeInt($value:L)", TypeName.SHORT);
+    add(codecs, "(short) $in:N.readInt()", "$out:N.writeInt($value:L.intValue())",
+        TypeName.SHORT.box());
+    add(codecs, "(char) $in:N.readInt()", "$out:N.writeInt($value:L)",
+        TypeName.CHAR, TypeName.CHAR.box());
+    add(codecs, "$in:N.readLong()", "$out:N.writeLong($value:L)",
+        TypeName.LONG, TypeName.LONG.box());
+    add(codecs, "$in:N.readFloat()", "$out:N.writeFloat($value:L)",
+        TypeName.FLOAT, TypeName.FLOAT.box());
+    add(codecs, "$in:N.readDouble()", "$out:N.writeDouble($value:L)",
+        TypeName.DOUBLE, TypeName.DOUBLE.box());
+    add(codecs, "$in:N.readInt() == 1", "$out:N.writeInt($value:L ? 1 : 0)",
+        TypeName.BOOLEAN, TypeName.BOOLEAN.box());
+    add(codecs, "$textUtils:T.CHAR_SEQUENCE_CREATOR.createFromParcel($in:N)",
+        "$textUtils:T.writeToParcel($value:L, $out:N, $flags:N)", CHARSEQUENCE);
+    add(codecs, "$in:N.createBooleanArray()", "$out:N.writeBooleanArray($value:L)",
+        BOOLEANARRAY);
+    add(codecs, "$in:N.createByteArray()", "$out:N.writeByteArray($value:L)", BYTEARRAY);
+    add(codecs, "$in:N.createCharArray()", "$out:N.writeCharArray($value:L)", CHARARRAY);
+    add(codecs, "$in:N.readStringArray()", "$out:N.writeStringArray($value:L)", STRINGARRAY);
+    add(codecs, "$in:N.createIntArray()", "$out:N.writeIntArray($value:L)", INTARRAY);
+    add(codecs, "$in:N.createLongArray()", "$out:N.writeLongArray($value:L)", LONGARRAY);
+    add(codecs, "$in:N.readSparseBooleanArray()", "$out:N.writeSparseBooleanArray($value:L)",
+        SPARSEBOOLEANARRAY);
+    add(codecs, "$in:N.readSize()", "$out:N.writeSize($value:L)", SIZE);
+    add(codecs, "$in:N.readSizeF()", "$out:N.writeSizeF($value:L)", SIZEF);
+    return ImmutableMap.copyOf(codecs);
+  }
+
+  private static void add(Map<TypeName, ParcelCodec> codecs, String read, String write,
+      TypeName... types) {
+    ParcelCodec codec = new BuiltInCodec(ImmutableSet.copyOf(types), read, write);
+    for (TypeName type : types) {
+      codecs.put(type, codec);
+    }
+  }
+
+  /**
+   * A codec whose read and write code are single expressions, given as JavaPoet formats with the
+   * named arguments {@code in}, {@code out}, {@code value}, {@code flags} and {@code textUtils}.
+   */
+  private static final class BuiltInCodec implements ParcelCodec {
+
+    private final Set<TypeName> types;
+    private final String read;
+    private final String write;
+
+    BuiltInCodec(Set<TypeName> types, String read, String write) {
+      this.types = types;
+      this.read = read;
+      this.write = write;
+    }
+
+    @Override public Set<TypeName> types() {
+      return types;
+    }
+
+    @Override public CodeBlock read(TypeMirror type, ParameterSpec in) {
+      Map<String, Object> arguments = new HashMap<>();
+      arguments.put("in", in);
+      arguments.put("textUtils", TEXTUTILS);
+      return CodeBlock.builder().addNamed(read, arguments).build();
+    }
+
+    @Override public CodeBlock write(TypeMirror type, CodeBlock value, ParameterSpec out,
+        ParameterSpec flags) {
+      Map<String, Object> arguments = new HashMap<>();
+      arguments.put("out", out);
+      arguments.put("value", value);
+      arguments.put("flags", flags);
+      arguments.put("textUtils", TEXTUTILS);
+      return CodeBlock.builder().addNamed(write + ";\n", arguments).build();
+    }
+  }
+}
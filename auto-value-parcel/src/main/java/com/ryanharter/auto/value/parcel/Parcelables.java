@@ -1,11 +1,16 @@
 package com.ryanharter.auto.value.parcel;
 
+import com.google.auto.common.MoreElements;
+import com.google.common.base.CaseFormat;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.ryanharter.auto.value.parcel.AutoValueParcelExtension.Property;
 import com.squareup.javapoet.ArrayTypeName;
 import com.squareup.javapoet.ClassName;
 import com.squareup.javapoet.CodeBlock;
 import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.MethodSpec;
 import com.squareup.javapoet.ParameterSpec;
 import com.squareup.javapoet.ParameterizedTypeName;
 import com.squareup.javapoet.TypeName;
@@ -17,18 +22,44 @@ import java.util.Set;
 import java.util.stream.Collectors;
 import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
 import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
 import javax.lang.model.type.TypeVariable;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
 import javax.lang.model.util.SimpleTypeVisitor6;
 import javax.lang.model.util.Types;
 
+import static javax.lang.model.element.Modifier.ABSTRACT;
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PRIVATE;
+import static javax.lang.model.element.Modifier.PUBLIC;
+import static javax.lang.model.element.Modifier.STATIC;
+
 final class Parcelables {
 
   static final TypeName STRING = ClassName.get("java.lang", "String");
   static final TypeName MAP = ClassName.get("java.util", "Map");
   static final TypeName LIST = ClassName.get("java.util", "List");
+  static final TypeName ARRAYLIST = ClassName.get("java.util", "ArrayList");
+  /** The parameter generated read code reads from. */
+  private static final ParameterSpec IN =
+      ParameterSpec.builder(ClassName.get("android.os", "Parcel"), "in").build();
+  /** The type adapter interfaces that read and write a primitive type without boxing. */
+  private static final ImmutableMap<TypeName, String> PRIMITIVE_TYPE_ADAPTERS = ImmutableMap.of(
+      TypeName.INT, "com.ryanharter.auto.value.parcel.IntTypeAdapter",
+      TypeName.LONG, "com.ryanharter.auto.value.parcel.LongTypeAdapter",
+      TypeName.DOUBLE, "com.ryanharter.auto.value.parcel.DoubleTypeAdapter",
+      TypeName.BOOLEAN, "com.ryanharter.auto.value.parcel.BooleanTypeAdapter");
+  private static final String TYPE_ADAPTER = "com.ryanharter.auto.value.parcel.TypeAdapter";
+  static final ClassName PARCEL_ADAPTERS =
+      ClassName.get("com.ryanharter.auto.value.parcel", "ParcelAdapters");
+  static final ClassName STRING_TABLE =
+      ClassName.get("com.ryanharter.auto.value.parcel", "StringTable");
+  /** The local that holds the {@code StringTable} in generated methods. */
+  static final String STRING_TABLE_LOCAL = "strings";
   static final TypeName IMMUTABLE_COLLECTION =
       ClassName.get(getUnoptimizedGuavaCollectPackage(), "ImmutableCollection");
   static final TypeName IMMUTABLE_MAP = ClassName
@@ -55,6 +86,8 @@ final class Parcelables {
   static final TypeName TEXTUTILS = ClassName.get("android.text", "TextUtils");
   static final TypeName ENUM = ClassName.get(Enum.class);
 
+  private static final String AUTO_VALUE = "com.google.auto.value.AutoValue";
+
   private static final Set<TypeName> VALID_TYPES = ImmutableSet.of(STRING, MAP, LIST,
       IMMUTABLE_COLLECTION, IMMUTABLE_MAP, BOOLEANARRAY, BYTEARRAY, CHARARRAY, INTARRAY, LONGARRAY,
       STRINGARRAY, SPARSEARRAY, SPARSEBOOLEANARRAY, BUNDLE, PARCELABLE, PARCELABLEARRAY,
@@ -74,16 +107,20 @@ final class Parcelables {
     return typeName.isPrimitive() || typeName.isBoxedPrimitive() || VALID_TYPES.contains(typeName);
   }
 
-  public static boolean isValidType(Types types, TypeMirror type) {
+  public static boolean isValidType(TypeAnalysis analysis, TypeMirror type) {
     // Special case for MAP, since it can only have String keys and Parcelable values
-    if (isOfType(types, type, MAP)) {
-      return isValidMap(types, type);
+    if (isOfType(analysis, type, MAP)) {
+      return isValidMap(analysis, type);
     }
 
-    return getParcelableType(types, (TypeElement) types.asElement(type)) != null;
+    return getParcelableType(analysis, (TypeElement) analysis.types().asElement(type)) != null;
+  }
+
+  public static TypeName getParcelableType(TypeAnalysis analysis, TypeElement type) {
+    return analysis.parcelableType(type, t -> findParcelableType(analysis, t));
   }
 
-  public static TypeName getParcelableType(Types types, TypeElement type) {
+  private static TypeName findParcelableType(TypeAnalysis analysis, TypeElement type) {
     TypeMirror typeMirror = type.asType();
     while (typeMirror.getKind() != TypeKind.NONE) {
       TypeName typeName = TypeName.get(typeMirror);
@@ -98,14 +135,15 @@ final class Parcelables {
 
       // then check if it implements valid interfaces
       for (TypeMirror iface : type.getInterfaces()) {
-        TypeName inherited = getParcelableType(types, (TypeElement) types.asElement(iface));
+        TypeName inherited =
+            getParcelableType(analysis, (TypeElement) analysis.types().asElement(iface));
         if (inherited != null) {
           return inherited;
         }
       }
 
       // then move on
-      type = (TypeElement) types.asElement(typeMirror);
+      type = (TypeElement) analysis.types().asElement(typeMirror);
       typeMirror = type.getSuperclass();
     }
     return null;
@@ -114,9 +152,9 @@ final class Parcelables {
   /**
    * Maps can only have String keys and Parcelable values.
    */
-  private static boolean isValidMap(Types types, TypeMirror type) {
-    return type.accept(new SimpleTypeVisitor6<Boolean, Types>() {
-      @Override public Boolean visitDeclared(DeclaredType t, Types o) {
+  private static boolean isValidMap(TypeAnalysis analysis, TypeMirror type) {
+    return type.accept(new SimpleTypeVisitor6<Boolean, TypeAnalysis>() {
+      @Override public Boolean visitDeclared(DeclaredType t, TypeAnalysis o) {
         List<? extends TypeMirror> args = t.getTypeArguments();
         if (args.size() == 2) {
           TypeMirror key = args.get(0);
@@ -127,35 +165,17 @@ final class Parcelables {
         }
         return false;
       }
-    }, types);
+    }, analysis);
   }
 
-  private static boolean isOfType(Types types, TypeMirror typeMirror, TypeName target) {
-    TypeElement element = (TypeElement) types.asElement(typeMirror);
-    while (typeMirror.getKind() != TypeKind.NONE) {
-      TypeName typeName = TypeName.get(typeMirror);
-      if (typeName instanceof ParameterizedTypeName) {
-        typeName = ((ParameterizedTypeName) typeName).rawType;
-      }
-      if (typeName.equals(target)) {
-        return true;
-      }
-
-      for (TypeMirror iface : element.getInterfaces()) {
-        if (isOfType(types, iface, target)) {
-          return true;
-        }
-      }
-
-      element = (TypeElement) types.asElement(typeMirror);
-      typeMirror = element.getSuperclass();
-    }
-    return false;
+  private static boolean isOfType(TypeAnalysis analysis, TypeMirror typeMirror, TypeName target) {
+    TypeElement element = (TypeElement) analysis.types().asElement(typeMirror);
+    return analysis.supertypes(element).contains(target);
   }
 
   private static void addTypecast(CodeBlock.Builder block, Property property){
     TypeName typeToCastTo = property.type instanceof TypeVariableName
-            ? ((TypeVariableName) property.type).bounds.get(0)
+            ? staticBound(((TypeVariableName) property.type).bounds.get(0))
             : property.type;
     if (property.type instanceof ParameterizedTypeName) {
       ParameterizedTypeName param = (ParameterizedTypeName) property.type;
@@ -164,7 +184,7 @@ final class Parcelables {
                 // TODO: support types with multiple bounds.
                 if (typeArgument instanceof  TypeVariableName) {
                   TypeName bound = ((TypeVariableName) typeArgument).bounds.get(0);
-                  return WildcardTypeName.subtypeOf(bound);
+                  return WildcardTypeName.subtypeOf(staticBound(bound));
                 }
                 return typeArgument;
               }).toArray(TypeName[]::new);
@@ -174,31 +194,58 @@ final class Parcelables {
     block.add("($T) ", typeToCastTo);
   }
 
-  static void readValue(Types typeUtils, CodeBlock.Builder block, Property property,
-      final TypeName parcelableType, TypeName autoValueType) {
-    boolean needsNullCheck = needsNullCheck(typeUtils, property, parcelableType);
+  /**
+   * Returns {@code bound}, or its raw type if it refers to a type variable, like the
+   * {@code Enum<E>} of {@code <E extends Enum<E>>}, so it can be used where the class's type
+   * variables aren't in scope.
+   */
+  static TypeName staticBound(TypeName bound) {
+    return bound instanceof ParameterizedTypeName && mentionsTypeVariable(bound)
+        ? ((ParameterizedTypeName) bound).rawType
+        : bound;
+  }
+
+  private static boolean mentionsTypeVariable(TypeName type) {
+    if (type instanceof TypeVariableName) {
+      return true;
+    } else if (type instanceof ParameterizedTypeName) {
+      for (TypeName argument : ((ParameterizedTypeName) type).typeArguments) {
+        if (mentionsTypeVariable(argument)) {
+          return true;
+        }
+      }
+    } else if (type instanceof WildcardTypeName) {
+      WildcardTypeName wildcard = (WildcardTypeName) type;
+      for (TypeName bound : Iterables.concat(wildcard.upperBounds, wildcard.lowerBounds)) {
+        if (mentionsTypeVariable(bound)) {
+          return true;
+        }
+      }
+    } else if (type instanceof ArrayTypeName) {
+      return mentionsTypeVariable(((ArrayTypeName) type).componentType);
+    }
+    return false;
+  }
+
+  static void readValue(TypeAnalysis analysis, CodeBlock.Builder block, Property property,
+      final TypeName parcelableType, TypeName autoValueType, GeneratedMembers members,
+      PackedHeader header) {
+    boolean needsNullCheck = needsNullCheck(analysis, property, parcelableType);
     if (needsNullCheck) {
-      block.add("in.readInt() == 0 ? ");
+      readNullCheck(block, property, header);
     }
 
-    if (parcelableType.equals(STRING)) {
-      block.add("in.readString()");
-    } else if (parcelableType.equals(TypeName.BYTE) || parcelableType.equals(TypeName.BYTE.box())) {
-      block.add("in.readByte()");
-    } else if (parcelableType.equals(TypeName.INT) || parcelableType.equals(TypeName.INT.box())) {
-      block.add("in.readInt()");
-    } else if (parcelableType.equals(TypeName.SHORT) || parcelableType.equals(TypeName.SHORT.box())) {
-      block.add("(short) in.readInt()");
-    } else if (parcelableType.equals(TypeName.CHAR) || parcelableType.equals(TypeName.CHAR.box())) {
-      block.add("(char) in.readInt()");
-    } else if (parcelableType.equals(TypeName.LONG) || parcelableType.equals(TypeName.LONG.box())) {
-      block.add("in.readLong()");
-    } else if (parcelableType.equals(TypeName.FLOAT) || parcelableType.equals(TypeName.FLOAT.box())) {
-      block.add("in.readFloat()");
-    } else if (parcelableType.equals(TypeName.DOUBLE) || parcelableType.equals(TypeName.DOUBLE.box())) {
-      block.add("in.readDouble()");
-    } else if (parcelableType.equals(TypeName.BOOLEAN) || parcelableType.equals(TypeName.BOOLEAN.box())) {
-      block.add("in.readInt() == 1");
+    ParcelCodec codec =
+        property.codec != null ? property.codec : ParcelCodecs.builtIn(parcelableType);
+    if (property.codec == null && parcelableType.equals(STRING) && property.stringTable) {
+      block.add("$L.readString()", STRING_TABLE_LOCAL);
+    } else if (property.codec == null && parcelableType.equals(BYTEARRAY)
+        && property.blobThreshold >= 0) {
+      block.add("$N(in)", Blobs.reader(members));
+    } else if (codec != null) {
+      block.add(codec.read(property.typeMirror, IN));
+    } else if (parcelableType.equals(PARCELABLE) && property.creatorOwner != null) {
+      block.add("$T.CREATOR.createFromParcel(in)", property.creatorOwner);
     } else if (parcelableType.equals(PARCELABLE)) {
       TypeName check = property.type instanceof TypeVariableName
           ? ((TypeVariableName) property.type).bounds.get(0)
@@ -207,22 +254,36 @@ final class Parcelables {
         addTypecast(block, property);
       }
       block.add("in.readParcelable($T.class.getClassLoader())", autoValueType);
-    } else if (parcelableType.equals(CHARSEQUENCE)) {
-      block.add("$T.CHAR_SEQUENCE_CREATOR.createFromParcel(in)", TEXTUTILS);
-    } else if (isSubclassOf(IMMUTABLE_COLLECTION, typeUtils, property) || isSubclassOf(IMMUTABLE_MAP, typeUtils, property)) {
-      readImmutableCollection(block, property, isSubclassOf(IMMUTABLE_MAP, typeUtils, property));
+    } else if (isSubclassOf(IMMUTABLE_COLLECTION, analysis, property) || isSubclassOf(IMMUTABLE_MAP, analysis, property)) {
+      MethodSpec reader = ImmutableCollections.reader(analysis, property, autoValueType, members);
+      if (reader != null) {
+        block.add("$N(in)", reader);
+      } else {
+        readImmutableCollection(block, property, isSubclassOf(IMMUTABLE_MAP, analysis, property));
+      }
     } else if (parcelableType.equals(MAP)) {
-      block.add("($T) in.readHashMap($T.class.getClassLoader())", property.type, autoValueType);
+      MethodSpec reader = TypedMaps.reader(analysis, property, autoValueType, members);
+      if (reader != null) {
+        block.add("$N(in)", reader);
+      } else {
+        block.add("($T) in.readHashMap($T.class.getClassLoader())", property.type, autoValueType);
+      }
     } else if (parcelableType.equals(LIST)) {
-      block.add("($T) in.readArrayList($T.class.getClassLoader())", property.type, autoValueType);
-    } else if (parcelableType.equals(BOOLEANARRAY)) {
-      block.add("in.createBooleanArray()");
-    } else if (parcelableType.equals(BYTEARRAY)) {
-      block.add("in.createByteArray()");
-    } else if (parcelableType.equals(CHARARRAY)) {
-      block.add("in.createCharArray()");
-    } else if (parcelableType.equals(STRINGARRAY)) {
-      block.add("in.readStringArray()");
+      String packageName = packageOf(autoValueType);
+      TypeMirror elementType = getTypedListElement(analysis, property, packageName);
+      ClassName creatorOwner = elementType == null ? null
+          : findCreatorOwner(analysis, elementType, packageName);
+      if (elementType != null && STRING.equals(TypeName.get(elementType))) {
+        block.add("in.createStringArrayList()");
+      } else if (creatorOwner != null && !creatorOwner.equals(TypeName.get(elementType))) {
+        // The CREATOR creates the final AutoValue class, so the list needs an unchecked cast.
+        block.add("($T) ($T) in.createTypedArrayList($T.CREATOR)", property.type, LIST,
+            creatorOwner);
+      } else if (creatorOwner != null) {
+        block.add("in.createTypedArrayList($T.CREATOR)", creatorOwner);
+      } else {
+        block.add("($T) in.readArrayList($T.class.getClassLoader())", property.type, autoValueType);
+      }
     } else if (parcelableType.equals(IBINDER)) {
       if (!property.type.equals(IBINDER)) {
         addTypecast(block, property);
@@ -230,10 +291,6 @@ final class Parcelables {
       block.add("in.readStrongBinder()");
     } else if (parcelableType.equals(OBJECTARRAY)) {
       block.add("in.readArray($T.class.getClassLoader())", autoValueType);
-    } else if (parcelableType.equals(INTARRAY)) {
-      block.add("in.createIntArray()");
-    } else if (parcelableType.equals(LONGARRAY)) {
-      block.add("in.createLongArray()");
     } else if (parcelableType.equals(SERIALIZABLE)) {
       if (!property.type.equals(SERIALIZABLE)) {
         addTypecast(block, property);
@@ -247,16 +304,17 @@ final class Parcelables {
       block.add("in.readParcelableArray($T.class.getClassLoader())", autoValueType);
     } else if (parcelableType.equals(SPARSEARRAY)) {
       block.add("in.readSparseArray($T.class.getClassLoader())", autoValueType);
-    } else if (parcelableType.equals(SPARSEBOOLEANARRAY)) {
-      block.add("in.readSparseBooleanArray()");
     } else if (parcelableType.equals(BUNDLE)) {
       block.add("in.readBundle($T.class.getClassLoader())", autoValueType);
     } else if (parcelableType.equals(PERSISTABLEBUNDLE)) {
       block.add("in.readPersistableBundle($T.class.getClassLoader())", autoValueType);
-    } else if (parcelableType.equals(SIZE)) {
-      block.add("in.readSize()");
-    } else if (parcelableType.equals(SIZEF)) {
-      block.add("in.readSizeF()");
+    } else if (parcelableType.equals(ENUM) && property.ordinal) {
+      TypeMirror enumMirror = property.typeMirror;
+      if (enumMirror.getKind() == TypeKind.TYPEVAR) {
+        enumMirror = ((TypeVariable) enumMirror).getUpperBound();
+      }
+      TypeElement enumType = (TypeElement) analysis.types().asElement(enumMirror);
+      block.add("$N(in)", readEnumOrdinal(enumType, members));
     } else if (parcelableType.equals(ENUM)) {
       block.add("$T.valueOf($T.class, in.readString())", Enum.class, property.type);
     } else {
@@ -268,39 +326,170 @@ final class Parcelables {
     }
   }
 
-  static void readValueWithTypeAdapter(CodeBlock.Builder block, AutoValueParcelExtension.Property property, final FieldSpec adapter) {
+  /**
+   * Returns the element type of a {@code List} property if it can be written with the typed list
+   * methods of {@code Parcel}, or null if it has to fall back to {@code writeList}.
+   */
+  static TypeMirror getTypedListElement(TypeAnalysis analysis, Property property,
+      String packageName) {
+    if (property.typeMirror.getKind() != TypeKind.DECLARED) {
+      return null;
+    }
+    DeclaredType listType = (DeclaredType) property.typeMirror;
+    TypeName rawType = ClassName.get((TypeElement) listType.asElement());
+    // The typed list methods always create an ArrayList.
+    if (!rawType.equals(LIST) && !rawType.equals(ARRAYLIST)) {
+      return null;
+    }
+    if (listType.getTypeArguments().size() != 1) {
+      return null;
+    }
+    TypeMirror elementType = listType.getTypeArguments().get(0);
+    if (elementType.getKind() != TypeKind.DECLARED) {
+      return null;
+    }
+    if (STRING.equals(TypeName.get(elementType))
+        || findCreatorOwner(analysis, elementType, packageName) != null) {
+      return elementType;
+    }
+    return null;
+  }
+
+  /**
+   * Returns the class whose static {@code CREATOR} field can create every instance of
+   * {@code type}, or null if there isn't one that's accessible from {@code packageName}.
+   *
+   * <p>That's the case for final classes and enums that declare a {@code CREATOR}, and for
+   * {@code @AutoValue} classes whose {@code CREATOR} is generated by this extension.  Instances of
+   * other types might be subclasses with their own {@code CREATOR}, so they have to be written
+   * with their class name.
+   */
+  static ClassName findCreatorOwner(TypeAnalysis analysis, TypeMirror type, String packageName) {
+    if (type.getKind() != TypeKind.DECLARED || !isOfType(analysis, type, PARCELABLE)) {
+      return null;
+    }
+    TypeElement element = (TypeElement) analysis.types().asElement(type);
+    if (!element.getTypeParameters().isEmpty() || element.getModifiers().contains(PRIVATE)) {
+      return null;
+    }
+    boolean samePackage =
+        MoreElements.getPackage(element).getQualifiedName().contentEquals(packageName);
+    if (!samePackage && !element.getModifiers().contains(PUBLIC)) {
+      return null;
+    }
+
+    if (element.getModifiers().contains(FINAL) || element.getKind() == ElementKind.ENUM) {
+      for (VariableElement field : ElementFilter.fieldsIn(element.getEnclosedElements())) {
+        if (field.getSimpleName().contentEquals("CREATOR")
+            && field.getModifiers().contains(STATIC)
+            && createsType(analysis.types(), field.asType(), type)
+            && (field.getModifiers().contains(PUBLIC)
+                || (samePackage && !field.getModifiers().contains(PRIVATE)))) {
+          return ClassName.get(element);
+        }
+      }
+      return null;
+    }
+
+    // The generated AutoValue class is package private.
+    if (MoreElements.isAnnotationPresent(element, AUTO_VALUE)
+        && element.getModifiers().contains(ABSTRACT)
+        && samePackage) {
+      ClassName autoValueClass = ClassName.get(element);
+      return ClassName.get(autoValueClass.packageName(),
+          "AutoValue_" + String.join("_", autoValueClass.simpleNames()));
+    }
+    return null;
+  }
+
+  /**
+   * Returns true if {@code creatorType} is a {@code Creator} whose type argument is
+   * {@code type}, so the values it creates don't need a cast.
+   */
+  private static boolean createsType(Types types, TypeMirror creatorType, TypeMirror type) {
+    if (creatorType.getKind() != TypeKind.DECLARED) {
+      return false;
+    }
+    List<? extends TypeMirror> typeArguments = ((DeclaredType) creatorType).getTypeArguments();
+    return typeArguments.size() == 1 && types.isSameType(typeArguments.get(0), type);
+  }
+
+  static String packageOf(TypeName autoValueType) {
+    return ((ClassName) autoValueType).packageName();
+  }
+
+  /**
+   * Returns a helper method that reads an ordinal written by {@link #writeValue} and resolves it
+   * against a cached copy of the enum's {@code values()}, failing for unknown ordinals.
+   */
+  private static MethodSpec readEnumOrdinal(TypeElement enumType, GeneratedMembers members) {
+    ClassName enumName = ClassName.get(enumType);
+    String simpleName = enumType.getSimpleName().toString();
+    FieldSpec values = members.field(enumName, CaseFormat.UPPER_CAMEL.to(CaseFormat.UPPER_UNDERSCORE,
+        simpleName) + "_VALUES", name -> FieldSpec
+        .builder(ArrayTypeName.of(enumName), name, PRIVATE, STATIC, FINAL)
+        .initializer("$T.values()", enumName)
+        .build());
+    return members.method(enumName, "read" + simpleName, name -> MethodSpec.methodBuilder(name)
+        .addModifiers(PRIVATE, STATIC)
+        .returns(enumName)
+        .addParameter(ClassName.get("android.os", "Parcel"), "in")
+        .addStatement("int ordinal = in.readInt()")
+        .beginControlFlow("if (ordinal < 0 || ordinal >= $N.length)", values)
+        .addStatement("throw new $T($S + ordinal)", IllegalArgumentException.class,
+            "Unknown " + simpleName + " ordinal: ")
+        .endControlFlow()
+        .addStatement("return $N[ordinal]", values)
+        .build());
+  }
+
+  static void readValueWithTypeAdapter(CodeBlock.Builder block, AutoValueParcelExtension.Property property, final CodeBlock adapter,
+      PackedHeader header) {
     if (property.nullable()) {
-      block.add("in.readInt() == 0 ? ");
+      readNullCheck(block, property, header);
     }
 
-    block.add("$N.fromParcel(in)", adapter);
+    if (property.typeAdapterPrimitive != null) {
+      block.add("$L.read$L(in)", adapter, primitiveMethodSuffix(property.typeAdapterPrimitive));
+    } else if (property.typeAdapterElements) {
+      block.add("$L.fromParcelAll(in, in.readInt())", adapter);
+    } else if (property.typeAdapterValues) {
+      block.add("$T.readMap(in, $L)", PARCEL_ADAPTERS, adapter);
+    } else {
+      block.add("$L.fromParcel(in)", adapter);
+    }
 
     if (property.nullable()) {
       block.add(" : null");
     }
   }
 
-  private static boolean isSubclassOf(TypeName type, Types typeUtils, Property property) {
-    TypeMirror clazz = property.typeMirror;
-
-    while (clazz.getKind() != TypeKind.NONE) {
-      TypeName typeName = TypeName.get(clazz);
-      if (typeName instanceof ParameterizedTypeName) {
-        typeName = ((ParameterizedTypeName) typeName).rawType;
-      }
-      if (type.equals(typeName)) {
-        return true;
-      }
-
-      TypeElement element = ((TypeElement) typeUtils.asElement(clazz));
-      if (element == null) {
-        break;
-      } else {
-        clazz = element.getSuperclass();
-      }
+  private static void readNullCheck(CodeBlock.Builder block, Property property,
+      PackedHeader header) {
+    if (header.hasPresenceBit(property)) {
+      block.add("$L ? ", header.readPresence(property));
+    } else {
+      block.add("in.readInt() == 0 ? ");
     }
+  }
 
-    return false;
+  static boolean isSubclassOf(TypeName type, TypeAnalysis analysis, Property property) {
+    TypeMirror clazz = property.typeMirror;
+    if (clazz.getKind() == TypeKind.TYPEVAR) {
+      clazz = ((TypeVariable) clazz).getUpperBound();
+    }
+    if (clazz.getKind() == TypeKind.NONE) {
+      return false;
+    }
+    TypeName typeName = TypeName.get(clazz);
+    if (typeName instanceof ParameterizedTypeName) {
+      typeName = ((ParameterizedTypeName) typeName).rawType;
+    }
+    if (type.equals(typeName)) {
+      return true;
+    }
+    TypeElement element = (TypeElement) analysis.types().asElement(clazz);
+    return element != null && analysis.superclasses(element).contains(type);
   }
 
   private static void readImmutableCollection(CodeBlock.Builder block, Property property,
@@ -339,8 +528,13 @@ final class Parcelables {
     if (generics.isEmpty()) {
       expression.append("Object");
     } else {
+      // Class literals can't have type arguments.
+      TypeName loaderType = generics.get(0);
+      if (loaderType instanceof ParameterizedTypeName) {
+        loaderType = ((ParameterizedTypeName) loaderType).rawType;
+      }
       expression.append("$T");
-      args.add(generics.get(0));
+      args.add(loaderType);
     }
     expression.append(".class.getClassLoader()))");
 
@@ -348,118 +542,152 @@ final class Parcelables {
   }
 
   public static CodeBlock writeValue(
-      Types types,
+      TypeAnalysis analysis,
       AutoValueParcelExtension.Property property,
       ParameterSpec out,
-      ParameterSpec flags
+      ParameterSpec flags,
+      TypeName autoValueType,
+      GeneratedMembers members,
+      PackedHeader header
   ) {
     CodeBlock.Builder block = CodeBlock.builder();
 
-    TypeName type = getTypeNameFromProperty(property, types);
+    TypeName type = getTypeNameFromProperty(property, analysis);
+    boolean needsNullCheck = needsNullCheck(analysis, property, type);
+    if (needsNullCheck) {
+      writeNullCheck(block, property, out, header);
+    }
+
+    ParcelCodec codec = property.codec != null ? property.codec : ParcelCodecs.builtIn(type);
+    if (property.codec == null && type.equals(STRING) && property.stringTable) {
+      block.addStatement("$L.writeString($N())", STRING_TABLE_LOCAL, property.methodName);
+    } else if (property.codec == null && type.equals(BYTEARRAY) && property.blobThreshold >= 0) {
+      block.addStatement("$N($N, $N(), $L, $N)", Blobs.writer(members), out, property.methodName,
+          property.blobThreshold, flags);
+    } else if (codec != null) {
+      block.add(codec.write(property.typeMirror, CodeBlock.of("$N()", property.methodName), out,
+          flags));
+    } else {
+      block.addStatement("$L", writeExpression(analysis, property, type, out, flags,
+          autoValueType, members));
+    }
 
-    boolean needsNullCheck = needsNullCheck(types, property, type);
     if (needsNullCheck) {
-      block.beginControlFlow("if ($N() == null)", property.methodName);
-      block.addStatement("$N.writeInt(1)", out);
-      block.nextControlFlow("else");
-      block.addStatement("$N.writeInt(0)", out);
+      block.endControlFlow();
+    }
+
+    return block.build();
+  }
+
+  /**
+   * Returns the expression that writes {@code property}, which is of a type that's neither handled
+   * by a codec nor stored somewhere other than {@code out}.
+   */
+  private static CodeBlock writeExpression(TypeAnalysis analysis, Property property,
+      TypeName type, ParameterSpec out, ParameterSpec flags, TypeName autoValueType,
+      GeneratedMembers members) {
+    CodeBlock.Builder block = CodeBlock.builder();
+    MethodSpec collectionWriter =
+        ImmutableCollections.writer(analysis, property, autoValueType, members);
+    if (collectionWriter == null) {
+      collectionWriter = TypedMaps.writer(analysis, property, autoValueType, members);
     }
 
-    if (type.equals(STRING))
-      block.add("$N.writeString($N())", out, property.methodName);
-    else if (type.equals(TypeName.BYTE) || type.equals(TypeName.BYTE.box())
-        || type.equals(TypeName.INT) || type.equals(TypeName.INT.box())
-        || type.equals(TypeName.CHAR) || type.equals(TypeName.CHAR.box())
-        || type.equals(TypeName.SHORT))
-      block.add("$N.writeInt($N())", out, property.methodName);
-    else if (type.equals(TypeName.SHORT.box()))
-      block.add("$N.writeInt($N().intValue())", out, property.methodName);
-    else if (type.equals(TypeName.LONG) || type.equals(TypeName.LONG.box()))
-      block.add("$N.writeLong($N())", out, property.methodName);
-    else if (type.equals(TypeName.FLOAT) || type.equals(TypeName.FLOAT.box()))
-      block.add("$N.writeFloat($N())", out, property.methodName);
-    else if (type.equals(TypeName.DOUBLE) || type.equals(TypeName.DOUBLE.box()))
-      block.add("$N.writeDouble($N())", out, property.methodName);
-    else if (type.equals(TypeName.BOOLEAN) || type.equals(TypeName.BOOLEAN.box()))
-      block.add("$N.writeInt($N() ? 1 : 0)", out, property.methodName);
+    if (type.equals(PARCELABLE) && property.creatorOwner != null)
+      block.add("$N().writeToParcel($N, $N)", property.methodName, out, flags);
     else if (type.equals(PARCELABLE))
       block.add("$N.writeParcelable($N(), $N)", out, property.methodName, flags);
-    else if (type.equals(CHARSEQUENCE))
-      block.add("$T.writeToParcel($N(), $N, $N)", TEXTUTILS, property.methodName, out, flags);
-    else if (type.equals(MAP) || isSubclassOf(IMMUTABLE_MAP, types, property))
+    else if (collectionWriter != null)
+      block.add("$N($N(), $N, $N)", collectionWriter, property.methodName, out, flags);
+    else if (type.equals(MAP) || isSubclassOf(IMMUTABLE_MAP, analysis, property))
       block.add("$N.writeMap($N())", out, property.methodName);
-    else if (isSubclassOf(IMMUTABLE_COLLECTION, types, property))
+    else if (isSubclassOf(IMMUTABLE_COLLECTION, analysis, property))
       block.add("$N.writeList($N().asList())", out, property.methodName);
     else if (type.equals(LIST))
-      block.add("$N.writeList($N())", out, property.methodName);
-    else if (type.equals(BOOLEANARRAY))
-      block.add("$N.writeBooleanArray($N())", out, property.methodName);
-    else if (type.equals(BYTEARRAY))
-      block.add("$N.writeByteArray($N())", out, property.methodName);
-    else if (type.equals(CHARARRAY))
-      block.add("$N.writeCharArray($N())", out, property.methodName);
-    else if (type.equals(STRINGARRAY))
-      block.add("$N.writeStringArray($N())", out, property.methodName);
+      writeList(block, analysis, property, out, packageOf(autoValueType));
     else if (type.equals(IBINDER))
       block.add("$N.writeStrongBinder($N())", out, property.methodName);
     else if (type.equals(OBJECTARRAY))
       block.add("$N.writeArray($N())", out, property.methodName);
-    else if (type.equals(INTARRAY))
-      block.add("$N.writeIntArray($N())", out, property.methodName);
-    else if (type.equals(LONGARRAY))
-      block.add("$N.writeLongArray($N())", out, property.methodName);
     else if (type.equals(SERIALIZABLE))
       block.add("$N.writeSerializable($N())", out, property.methodName);
     else if (type.equals(PARCELABLEARRAY))
       block.add("$N.writeParcelableArray($N())", out, property.methodName);
     else if (type.equals(SPARSEARRAY))
       block.add("$N.writeSparseArray($N())", out, property.methodName);
-    else if (type.equals(SPARSEBOOLEANARRAY))
-      block.add("$N.writeSparseBooleanArray($N())", out, property.methodName);
     else if (type.equals(BUNDLE))
       block.add("$N.writeBundle($N())", out, property.methodName);
     else if (type.equals(PERSISTABLEBUNDLE))
       block.add("$N.writePersistableBundle($N())", out, property.methodName);
-    else if (type.equals(SIZE))
-      block.add("$N.writeSize($N())", out, property.methodName);
-    else if (type.equals(SIZEF))
-      block.add("$N.writeSizeF($N())", out, property.methodName);
+    else if (type.equals(ENUM) && property.ordinal)
+      block.add("$N.writeInt((($T<?>) $N()).ordinal())", out, Enum.class, property.methodName);
     else if (type.equals(ENUM))
       block.add("$N.writeString((($T<?>) $N()).name())", out, Enum.class, property.methodName);
     else
       block.add("$N.writeValue($N())", out, property.methodName);
+    return block.build();
+  }
 
-    block.add(";\n");
-
-    if (needsNullCheck) {
-      block.endControlFlow();
+  private static void writeList(CodeBlock.Builder block, TypeAnalysis analysis,
+      Property property, ParameterSpec out, String packageName) {
+    TypeMirror elementType = getTypedListElement(analysis, property, packageName);
+    if (elementType == null) {
+      block.add("$N.writeList($N())", out, property.methodName);
+    } else if (STRING.equals(TypeName.get(elementType))) {
+      block.add("$N.writeStringList($N())", out, property.methodName);
+    } else {
+      block.add("$N.writeTypedList($N())", out, property.methodName);
     }
+  }
 
-    return block.build();
+  private static void writeNullCheck(CodeBlock.Builder block, Property property,
+      ParameterSpec out, PackedHeader header) {
+    if (header.hasPresenceBit(property)) {
+      block.beginControlFlow("if ($N() != null)", property.methodName);
+    } else {
+      block.beginControlFlow("if ($N() == null)", property.methodName);
+      block.addStatement("$N.writeInt(1)", out);
+      block.nextControlFlow("else");
+      block.addStatement("$N.writeInt(0)", out);
+    }
   }
 
-  private static boolean needsNullCheck(Types types, AutoValueParcelExtension.Property property, TypeName type) {
+  static boolean needsNullCheck(TypeAnalysis analysis, AutoValueParcelExtension.Property property, TypeName type) {
+    if (property.codec != null) {
+      return property.nullable();
+    }
     return property.nullable()
+        && !property.stringTable
+        && property.blobThreshold < 0
         && !type.equals(BUNDLE)
-        && (!type.equals(LIST) || isSubclassOf(IMMUTABLE_COLLECTION, types, property))
+        && (!type.equals(LIST) || isSubclassOf(IMMUTABLE_COLLECTION, analysis, property))
         && !type.equals(MAP)
-        && !type.equals(PARCELABLE)
+        && (!type.equals(PARCELABLE) || property.creatorOwner != null)
         && !type.equals(PERSISTABLEBUNDLE)
         && !type.equals(SPARSEARRAY)
         && !type.equals(SPARSEBOOLEANARRAY);
   }
 
-  public static CodeBlock writeValueWithTypeAdapter(FieldSpec adapter, AutoValueParcelExtension.Property property, ParameterSpec out) {
+  public static CodeBlock writeValueWithTypeAdapter(CodeBlock adapter, AutoValueParcelExtension.Property property, ParameterSpec out,
+      PackedHeader header) {
     CodeBlock.Builder block = CodeBlock.builder();
 
     if (property.nullable()) {
-      block.beginControlFlow("if ($N() == null)", property.methodName);
-      block.addStatement("$N.writeInt(1)", out);
-      block.nextControlFlow("else");
-      block.addStatement("$N.writeInt(0)", out);
+      writeNullCheck(block, property, out, header);
     }
 
-    block.addStatement("$N.toParcel($N(), $N)", adapter, property.methodName, out);
+    if (property.typeAdapterPrimitive != null) {
+      block.addStatement("$L.write$L($N(), $N)", adapter,
+          primitiveMethodSuffix(property.typeAdapterPrimitive), property.methodName, out);
+    } else if (property.typeAdapterElements) {
+      block.addStatement("$N.writeInt($N().size())", out, property.methodName);
+      block.addStatement("$L.toParcelAll($N(), $N)", adapter, property.methodName, out);
+    } else if (property.typeAdapterValues) {
+      block.addStatement("$T.writeMap($N(), $L, $N)", PARCEL_ADAPTERS, property.methodName,
+          adapter, out);
+    } else {
+      block.addStatement("$L.toParcel($N(), $N)", adapter, property.methodName, out);
+    }
 
     if (property.nullable()) {
       block.endControlFlow();
@@ -468,15 +696,88 @@ final class Parcelables {
     return block.build();
   }
 
-  static TypeName getTypeNameFromProperty(AutoValueParcelExtension.Property property, Types types) {
+  /**
+   * Returns the primitive type that {@code property}'s type adapter reads and writes without
+   * boxing, or null if it's a plain {@code TypeAdapter} or doesn't match the property's type.
+   */
+  static TypeName typeAdapterPrimitive(Types types, Elements elements, Property property) {
+    TypeName type = property.type.withoutAnnotations();
+    if (type.isBoxedPrimitive()) {
+      type = type.unbox();
+    }
+    String adapterInterface = PRIMITIVE_TYPE_ADAPTERS.get(type);
+    if (adapterInterface == null) {
+      return null;
+    }
+    TypeElement element = elements.getTypeElement(adapterInterface);
+    if (element == null || !types.isAssignable(property.typeAdapter, element.asType())) {
+      return null;
+    }
+    return type;
+  }
+
+  /**
+   * Returns true if {@code property} is a {@code List} whose type adapter adapts its elements
+   * rather than the whole list, so the elements are written with a single {@code toParcelAll}.
+   */
+  static boolean typeAdapterElements(Types types, Elements elements, Property property) {
+    if (property.typeMirror.getKind() != TypeKind.DECLARED) {
+      return false;
+    }
+    DeclaredType type = (DeclaredType) property.typeMirror;
+    List<? extends TypeMirror> arguments = type.getTypeArguments();
+    if (!LIST.equals(ClassName.get((TypeElement) type.asElement())) || arguments.size() != 1
+        || arguments.get(0).getKind() != TypeKind.DECLARED) {
+      return false;
+    }
+    TypeElement typeAdapter = elements.getTypeElement(TYPE_ADAPTER);
+    if (typeAdapter == null || types.isAssignable(property.typeAdapter,
+        types.getDeclaredType(typeAdapter, property.typeMirror))) {
+      return false;
+    }
+    return types.isAssignable(property.typeAdapter,
+        types.getDeclaredType(typeAdapter, arguments.get(0)));
+  }
+
+  /**
+   * Returns true if {@code property} is a {@code Map} with String keys whose type adapter adapts
+   * its values, so the map is written with {@code ParcelAdapters.writeMap}.
+   */
+  static boolean typeAdapterValues(Types types, Elements elements, Property property) {
+    if (property.typeMirror.getKind() != TypeKind.DECLARED) {
+      return false;
+    }
+    DeclaredType type = (DeclaredType) property.typeMirror;
+    List<? extends TypeMirror> arguments = type.getTypeArguments();
+    if (!MAP.equals(ClassName.get((TypeElement) type.asElement())) || arguments.size() != 2
+        || !STRING.equals(TypeName.get(arguments.get(0)))
+        || arguments.get(1).getKind() != TypeKind.DECLARED) {
+      return false;
+    }
+    TypeElement typeAdapter = elements.getTypeElement(TYPE_ADAPTER);
+    if (typeAdapter == null || types.isAssignable(property.typeAdapter,
+        types.getDeclaredType(typeAdapter, property.typeMirror))) {
+      return false;
+    }
+    return types.isAssignable(property.typeAdapter,
+        types.getDeclaredType(typeAdapter, arguments.get(1)));
+  }
+
+  /** Returns the suffix of the read and write methods of the adapter for {@code primitive}. */
+  private static String primitiveMethodSuffix(TypeName primitive) {
+    String name = primitive.toString();
+    return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+  }
+
+  static TypeName getTypeNameFromProperty(AutoValueParcelExtension.Property property, TypeAnalysis analysis) {
     TypeMirror returnType = property.typeMirror;
     if (returnType.getKind() == TypeKind.TYPEVAR) {
       TypeVariable vType = (TypeVariable) returnType;
       returnType = vType.getUpperBound();
     }
-    TypeElement element = (TypeElement) types.asElement(returnType);
+    TypeElement element = (TypeElement) analysis.types().asElement(returnType);
     if (element != null) {
-      TypeName parcelableType = getParcelableType(types, element);
+      TypeName parcelableType = getParcelableType(analysis, element);
       if (!PARCELABLE.equals(parcelableType) && element.getKind() == ElementKind.ENUM) {
         return ENUM;
       }
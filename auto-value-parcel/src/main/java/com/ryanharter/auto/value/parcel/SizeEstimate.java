@@ -0,0 +1,245 @@
+package com.ryanharter.auto.value.parcel;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.ryanharter.auto.value.parcel.AutoValueParcelExtension.Property;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.TypeName;
+import java.util.List;
+import javax.lang.model.type.TypeMirror;
+
+import static com.ryanharter.auto.value.parcel.Parcelables.BOOLEANARRAY;
+import static com.ryanharter.auto.value.parcel.Parcelables.BYTEARRAY;
+import static com.ryanharter.auto.value.parcel.Parcelables.CHARARRAY;
+import static com.ryanharter.auto.value.parcel.Parcelables.CHARSEQUENCE;
+import static com.ryanharter.auto.value.parcel.Parcelables.ENUM;
+import static com.ryanharter.auto.value.parcel.Parcelables.IMMUTABLE_COLLECTION;
+import static com.ryanharter.auto.value.parcel.Parcelables.IMMUTABLE_MAP;
+import static com.ryanharter.auto.value.parcel.Parcelables.INTARRAY;
+import static com.ryanharter.auto.value.parcel.Parcelables.LIST;
+import static com.ryanharter.auto.value.parcel.Parcelables.LONGARRAY;
+import static com.ryanharter.auto.value.parcel.Parcelables.MAP;
+import static com.ryanharter.auto.value.parcel.Parcelables.PARCELABLE;
+import static com.ryanharter.auto.value.parcel.Parcelables.SIZE;
+import static com.ryanharter.auto.value.parcel.Parcelables.SIZEF;
+import static com.ryanharter.auto.value.parcel.Parcelables.STRING;
+import static com.ryanharter.auto.value.parcel.Parcelables.STRINGARRAY;
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PUBLIC;
+import static javax.lang.model.element.Modifier.STATIC;
+
+/**
+ * Works out the size of what the generated {@code writeToParcel} writes, for classes annotated
+ * with {@code ParcelSizeEstimate}.
+ *
+ * <p>The sizes of properties that don't depend on their values, like primitives, the packed
+ * header and the byte buffer, are added up while processing.  If that covers every property, the
+ * total is exact, and is generated as the {@code PARCEL_SIZE} constant.  Otherwise
+ * {@code estimateParcelSize()} adds an expression for each of the other properties, which calls
+ * into {@code ParcelSizes}, or into a generated helper for collections that generated helpers
+ * write.
+ * Properties written as varints are counted at their longest encoding, strings in the string table
+ * as if each of them was written in full after its index, and blobs as if they were written
+ * inline, so for those the estimate is an upper bound.  Values written by adapters and codecs are
+ * counted as {@code ParcelSizes.UNKNOWN_SIZE}, so those only give an estimate.
+ */
+final class SizeEstimate {
+
+  static final String CONSTANT = "PARCEL_SIZE";
+  static final ClassName SIZED_PARCELABLE =
+      ClassName.get("com.ryanharter.auto.value.parcel", "SizedParcelable");
+  static final ClassName PARCEL_SIZES =
+      ClassName.get("com.ryanharter.auto.value.parcel", "ParcelSizes");
+
+  /** The number of bytes each type whose size doesn't depend on its value takes. */
+  private static final ImmutableMap<TypeName, Integer> FIXED_SIZES =
+      ImmutableMap.<TypeName, Integer>builder()
+          .put(TypeName.BOOLEAN, Integer.BYTES)
+          .put(TypeName.BOOLEAN.box(), Integer.BYTES)
+          .put(TypeName.BYTE, Integer.BYTES)
+          .put(TypeName.BYTE.box(), Integer.BYTES)
+          .put(TypeName.CHAR, Integer.BYTES)
+          .put(TypeName.CHAR.box(), Integer.BYTES)
+          .put(TypeName.SHORT, Integer.BYTES)
+          .put(TypeName.SHORT.box(), Integer.BYTES)
+          .put(TypeName.INT, Integer.BYTES)
+          .put(TypeName.INT.box(), Integer.BYTES)
+          .put(TypeName.FLOAT, Float.BYTES)
+          .put(TypeName.FLOAT.box(), Float.BYTES)
+          .put(TypeName.LONG, Long.BYTES)
+          .put(TypeName.LONG.box(), Long.BYTES)
+          .put(TypeName.DOUBLE, Double.BYTES)
+          .put(TypeName.DOUBLE.box(), Double.BYTES)
+          .put(SIZE, 2 * Integer.BYTES)
+          .put(SIZEF, 2 * Float.BYTES)
+          .build();
+
+  private final int fixed;
+  private final ImmutableList<CodeBlock> variable;
+  private final boolean exact;
+
+  private SizeEstimate(int fixed, List<CodeBlock> variable, boolean exact) {
+    this.fixed = fixed;
+    this.variable = ImmutableList.copyOf(variable);
+    this.exact = exact;
+  }
+
+  static SizeEstimate create(TypeAnalysis analysis, List<Property> properties,
+      TypeName autoValueType, PackedHeader header, VarIntRegion varInts,
+      ByteBufferRegion byteBuffer, OffsetTable offsets, GeneratedMembers members) {
+    int fixed = byteBuffer.byteCount() + varInts.maxByteCount()
+        + offsets.properties().size() * Integer.BYTES;
+    // How many bytes the varints take depends on their values.
+    boolean exact = varInts.maxByteCount() == 0;
+    ImmutableList.Builder<CodeBlock> variable = ImmutableList.builder();
+    for (Property property : properties) {
+      if (header.contains(property) || byteBuffer.contains(property)
+          || varInts.contains(property)) {
+        continue;
+      }
+
+      TypeName type = Parcelables.getTypeNameFromProperty(property, analysis);
+      boolean nullCheck = property.typeAdapter != null
+          ? property.nullable()
+          : Parcelables.needsNullCheck(analysis, property, type);
+      if (nullCheck && !header.hasPresenceBit(property)) {
+        fixed += Integer.BYTES;
+      }
+
+      Integer fixedSize = fixedSize(property, type);
+      CodeBlock size = fixedSize != null
+          ? CodeBlock.of("$L", fixedSize)
+          : size(analysis, property, type, autoValueType, members);
+      if (nullCheck) {
+        variable.add(CodeBlock.of("$N() == null ? 0 : $L", property.methodName, size));
+      } else if (fixedSize != null) {
+        fixed += fixedSize;
+      } else {
+        variable.add(size);
+      }
+    }
+    ImmutableList<CodeBlock> expressions = variable.build();
+    return new SizeEstimate(fixed, expressions, exact && expressions.isEmpty());
+  }
+
+  /**
+   * Returns the number of bytes {@code property} takes regardless of its value, or null if it
+   * depends on the value, or can't be known.
+   */
+  private static Integer fixedSize(Property property, TypeName type) {
+    if (property.typeAdapter != null || property.codec != null) {
+      return null;
+    }
+    if (type.equals(ENUM)) {
+      return property.ordinal ? Integer.BYTES : null;
+    }
+    return FIXED_SIZES.get(type);
+  }
+
+  /**
+   * Returns the expression for the size of the non-null value of {@code property}.
+   */
+  private static CodeBlock size(TypeAnalysis analysis, Property property, TypeName type,
+      TypeName autoValueType, GeneratedMembers members) {
+    String name = property.methodName;
+    if (property.typeAdapter != null) {
+      if (property.typeAdapterElements || property.typeAdapterValues) {
+        return CodeBlock.of("$T.adapted($N())", PARCEL_SIZES, name);
+      }
+      return CodeBlock.of("$T.UNKNOWN_SIZE", PARCEL_SIZES);
+    }
+    if (property.codec != null) {
+      return CodeBlock.of("$T.UNKNOWN_SIZE", PARCEL_SIZES);
+    }
+    // Collections written by generated helpers get a generated helper that sizes them the same
+    // way, element by element.
+    MethodSpec sizer = ImmutableCollections.sizer(analysis, property, autoValueType, members);
+    if (sizer == null) {
+      sizer = TypedMaps.sizer(analysis, property, autoValueType, members);
+    }
+    if (sizer != null) {
+      return CodeBlock.of("$N($N())", sizer, name);
+    }
+    if (Parcelables.isSubclassOf(IMMUTABLE_MAP, analysis, property)) {
+      return CodeBlock.of("$T.map($N())", PARCEL_SIZES, name);
+    }
+    if (Parcelables.isSubclassOf(IMMUTABLE_COLLECTION, analysis, property)) {
+      return CodeBlock.of("$T.list($N())", PARCEL_SIZES, name);
+    }
+    if (property.stringTable) {
+      // The index, and at most the String itself.
+      return CodeBlock.of("$L + $T.string($N())", Integer.BYTES, PARCEL_SIZES, name);
+    }
+    if (property.blobThreshold >= 0 && type.equals(BYTEARRAY)) {
+      // Whether it's inline or in shared memory, and at most the bytes themselves.
+      return CodeBlock.of("$L + $T.array($N())", Integer.BYTES, PARCEL_SIZES, name);
+    }
+    if (type.equals(STRING)) {
+      return CodeBlock.of("$T.string($N())", PARCEL_SIZES, name);
+    }
+    if (type.equals(CHARSEQUENCE)) {
+      return CodeBlock.of("$T.charSequence($N())", PARCEL_SIZES, name);
+    }
+    if (type.equals(ENUM)) {
+      return CodeBlock.of("$T.string((($T<?>) $N()).name())", PARCEL_SIZES, Enum.class, name);
+    }
+    if (type.equals(BOOLEANARRAY) || type.equals(BYTEARRAY) || type.equals(CHARARRAY)
+        || type.equals(INTARRAY) || type.equals(LONGARRAY) || type.equals(STRINGARRAY)) {
+      return CodeBlock.of("$T.array($N())", PARCEL_SIZES, name);
+    }
+    if (type.equals(PARCELABLE)) {
+      return CodeBlock.of(property.creatorOwner != null ? "$T.parcelable($N())"
+          : "$T.namedParcelable($N())", PARCEL_SIZES, name);
+    }
+    if (type.equals(LIST)) {
+      TypeMirror element = Parcelables.getTypedListElement(analysis, property,
+          Parcelables.packageOf(autoValueType));
+      if (element == null) {
+        return CodeBlock.of("$T.list($N())", PARCEL_SIZES, name);
+      } else if (STRING.equals(TypeName.get(element))) {
+        return CodeBlock.of("$T.stringList($N())", PARCEL_SIZES, name);
+      }
+      return CodeBlock.of("$T.typedList($N())", PARCEL_SIZES, name);
+    }
+    if (type.equals(MAP)) {
+      return CodeBlock.of("$T.map($N())", PARCEL_SIZES, name);
+    }
+    return CodeBlock.of("$T.value($N())", PARCEL_SIZES, name);
+  }
+
+  /**
+   * Returns the {@code PARCEL_SIZE} constant, or null if the size depends on the values.
+   */
+  FieldSpec constant() {
+    if (!exact) {
+      return null;
+    }
+    return FieldSpec.builder(int.class, CONSTANT, PUBLIC, STATIC, FINAL)
+        .initializer("$L", fixed)
+        .build();
+  }
+
+  /**
+   * Returns the {@code estimateParcelSize()} implementation.
+   */
+  MethodSpec method() {
+    MethodSpec.Builder method = MethodSpec.methodBuilder("estimateParcelSize")
+        .addAnnotation(Override.class)
+        .addModifiers(PUBLIC)
+        .returns(int.class);
+    if (exact) {
+      return method.addStatement("return $L", CONSTANT).build();
+    }
+    if (variable.isEmpty()) {
+      return method.addStatement("return $L", fixed).build();
+    }
+    method.addStatement("int size = $L", fixed);
+    for (CodeBlock size : variable) {
+      method.addStatement("size += $L", size);
+    }
+    return method.addStatement("return size").build();
+  }
+}
@@ -0,0 +1,178 @@
+package com.ryanharter.auto.value.parcel;
+
+import com.google.auto.common.MoreElements;
+import com.google.auto.common.MoreTypes;
+import com.google.auto.common.Visibility;
+import com.google.common.base.CaseFormat;
+import com.google.common.collect.ImmutableMap;
+import com.ryanharter.auto.value.parcel.AutoValueParcelExtension.Property;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.NameAllocator;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+
+import static javax.lang.model.element.Modifier.ABSTRACT;
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PRIVATE;
+import static javax.lang.model.element.Modifier.PUBLIC;
+import static javax.lang.model.element.Modifier.STATIC;
+
+/**
+ * The TypeAdapters a generated class uses, and the expressions that refer to them.
+ *
+ * <p>Adapters that declare a public static {@code INSTANCE} field, and enum adapters with a single
+ * constant, are held in a field of the generated class that refers to that instance.  Others are
+ * held by a nested holder class, so they're only created the first time one of them is used, with
+ * {@code ParcelAdapters.get(Adapter.class, Adapter::new)}, which shares a single instance of each
+ * adapter class between all generated classes.
+ */
+final class TypeAdapterFields {
+
+  private final ImmutableMap<TypeMirror, FieldSpec> singletons;
+  private final ImmutableMap<TypeMirror, FieldSpec> created;
+  private final String holder;
+
+  private TypeAdapterFields(Map<TypeMirror, FieldSpec> singletons,
+      Map<TypeMirror, FieldSpec> created, String holder) {
+    this.singletons = ImmutableMap.copyOf(singletons);
+    this.created = ImmutableMap.copyOf(created);
+    this.holder = holder;
+  }
+
+  static TypeAdapterFields create(List<Property> properties, NameAllocator nameAllocator) {
+    Map<TypeMirror, FieldSpec> singletons = new LinkedHashMap<>();
+    Map<TypeMirror, FieldSpec> created = new LinkedHashMap<>();
+    for (Property property : properties) {
+      TypeMirror adapter = property.typeAdapter;
+      if (adapter == null || singletons.containsKey(adapter) || created.containsKey(adapter)) {
+        continue;
+      }
+      ClassName typeName = (ClassName) TypeName.get(adapter);
+      String name = CaseFormat.LOWER_CAMEL.to(CaseFormat.UPPER_UNDERSCORE, typeName.simpleName());
+      name = NameAllocator.toJavaIdentifier(nameAllocator.newName(name, typeName));
+
+      CodeBlock singleton = singleton(adapter);
+      if (singleton != null) {
+        singletons.put(adapter, FieldSpec.builder(typeName, name, PRIVATE, STATIC, FINAL)
+            .initializer(singleton)
+            .build());
+      } else {
+        created.put(adapter, FieldSpec.builder(typeName, name, STATIC, FINAL)
+            .initializer("$T.get($T.class, $T::new)", Parcelables.PARCEL_ADAPTERS, typeName,
+                typeName)
+            .build());
+      }
+    }
+    String holder = created.isEmpty() ? null : nameAllocator.newName("TypeAdapterHolder");
+    return new TypeAdapterFields(singletons, created, holder);
+  }
+
+  /**
+   * Returns the expression for the existing instance of {@code typeAdapter}: its {@code INSTANCE}
+   * field, or its only enum constant, or null if it has to be created.
+   */
+  private static CodeBlock singleton(TypeMirror typeAdapter) {
+    ClassName typeName = (ClassName) TypeName.get(typeAdapter);
+    TypeElement element = MoreTypes.asTypeElement(typeAdapter);
+    List<VariableElement> fields = ElementFilter.fieldsIn(element.getEnclosedElements());
+    if (element.getKind() == ElementKind.ENUM) {
+      List<VariableElement> constants = new ArrayList<>();
+      for (VariableElement field : fields) {
+        if (field.getKind() == ElementKind.ENUM_CONSTANT) {
+          constants.add(field);
+        }
+      }
+      if (constants.size() == 1) {
+        return CodeBlock.of("$T.$N", typeName, constants.get(0).getSimpleName().toString());
+      }
+    }
+    for (VariableElement field : fields) {
+      if (field.getSimpleName().contentEquals("INSTANCE")
+          && field.getModifiers().containsAll(EnumSet.of(PUBLIC, STATIC, FINAL))
+          && typeName.equals(TypeName.get(field.asType()))) {
+        return CodeBlock.of("$T.INSTANCE", typeName);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the reason code generated in {@code packageName} can't create {@code typeAdapter} with
+   * {@code new}, or null if it can, or doesn't need to because the adapter is a singleton.
+   */
+  static String checkCreatable(TypeMirror typeAdapter, String packageName) {
+    if (singleton(typeAdapter) != null) {
+      return null;
+    }
+    TypeElement element = MoreTypes.asTypeElement(typeAdapter);
+    boolean samePackage =
+        MoreElements.getPackage(element).getQualifiedName().contentEquals(packageName);
+    if (element.getKind() != ElementKind.CLASS || element.getModifiers().contains(ABSTRACT)) {
+      return "must be a concrete class, or declare a public static final INSTANCE field";
+    }
+    if (element.getNestingKind() == NestingKind.MEMBER
+        && !element.getModifiers().contains(STATIC)) {
+      return "must be a static class";
+    }
+    if (!isReachable(Visibility.effectiveVisibilityOfElement(element), samePackage)) {
+      return "must be visible from package " + packageName;
+    }
+    for (ExecutableElement constructor :
+        ElementFilter.constructorsIn(element.getEnclosedElements())) {
+      if (constructor.getParameters().isEmpty()) {
+        return isReachable(Visibility.ofElement(constructor), samePackage)
+            ? null
+            : "needs a no-arg constructor that's visible from package " + packageName;
+      }
+    }
+    return "needs a no-arg constructor, or a public static final INSTANCE field";
+  }
+
+  private static boolean isReachable(Visibility visibility, boolean samePackage) {
+    return visibility == Visibility.PUBLIC
+        || (samePackage && visibility != Visibility.PRIVATE);
+  }
+
+  boolean contains(TypeMirror typeAdapter) {
+    return singletons.containsKey(typeAdapter) || created.containsKey(typeAdapter);
+  }
+
+  /**
+   * Returns the expression that refers to the instance of {@code typeAdapter}.
+   */
+  CodeBlock get(TypeMirror typeAdapter) {
+    FieldSpec singleton = singletons.get(typeAdapter);
+    if (singleton != null) {
+      return CodeBlock.of("$N", singleton);
+    }
+    return CodeBlock.of("$L.$N", holder, created.get(typeAdapter));
+  }
+
+  /**
+   * Adds the fields for the singleton adapters, and the holder class for the others, to
+   * {@code type}.
+   */
+  void addTo(TypeSpec.Builder type) {
+    type.addFields(singletons.values());
+    if (holder != null) {
+      type.addType(TypeSpec.classBuilder(holder)
+          .addModifiers(PRIVATE, STATIC, FINAL)
+          .addFields(created.values())
+          .build());
+    }
+  }
+}
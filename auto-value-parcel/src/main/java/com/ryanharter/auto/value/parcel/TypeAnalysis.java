@@ -0,0 +1,131 @@
+package com.ryanharter.auto.value.parcel;
+
+import com.google.auto.common.MoreElements;
+import com.google.auto.common.MoreTypes;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.TypeName;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+
+/**
+ * Remembers what's been learned about each type element while processing, so the walks over
+ * superclasses, interfaces and members that every property and every class needs are only done
+ * once per type.
+ *
+ * <p>The extension creates one for each processing environment and passes it to the helpers
+ * that need it, along with that environment's {@link Types}.  Nothing else holds on to it, so the
+ * elements it remembers go away with the environment.
+ */
+final class TypeAnalysis {
+
+  private final Types types;
+  private final Map<TypeElement, Optional<TypeName>> parcelableTypes = new HashMap<>();
+  private final Map<TypeElement, ImmutableSet<TypeName>> supertypes = new HashMap<>();
+  private final Map<TypeElement, ImmutableSet<TypeName>> superclasses = new HashMap<>();
+  private final Map<TypeElement, ImmutableList<ExecutableElement>> methods = new HashMap<>();
+  private final Map<TypeElement, ImmutableList<VariableElement>> fields = new HashMap<>();
+
+  TypeAnalysis(Types types) {
+    this.types = types;
+  }
+
+  /** Returns true if this is the analysis of {@code types}. */
+  boolean isFor(Types types) {
+    return this.types == types;
+  }
+
+  /** Returns the {@code Types} of the environment this analysis belongs to. */
+  Types types() {
+    return types;
+  }
+
+  /**
+   * Returns the type {@code type} is parcelled as, or null, computing it with {@code walk} the
+   * first time it's requested.
+   */
+  TypeName parcelableType(TypeElement type, Function<TypeElement, TypeName> walk) {
+    Optional<TypeName> parcelableType = parcelableTypes.get(type);
+    if (parcelableType == null) {
+      // Not computeIfAbsent, since walk calls back in here for the interfaces.
+      parcelableType = Optional.fromNullable(walk.apply(type));
+      parcelableTypes.put(type, parcelableType);
+    }
+    return parcelableType.orNull();
+  }
+
+  /**
+   * Returns the raw names of {@code type}, its superclasses and all of the interfaces any of them
+   * implement.
+   */
+  ImmutableSet<TypeName> supertypes(TypeElement type) {
+    ImmutableSet<TypeName> names = supertypes.get(type);
+    if (names == null) {
+      ImmutableSet.Builder<TypeName> builder = ImmutableSet.builder();
+      builder.add(ClassName.get(type));
+      for (TypeMirror iface : type.getInterfaces()) {
+        builder.addAll(supertypes(MoreTypes.asTypeElement(iface)));
+      }
+      TypeMirror superclass = type.getSuperclass();
+      if (superclass.getKind() != TypeKind.NONE) {
+        builder.addAll(supertypes(MoreTypes.asTypeElement(superclass)));
+      }
+      names = builder.build();
+      supertypes.put(type, names);
+    }
+    return names;
+  }
+
+  /**
+   * Returns the raw names of {@code type} and its superclasses, without any interfaces.
+   */
+  ImmutableSet<TypeName> superclasses(TypeElement type) {
+    ImmutableSet<TypeName> names = superclasses.get(type);
+    if (names == null) {
+      ImmutableSet.Builder<TypeName> builder = ImmutableSet.builder();
+      builder.add(ClassName.get(type));
+      TypeMirror superclass = type.getSuperclass();
+      if (superclass.getKind() != TypeKind.NONE) {
+        builder.addAll(superclasses(MoreTypes.asTypeElement(superclass)));
+      }
+      names = builder.build();
+      superclasses.put(type, names);
+    }
+    return names;
+  }
+
+  /**
+   * Returns the methods {@code type} declares or inherits, leaving out the overridden ones.
+   */
+  ImmutableList<ExecutableElement> methods(TypeElement type, Elements elements) {
+    ImmutableList<ExecutableElement> result = methods.get(type);
+    if (result == null) {
+      result = ImmutableList.copyOf(MoreElements.getLocalAndInheritedMethods(type, elements));
+      methods.put(type, result);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the fields {@code type} declares or inherits.
+   */
+  ImmutableList<VariableElement> fields(TypeElement type, Elements elements) {
+    ImmutableList<VariableElement> result = fields.get(type);
+    if (result == null) {
+      result = ImmutableList.copyOf(ElementFilter.fieldsIn(elements.getAllMembers(type)));
+      fields.put(type, result);
+    }
+    return result;
+  }
+}
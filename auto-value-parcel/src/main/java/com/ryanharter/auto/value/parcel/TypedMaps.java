@@ -0,0 +1,225 @@
+package com.ryanharter.auto.value.parcel;
+
+import com.google.common.collect.ImmutableMap;
+import com.ryanharter.auto.value.parcel.AutoValueParcelExtension.Property;
+import com.squareup.javapoet.AnnotationSpec;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+
+import static javax.lang.model.element.Modifier.PRIVATE;
+import static javax.lang.model.element.Modifier.STATIC;
+
+/**
+ * Generates the helper methods that write {@code Map<String, V>} properties as a size followed by
+ * their entries, and read them into a presized instance of the declared map type, instead of
+ * tagging every key and value with {@code writeMap} and always reading a {@code HashMap}.
+ *
+ * <p>Like {@code writeMap}, a null map is written as a size of -1, so map properties still don't
+ * need a separate null marker.
+ */
+final class TypedMaps {
+
+  private static final ClassName PARCEL = ClassName.get("android.os", "Parcel");
+  private static final ClassName HASH_MAP = ClassName.get(HashMap.class);
+  private static final ClassName LINKED_HASH_MAP = ClassName.get(LinkedHashMap.class);
+  private static final ClassName TREE_MAP = ClassName.get(TreeMap.class);
+
+  /** The map class that's instantiated for each supported declared type. */
+  private static final ImmutableMap<ClassName, ClassName> IMPLEMENTATIONS =
+      ImmutableMap.<ClassName, ClassName>builder()
+          .put(ClassName.get(Map.class), HASH_MAP)
+          .put(HASH_MAP, HASH_MAP)
+          .put(LINKED_HASH_MAP, LINKED_HASH_MAP)
+          .put(ClassName.get(SortedMap.class), TREE_MAP)
+          .put(ClassName.get(NavigableMap.class), TREE_MAP)
+          .put(TREE_MAP, TREE_MAP)
+          .build();
+
+  private TypedMaps() {
+  }
+
+  /**
+   * Returns the method that reads {@code property}, or null if it has to be read with
+   * {@code readHashMap}.
+   */
+  static MethodSpec reader(TypeAnalysis analysis, Property property, TypeName autoValueType,
+      GeneratedMembers members) {
+    DeclaredType type = supportedType(property);
+    if (type == null) {
+      return null;
+    }
+    TypeName typeName = TypeName.get(type);
+    return members.method(CodeBlock.of("read $T", typeName),
+        "read" + rawType(type).simpleName(),
+        name -> generateReader(name, analysis, type, autoValueType, members));
+  }
+
+  /**
+   * Returns the method that writes {@code property}, or null if it has to be written with
+   * {@code writeMap}.
+   */
+  static MethodSpec writer(TypeAnalysis analysis, Property property, TypeName autoValueType,
+      GeneratedMembers members) {
+    DeclaredType type = supportedType(property);
+    if (type == null) {
+      return null;
+    }
+    TypeName typeName = TypeName.get(type);
+    return members.method(CodeBlock.of("write $T", typeName),
+        "write" + rawType(type).simpleName(),
+        name -> generateWriter(name, analysis, type, autoValueType, members));
+  }
+
+  /**
+   * Returns the method that works out the number of bytes {@link #writer}'s method writes, or
+   * null if {@code property} is written with {@code writeMap}.
+   */
+  static MethodSpec sizer(TypeAnalysis analysis, Property property, TypeName autoValueType,
+      GeneratedMembers members) {
+    DeclaredType type = supportedType(property);
+    if (type == null) {
+      return null;
+    }
+    TypeName typeName = TypeName.get(type);
+    return members.method(CodeBlock.of("size $T", typeName),
+        "sizeOf" + rawType(type).simpleName(),
+        name -> generateSizer(name, analysis, type, autoValueType, members));
+  }
+
+  private static MethodSpec generateReader(String name, TypeAnalysis analysis, DeclaredType type,
+      TypeName autoValueType, GeneratedMembers members) {
+    ParameterSpec in = ParameterSpec.builder(PARCEL, "in").build();
+    TypeName typeName = TypeName.get(type);
+    TypeMirror keyType = type.getTypeArguments().get(0);
+    TypeMirror valueType = type.getTypeArguments().get(1);
+    ClassName implementation = IMPLEMENTATIONS.get(rawType(type));
+    TypeName implementationType = ParameterizedTypeName.get(implementation,
+        TypeName.get(keyType), TypeName.get(valueType));
+
+    MethodSpec.Builder builder = MethodSpec.methodBuilder(name)
+        .addModifiers(PRIVATE, STATIC)
+        .returns(typeName)
+        .addParameter(in);
+    if (CollectionElements.needsUncheckedCast(analysis, valueType, autoValueType)) {
+      builder.addAnnotation(AnnotationSpec.builder(SuppressWarnings.class)
+          .addMember("value", "$S", "unchecked")
+          .build());
+    }
+    builder.addStatement("int size = $N.readInt()", in)
+        .beginControlFlow("if (size < 0)")
+        .addStatement("return null")
+        .endControlFlow();
+    if (implementation.equals(TREE_MAP)) {
+      builder.addStatement("$T map = new $T()", typeName, implementationType);
+    } else {
+      // Large enough that the map doesn't resize at the default load factor.
+      builder.addStatement("$T map = new $T((int) (size / 0.75f) + 1)", typeName,
+          implementationType);
+    }
+    return builder.beginControlFlow("for (int i = 0; i < size; i++)")
+        .addStatement("map.put($L, $L)",
+            CollectionElements.read(analysis, keyType, in, autoValueType, members),
+            CollectionElements.readNullable(analysis, valueType, in, autoValueType, members))
+        .endControlFlow()
+        .addStatement("return map")
+        .build();
+  }
+
+  private static MethodSpec generateWriter(String name, TypeAnalysis analysis, DeclaredType type,
+      TypeName autoValueType, GeneratedMembers members) {
+    ParameterSpec value = ParameterSpec.builder(TypeName.get(type), "value").build();
+    ParameterSpec out = ParameterSpec.builder(PARCEL, "dest").build();
+    ParameterSpec flags = ParameterSpec.builder(int.class, "flags").build();
+    TypeMirror keyType = type.getTypeArguments().get(0);
+    TypeMirror valueType = type.getTypeArguments().get(1);
+
+    return MethodSpec.methodBuilder(name)
+        .addModifiers(PRIVATE, STATIC)
+        .addParameter(value)
+        .addParameter(out)
+        .addParameter(flags)
+        .beginControlFlow("if ($N == null)", value)
+        .addStatement("$N.writeInt(-1)", out)
+        .addStatement("return")
+        .endControlFlow()
+        .addStatement("$N.writeInt($N.size())", out, value)
+        .beginControlFlow("for ($T entry : $N.entrySet())",
+            ParameterizedTypeName.get(ClassName.get(Map.Entry.class), TypeName.get(keyType),
+                TypeName.get(valueType)), value)
+        // Strings are the only valid keys, and writeString handles null.
+        .addCode(CollectionElements.write(analysis, keyType, CodeBlock.of("entry.getKey()"), out,
+            flags, autoValueType, members))
+        .addCode(CollectionElements.writeNullable(analysis, valueType,
+            CodeBlock.of("entry.getValue()"), out, flags, autoValueType, members))
+        .endControlFlow()
+        .build();
+  }
+
+  private static MethodSpec generateSizer(String name, TypeAnalysis analysis, DeclaredType type,
+      TypeName autoValueType, GeneratedMembers members) {
+    ParameterSpec value = ParameterSpec.builder(TypeName.get(type), "value").build();
+    TypeMirror keyType = type.getTypeArguments().get(0);
+    TypeMirror valueType = type.getTypeArguments().get(1);
+
+    return MethodSpec.methodBuilder(name)
+        .addModifiers(PRIVATE, STATIC)
+        .returns(int.class)
+        .addParameter(value)
+        .beginControlFlow("if ($N == null)", value)
+        .addStatement("return $L", Integer.BYTES)
+        .endControlFlow()
+        .addStatement("int size = $L", Integer.BYTES)
+        .beginControlFlow("for ($T entry : $N.entrySet())",
+            ParameterizedTypeName.get(ClassName.get(Map.Entry.class), TypeName.get(keyType),
+                TypeName.get(valueType)), value)
+        .addStatement("size += $L",
+            CollectionElements.size(analysis, keyType, CodeBlock.of("entry.getKey()"),
+                autoValueType, members))
+        .addStatement("size += $L", CollectionElements.sizeNullable(analysis, valueType,
+            CodeBlock.of("entry.getValue()"), autoValueType, members))
+        .endControlFlow()
+        .addStatement("return size")
+        .build();
+  }
+
+  /**
+   * Returns the type of {@code property} if it's a supported map type with a String key and a
+   * concrete value type, or null.
+   */
+  private static DeclaredType supportedType(Property property) {
+    if (property.typeMirror.getKind() != TypeKind.DECLARED) {
+      return null;
+    }
+    DeclaredType type = (DeclaredType) property.typeMirror;
+    if (!IMPLEMENTATIONS.containsKey(rawType(type))) {
+      return null;
+    }
+    List<? extends TypeMirror> arguments = type.getTypeArguments();
+    if (arguments.size() != 2
+        || !Parcelables.STRING.equals(TypeName.get(arguments.get(0)))
+        || arguments.get(1).getKind() != TypeKind.DECLARED
+        || !CollectionElements.supports(arguments.get(1))) {
+      return null;
+    }
+    return type;
+  }
+
+  private static ClassName rawType(DeclaredType type) {
+    return ClassName.get((TypeElement) type.asElement());
+  }
+}
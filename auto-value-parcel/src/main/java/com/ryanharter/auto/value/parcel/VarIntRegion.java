@@ -0,0 +1,220 @@
+package com.ryanharter.auto.value.parcel;
+
+import com.google.common.collect.ImmutableList;
+import com.ryanharter.auto.value.parcel.AutoValueParcelExtension.Property;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.TypeName;
+import java.util.List;
+
+import static javax.lang.model.element.Modifier.PRIVATE;
+import static javax.lang.model.element.Modifier.STATIC;
+
+/**
+ * Writes the int and long properties annotated with {@code ParcelVarInt} as zigzag encoded
+ * variable length integers, packed four bytes to an int, right after the packed header and before
+ * all other properties.
+ *
+ * <p>An int takes one byte when it's between -64 and 63, two up to &plusmn;8192, three up to
+ * &plusmn;2<sup>20</sup>, four up to &plusmn;2<sup>27</sup> and five above that, and a long keeps
+ * taking another byte for every 7 bits, up to ten.  The last int is padded, so the region is
+ * smaller than writing the values at fixed width as long as most of them fit in three bytes, and
+ * at worst it's a quarter larger, plus the padding: {@link #maxByteCount()}.
+ *
+ * <p>Only non-null properties are encoded this way, nullable ones keep their null marker and fixed
+ * width value.  The values are written and read through locals, so nothing is allocated and
+ * primitive properties are never boxed.
+ */
+final class VarIntRegion {
+
+  private static final ClassName PARCEL = ClassName.get("android.os", "Parcel");
+  private static final String PENDING = "varInts";
+  private static final String VALUE = "varInt";
+
+  private static final int MAX_INT_BYTES = 5;
+  private static final int MAX_LONG_BYTES = 10;
+
+  private final ImmutableList<Property> properties;
+  private final GeneratedMembers members;
+
+  private VarIntRegion(List<Property> properties, GeneratedMembers members) {
+    this.properties = ImmutableList.copyOf(properties);
+    this.members = members;
+  }
+
+  static VarIntRegion create(List<Property> properties, GeneratedMembers members) {
+    ImmutableList.Builder<Property> encoded = ImmutableList.builder();
+    for (Property property : properties) {
+      if (property.varInt && property.typeAdapter == null && !property.nullable()
+          && (isInt(property) || isLong(property))) {
+        encoded.add(property);
+      }
+    }
+    return new VarIntRegion(encoded.build(), members);
+  }
+
+  private static boolean isInt(Property property) {
+    TypeName type = property.type.withoutAnnotations();
+    return type.equals(TypeName.INT) || type.equals(TypeName.INT.box());
+  }
+
+  private static boolean isLong(Property property) {
+    TypeName type = property.type.withoutAnnotations();
+    return type.equals(TypeName.LONG) || type.equals(TypeName.LONG.box());
+  }
+
+  /**
+   * Returns true if {@code property} is stored in the region.
+   */
+  boolean contains(Property property) {
+    return properties.contains(property);
+  }
+
+  /**
+   * Returns the most bytes the region can take in the Parcel, when every value needs the longest
+   * encoding.
+   */
+  int maxByteCount() {
+    int maxLength = 0;
+    for (Property property : properties) {
+      maxLength += isInt(property) ? MAX_INT_BYTES : MAX_LONG_BYTES;
+    }
+    return (maxLength + 3) & ~3;
+  }
+
+  /**
+   * Returns the statements that encode all of the properties in the region and write them to
+   * {@code out}.
+   */
+  CodeBlock write(ParameterSpec out) {
+    CodeBlock.Builder block = CodeBlock.builder();
+    if (properties.isEmpty()) {
+      return block.build();
+    }
+    block.addStatement("long $L = 0L", PENDING);
+    for (Property property : properties) {
+      MethodSpec writer = isInt(property) ? writeVarInt() : writeVarLong();
+      block.addStatement("$L = $N($N, $L, $N())", PENDING, writer, out, PENDING,
+          property.methodName);
+    }
+    // The bytes of the last, partly filled int.
+    block.beginControlFlow("if ($L != 0L)", PENDING);
+    block.addStatement("$N.writeInt((int) $L)", out, PENDING);
+    block.endControlFlow();
+    return block.build();
+  }
+
+  /**
+   * Returns the statements that read all of the properties in the region from {@code in} into
+   * locals.
+   */
+  CodeBlock read() {
+    CodeBlock.Builder block = CodeBlock.builder();
+    if (properties.isEmpty()) {
+      return block.build();
+    }
+    block.addStatement("long $L = 0L", PENDING);
+    for (int i = 0; i < properties.size(); i++) {
+      String value = VALUE + i;
+      block.addStatement("long $L = 0L", value);
+      block.beginControlFlow("for (int shift = 0; ; shift += 7)");
+      block.addStatement("$L = $N(in, $L)", PENDING, readVarIntByte(), PENDING);
+      block.addStatement("$L |= ($L & 0x7FL) << shift", value, PENDING);
+      block.beginControlFlow("if (($L & 0x80) == 0)", PENDING);
+      block.addStatement("break");
+      block.endControlFlow();
+      block.endControlFlow();
+    }
+    return block.build();
+  }
+
+  /**
+   * Returns the expression that decodes {@code property} from the locals declared by
+   * {@link #read()}.
+   */
+  CodeBlock readValue(Property property) {
+    String value = VALUE + properties.indexOf(property);
+    return isInt(property)
+        ? CodeBlock.of("(int) (($L >>> 1) ^ -($L & 1))", value, value)
+        : CodeBlock.of("($L >>> 1) ^ -($L & 1)", value, value);
+  }
+
+  private MethodSpec writeVarInt() {
+    return members.method("writeVarInt", "writeVarInt", name -> MethodSpec.methodBuilder(name)
+        .addModifiers(PRIVATE, STATIC)
+        .returns(long.class)
+        .addParameter(PARCEL, "dest")
+        .addParameter(long.class, "pending")
+        .addParameter(int.class, "value")
+        .addStatement("int zigzag = (value << 1) ^ (value >> 31)")
+        .beginControlFlow("while ((zigzag & ~0x7F) != 0)")
+        .addStatement("pending = $N(dest, pending, (zigzag & 0x7F) | 0x80)", writeVarIntByte())
+        .addStatement("zigzag >>>= 7")
+        .endControlFlow()
+        .addStatement("return $N(dest, pending, zigzag)", writeVarIntByte())
+        .build());
+  }
+
+  private MethodSpec writeVarLong() {
+    return members.method("writeVarLong", "writeVarLong", name -> MethodSpec.methodBuilder(name)
+        .addModifiers(PRIVATE, STATIC)
+        .returns(long.class)
+        .addParameter(PARCEL, "dest")
+        .addParameter(long.class, "pending")
+        .addParameter(long.class, "value")
+        .addStatement("long zigzag = (value << 1) ^ (value >> 63)")
+        .beginControlFlow("while ((zigzag & ~0x7FL) != 0)")
+        .addStatement("pending = $N(dest, pending, (int) (zigzag & 0x7F) | 0x80)",
+            writeVarIntByte())
+        .addStatement("zigzag >>>= 7")
+        .endControlFlow()
+        .addStatement("return $N(dest, pending, (int) zigzag)", writeVarIntByte())
+        .build());
+  }
+
+  /**
+   * Adds a byte to the int that's being filled, whose bytes are kept in the low half of
+   * {@code pending} and their count in the high half, and writes the int once it's full.
+   */
+  private MethodSpec writeVarIntByte() {
+    return members.method("writeVarIntByte", "writeVarIntByte",
+        name -> MethodSpec.methodBuilder(name)
+            .addModifiers(PRIVATE, STATIC)
+            .returns(long.class)
+            .addParameter(PARCEL, "dest")
+            .addParameter(long.class, "pending")
+            .addParameter(int.class, "b")
+            .addStatement("int count = (int) (pending >>> 32)")
+            .addStatement("int word = (int) pending | (b << (count * 8))")
+            .beginControlFlow("if (count == 3)")
+            .addStatement("dest.writeInt(word)")
+            .addStatement("return 0L")
+            .endControlFlow()
+            .addStatement("return ((long) (count + 1) << 32) | (word & 0xFFFFFFFFL)")
+            .build());
+  }
+
+  /**
+   * Moves to the next byte, reading the next int from {@code in} when the one that was read last
+   * is used up.  The byte ends up in the low byte of the returned state, the bytes after it in the
+   * rest of the low half, and their count in the high half.
+   */
+  private MethodSpec readVarIntByte() {
+    return members.method("readVarIntByte", "readVarIntByte",
+        name -> MethodSpec.methodBuilder(name)
+            .addModifiers(PRIVATE, STATIC)
+            .returns(long.class)
+            .addParameter(PARCEL, "in")
+            .addParameter(long.class, "pending")
+            .addStatement("int count = (int) (pending >>> 32)")
+            .addStatement("int word = (int) pending >>> 8")
+            .beginControlFlow("if (count == 0)")
+            .addStatement("word = in.readInt()")
+            .addStatement("count = 4")
+            .endControlFlow()
+            .addStatement("return ((long) (count - 1) << 32) | (word & 0xFFFFFFFFL)")
+            .build());
+  }
+}
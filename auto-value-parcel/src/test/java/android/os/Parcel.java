@@ -1,12 +1,722 @@
 package android.os;
 
-public interface Parcel {
-  byte readByte();
-  int readInt();
-  long readLong();
-  float readFloat();
-  double readDouble();
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-  void writeInt(int in);
+/**
+ * A JVM implementation of the parts of Android's {@code Parcel} that generated code uses, so
+ * generated classes can be run, and their sizes measured, off device.
+ *
+ * <p>Data is kept in a growable direct {@link ByteBuffer} with the layout the platform uses: every
+ * value takes a multiple of four bytes, strings are written as their length followed by UTF-16
+ * chars and a terminator, and null strings, arrays and lists are written as a length of -1.
+ * Values written with {@link #writeValue(Object)} are prefixed with the platform's type tags, and
+ * Parcelables are read back through the {@code CREATOR} of the class named in the parcel.
+ */
+public final class Parcel {
 
-}
\ No newline at end of file
+  private static final int VAL_NULL = -1;
+  private static final int VAL_STRING = 0;
+  private static final int VAL_INTEGER = 1;
+  private static final int VAL_MAP = 2;
+  private static final int VAL_PARCELABLE = 4;
+  private static final int VAL_SHORT = 5;
+  private static final int VAL_LONG = 6;
+  private static final int VAL_FLOAT = 7;
+  private static final int VAL_DOUBLE = 8;
+  private static final int VAL_BOOLEAN = 9;
+  private static final int VAL_LIST = 11;
+  private static final int VAL_BYTEARRAY = 13;
+  private static final int VAL_STRINGARRAY = 14;
+  private static final int VAL_INTARRAY = 18;
+  private static final int VAL_LONGARRAY = 19;
+  private static final int VAL_BYTE = 20;
+  private static final int VAL_SERIALIZABLE = 21;
+  private static final int VAL_BOOLEANARRAY = 23;
+  private static final int VAL_DOUBLEARRAY = 28;
+
+  private static final Map<String, Parcelable.Creator<?>> CREATORS = new ConcurrentHashMap<>();
+
+  private ByteBuffer buffer = allocate(256);
+  private int size;
+
+  private Parcel() {
+  }
+
+  public static Parcel obtain() {
+    return new Parcel();
+  }
+
+  public void recycle() {
+    buffer.clear();
+    size = 0;
+  }
+
+  public int dataSize() {
+    return size;
+  }
+
+  public int dataAvail() {
+    return size - buffer.position();
+  }
+
+  public int dataPosition() {
+    return buffer.position();
+  }
+
+  public int dataCapacity() {
+    return buffer.capacity();
+  }
+
+  public void setDataPosition(int position) {
+    if (position < 0 || position > size) {
+      throw new IllegalArgumentException("Position " + position + " is outside of 0.." + size);
+    }
+    buffer.position(position);
+  }
+
+  public void setDataCapacity(int capacity) {
+    if (capacity > size) {
+      ensureCapacity(capacity);
+    }
+  }
+
+  public void setDataSize(int size) {
+    ensureCapacity(size);
+    this.size = size;
+    if (buffer.position() > size) {
+      buffer.position(size);
+    }
+  }
+
+  public byte[] marshall() {
+    byte[] bytes = new byte[size];
+    ByteBuffer data = buffer.duplicate();
+    data.position(0);
+    data.get(bytes);
+    return bytes;
+  }
+
+  public void unmarshall(byte[] data, int offset, int length) {
+    ensureCapacity(length);
+    buffer.clear();
+    buffer.put(data, offset, length);
+    size = length;
+    buffer.position(0);
+  }
+
+  // Primitives
+
+  public void writeInt(int value) {
+    reserve(4).putInt(value);
+  }
+
+  public int readInt() {
+    if (dataAvail() < 4) {
+      // The platform reads zeros past the end of the data rather than throwing.
+      buffer.position(size);
+      return 0;
+    }
+    return buffer.getInt();
+  }
+
+  public void writeLong(long value) {
+    reserve(8).putLong(value);
+  }
+
+  public long readLong() {
+    if (dataAvail() < 8) {
+      buffer.position(size);
+      return 0;
+    }
+    return buffer.getLong();
+  }
+
+  public void writeFloat(float value) {
+    reserve(4).putFloat(value);
+  }
+
+  public float readFloat() {
+    return Float.intBitsToFloat(readInt());
+  }
+
+  public void writeDouble(double value) {
+    reserve(8).putDouble(value);
+  }
+
+  public double readDouble() {
+    return Double.longBitsToDouble(readLong());
+  }
+
+  public void writeByte(byte value) {
+    writeInt(value);
+  }
+
+  public byte readByte() {
+    return (byte) readInt();
+  }
+
+  // Strings and arrays
+
+  public void writeString(String value) {
+    if (value == null) {
+      writeInt(-1);
+      return;
+    }
+    int length = value.length();
+    writeInt(length);
+    int start = buffer.position();
+    reserve(align((length + 1) * 2));
+    for (int i = 0; i < length; i++) {
+      buffer.putChar(start + i * 2, value.charAt(i));
+    }
+    // The terminator and the padding after it are all zeros.
+    pad(start + length * 2, start + align((length + 1) * 2));
+  }
+
+  public String readString() {
+    int length = readInt();
+    if (length < 0) {
+      return null;
+    }
+    int start = buffer.position();
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = buffer.getChar(start + i * 2);
+    }
+    buffer.position(start + align((length + 1) * 2));
+    return new String(chars);
+  }
+
+  public void writeByteArray(byte[] value) {
+    writeByteArray(value, 0, value == null ? 0 : value.length);
+  }
+
+  public void writeByteArray(byte[] value, int offset, int length) {
+    if (value == null) {
+      writeInt(-1);
+      return;
+    }
+    writeInt(length);
+    int start = buffer.position();
+    reserve(align(length));
+    buffer.put(value, offset, length);
+    pad(start + length, start + align(length));
+  }
+
+  public byte[] createByteArray() {
+    int length = readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] value = new byte[length];
+    int start = buffer.position();
+    buffer.get(value);
+    buffer.position(start + align(length));
+    return value;
+  }
+
+  public void readByteArray(byte[] value) {
+    int length = readInt();
+    if (length != value.length) {
+      throw new RuntimeException("bad array lengths");
+    }
+    int start = buffer.position();
+    buffer.get(value);
+    buffer.position(start + align(length));
+  }
+
+  public void writeBooleanArray(boolean[] value) {
+    if (value == null) {
+      writeInt(-1);
+      return;
+    }
+    writeInt(value.length);
+    for (boolean element : value) {
+      writeInt(element ? 1 : 0);
+    }
+  }
+
+  public boolean[] createBooleanArray() {
+    int length = readInt();
+    if (length < 0) {
+      return null;
+    }
+    boolean[] value = new boolean[length];
+    for (int i = 0; i < length; i++) {
+      value[i] = readInt() != 0;
+    }
+    return value;
+  }
+
+  public void writeCharArray(char[] value) {
+    if (value == null) {
+      writeInt(-1);
+      return;
+    }
+    writeInt(value.length);
+    for (char element : value) {
+      writeInt(element);
+    }
+  }
+
+  public char[] createCharArray() {
+    int length = readInt();
+    if (length < 0) {
+      return null;
+    }
+    char[] value = new char[length];
+    for (int i = 0; i < length; i++) {
+      value[i] = (char) readInt();
+    }
+    return value;
+  }
+
+  public void writeIntArray(int[] value) {
+    if (value == null) {
+      writeInt(-1);
+      return;
+    }
+    writeInt(value.length);
+    for (int element : value) {
+      writeInt(element);
+    }
+  }
+
+  public int[] createIntArray() {
+    int length = readInt();
+    if (length < 0) {
+      return null;
+    }
+    int[] value = new int[length];
+    for (int i = 0; i < length; i++) {
+      value[i] = readInt();
+    }
+    return value;
+  }
+
+  public void writeLongArray(long[] value) {
+    if (value == null) {
+      writeInt(-1);
+      return;
+    }
+    writeInt(value.length);
+    for (long element : value) {
+      writeLong(element);
+    }
+  }
+
+  public long[] createLongArray() {
+    int length = readInt();
+    if (length < 0) {
+      return null;
+    }
+    long[] value = new long[length];
+    for (int i = 0; i < length; i++) {
+      value[i] = readLong();
+    }
+    return value;
+  }
+
+  public void writeDoubleArray(double[] value) {
+    if (value == null) {
+      writeInt(-1);
+      return;
+    }
+    writeInt(value.length);
+    for (double element : value) {
+      writeDouble(element);
+    }
+  }
+
+  public double[] createDoubleArray() {
+    int length = readInt();
+    if (length < 0) {
+      return null;
+    }
+    double[] value = new double[length];
+    for (int i = 0; i < length; i++) {
+      value[i] = readDouble();
+    }
+    return value;
+  }
+
+  public void writeStringArray(String[] value) {
+    if (value == null) {
+      writeInt(-1);
+      return;
+    }
+    writeInt(value.length);
+    for (String element : value) {
+      writeString(element);
+    }
+  }
+
+  public String[] readStringArray() {
+    int length = readInt();
+    if (length < 0) {
+      return null;
+    }
+    String[] value = new String[length];
+    for (int i = 0; i < length; i++) {
+      value[i] = readString();
+    }
+    return value;
+  }
+
+  // Parcelables
+
+  public void writeParcelable(Parcelable value, int flags) {
+    if (value == null) {
+      writeString(null);
+      return;
+    }
+    writeString(value.getClass().getName());
+    value.writeToParcel(this, flags);
+  }
+
+  @SuppressWarnings("unchecked")
+  public <T extends Parcelable> T readParcelable(ClassLoader loader) {
+    String name = readString();
+    if (name == null) {
+      return null;
+    }
+    return (T) creator(name, loader).createFromParcel(this);
+  }
+
+  public <T extends Parcelable> void writeTypedList(List<T> value) {
+    if (value == null) {
+      writeInt(-1);
+      return;
+    }
+    int count = value.size();
+    writeInt(count);
+    for (int i = 0; i < count; i++) {
+      T element = value.get(i);
+      if (element == null) {
+        writeInt(0);
+      } else {
+        writeInt(1);
+        element.writeToParcel(this, 0);
+      }
+    }
+  }
+
+  public <T> ArrayList<T> createTypedArrayList(Parcelable.Creator<T> creator) {
+    int count = readInt();
+    if (count < 0) {
+      return null;
+    }
+    ArrayList<T> value = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      value.add(readInt() != 0 ? creator.createFromParcel(this) : null);
+    }
+    return value;
+  }
+
+  public void writeStringList(List<String> value) {
+    if (value == null) {
+      writeInt(-1);
+      return;
+    }
+    int count = value.size();
+    writeInt(count);
+    for (int i = 0; i < count; i++) {
+      writeString(value.get(i));
+    }
+  }
+
+  public ArrayList<String> createStringArrayList() {
+    int count = readInt();
+    if (count < 0) {
+      return null;
+    }
+    ArrayList<String> value = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      value.add(readString());
+    }
+    return value;
+  }
+
+  public void writeSerializable(Serializable value) {
+    if (value == null) {
+      writeString(null);
+      return;
+    }
+    writeString(value.getClass().getName());
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(value);
+    } catch (IOException e) {
+      throw new RuntimeException("Parcelable encountered IOException writing serializable object "
+          + "(name = " + value.getClass().getName() + ")", e);
+    }
+    writeByteArray(bytes.toByteArray());
+  }
+
+  public Serializable readSerializable() {
+    String name = readString();
+    if (name == null) {
+      return null;
+    }
+    byte[] bytes = createByteArray();
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes)) {
+      @Override protected Class<?> resolveClass(ObjectStreamClass desc)
+          throws IOException, ClassNotFoundException {
+        // Classes compiled by a test are only visible to the loader the test runs them with.
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader != null) {
+          try {
+            return Class.forName(desc.getName(), false, loader);
+          } catch (ClassNotFoundException ignored) {
+          }
+        }
+        return super.resolveClass(desc);
+      }
+    }) {
+      return (Serializable) in.readObject();
+    } catch (IOException | ClassNotFoundException e) {
+      throw new RuntimeException("Parcelable encountered " + e.getClass().getSimpleName()
+          + " reading a Serializable object (name = " + name + ")", e);
+    }
+  }
+
+  // Generic values
+
+  public void writeValue(Object value) {
+    if (value == null) {
+      writeInt(VAL_NULL);
+    } else if (value instanceof String) {
+      writeInt(VAL_STRING);
+      writeString((String) value);
+    } else if (value instanceof Integer) {
+      writeInt(VAL_INTEGER);
+      writeInt((Integer) value);
+    } else if (value instanceof Map) {
+      writeInt(VAL_MAP);
+      writeMap((Map) value);
+    } else if (value instanceof Parcelable) {
+      writeInt(VAL_PARCELABLE);
+      writeParcelable((Parcelable) value, 0);
+    } else if (value instanceof Short) {
+      writeInt(VAL_SHORT);
+      writeInt((Short) value);
+    } else if (value instanceof Long) {
+      writeInt(VAL_LONG);
+      writeLong((Long) value);
+    } else if (value instanceof Float) {
+      writeInt(VAL_FLOAT);
+      writeFloat((Float) value);
+    } else if (value instanceof Double) {
+      writeInt(VAL_DOUBLE);
+      writeDouble((Double) value);
+    } else if (value instanceof Boolean) {
+      writeInt(VAL_BOOLEAN);
+      writeInt((Boolean) value ? 1 : 0);
+    } else if (value instanceof List) {
+      writeInt(VAL_LIST);
+      writeList((List) value);
+    } else if (value instanceof byte[]) {
+      writeInt(VAL_BYTEARRAY);
+      writeByteArray((byte[]) value);
+    } else if (value instanceof String[]) {
+      writeInt(VAL_STRINGARRAY);
+      writeStringArray((String[]) value);
+    } else if (value instanceof int[]) {
+      writeInt(VAL_INTARRAY);
+      writeIntArray((int[]) value);
+    } else if (value instanceof long[]) {
+      writeInt(VAL_LONGARRAY);
+      writeLongArray((long[]) value);
+    } else if (value instanceof Byte) {
+      writeInt(VAL_BYTE);
+      writeInt((Byte) value);
+    } else if (value instanceof boolean[]) {
+      writeInt(VAL_BOOLEANARRAY);
+      writeBooleanArray((boolean[]) value);
+    } else if (value instanceof double[]) {
+      writeInt(VAL_DOUBLEARRAY);
+      writeDoubleArray((double[]) value);
+    } else if (value instanceof Serializable) {
+      writeInt(VAL_SERIALIZABLE);
+      writeSerializable((Serializable) value);
+    } else {
+      throw new RuntimeException("Parcel: unable to marshal value " + value);
+    }
+  }
+
+  public Object readValue(ClassLoader loader) {
+    int type = readInt();
+    switch (type) {
+      case VAL_NULL:
+        return null;
+      case VAL_STRING:
+        return readString();
+      case VAL_INTEGER:
+        return readInt();
+      case VAL_MAP:
+        return readHashMap(loader);
+      case VAL_PARCELABLE:
+        return readParcelable(loader);
+      case VAL_SHORT:
+        return (short) readInt();
+      case VAL_LONG:
+        return readLong();
+      case VAL_FLOAT:
+        return readFloat();
+      case VAL_DOUBLE:
+        return readDouble();
+      case VAL_BOOLEAN:
+        return readInt() == 1;
+      case VAL_LIST:
+        return readArrayList(loader);
+      case VAL_BYTEARRAY:
+        return createByteArray();
+      case VAL_STRINGARRAY:
+        return readStringArray();
+      case VAL_INTARRAY:
+        return createIntArray();
+      case VAL_LONGARRAY:
+        return createLongArray();
+      case VAL_BYTE:
+        return (byte) readInt();
+      case VAL_SERIALIZABLE:
+        return readSerializable();
+      case VAL_BOOLEANARRAY:
+        return createBooleanArray();
+      case VAL_DOUBLEARRAY:
+        return createDoubleArray();
+      default:
+        int offset = dataPosition() - 4;
+        throw new RuntimeException("Parcel " + this + ": Unmarshalling unknown type code " + type
+            + " at offset " + offset);
+    }
+  }
+
+  public void writeList(List value) {
+    if (value == null) {
+      writeInt(-1);
+      return;
+    }
+    int count = value.size();
+    writeInt(count);
+    for (int i = 0; i < count; i++) {
+      writeValue(value.get(i));
+    }
+  }
+
+  public ArrayList readArrayList(ClassLoader loader) {
+    int count = readInt();
+    if (count < 0) {
+      return null;
+    }
+    ArrayList<Object> value = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      value.add(readValue(loader));
+    }
+    return value;
+  }
+
+  public void writeMap(Map value) {
+    if (value == null) {
+      writeInt(-1);
+      return;
+    }
+    writeInt(value.size());
+    for (Object entry : value.entrySet()) {
+      writeValue(((Map.Entry) entry).getKey());
+      writeValue(((Map.Entry) entry).getValue());
+    }
+  }
+
+  public HashMap readHashMap(ClassLoader loader) {
+    int count = readInt();
+    if (count < 0) {
+      return null;
+    }
+    HashMap<Object, Object> value = new HashMap<>(count);
+    for (int i = 0; i < count; i++) {
+      Object key = readValue(loader);
+      value.put(key, readValue(loader));
+    }
+    return value;
+  }
+
+  private static Parcelable.Creator<?> creator(String name, ClassLoader loader) {
+    Parcelable.Creator<?> creator = CREATORS.get(name);
+    if (creator == null) {
+      try {
+        Class<?> type = Class.forName(name, false,
+            loader == null ? Parcel.class.getClassLoader() : loader);
+        Field field = type.getField("CREATOR");
+        if (!Modifier.isStatic(field.getModifiers())) {
+          throw new RuntimeException("Parcelable protocol requires the CREATOR object to be "
+              + "static on class " + name);
+        }
+        // Generated classes are package private, so their public field still needs this.
+        field.setAccessible(true);
+        creator = (Parcelable.Creator<?>) field.get(null);
+      } catch (ReflectiveOperationException e) {
+        throw new RuntimeException("Parcelable protocol requires a Parcelable.Creator object "
+            + "called CREATOR on class " + name, e);
+      }
+      CREATORS.put(name, creator);
+    }
+    return creator;
+  }
+
+  /**
+   * Makes room for {@code bytes} more bytes at the current position, and returns the buffer to
+   * write them to.
+   */
+  private ByteBuffer reserve(int bytes) {
+    int end = buffer.position() + bytes;
+    ensureCapacity(end);
+    if (end > size) {
+      size = end;
+    }
+    return buffer;
+  }
+
+  /** Zeroes the bytes from {@code start} to {@code end}, and moves to {@code end}. */
+  private void pad(int start, int end) {
+    for (int i = start; i < end; i++) {
+      buffer.put(i, (byte) 0);
+    }
+    buffer.position(end);
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > buffer.capacity()) {
+      ByteBuffer grown = allocate(Math.max(capacity, buffer.capacity() * 2));
+      int position = buffer.position();
+      buffer.clear();
+      buffer.limit(size);
+      grown.put(buffer);
+      grown.position(position);
+      buffer = grown;
+    }
+  }
+
+  private static ByteBuffer allocate(int capacity) {
+    return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+  }
+
+  private static int align(int bytes) {
+    return (bytes + 3) & ~3;
+  }
+}
@@ -1,8 +1,14 @@
 package android.os;
 
 public interface Parcelable {
+  int CONTENTS_FILE_DESCRIPTOR = 0x0001;
+  int PARCELABLE_WRITE_RETURN_VALUE = 0x0001;
 
   int describeContents();
-  void writeToParcel(Object dest, int flags);
+  void writeToParcel(Parcel dest, int flags);
 
+  interface Creator<T> {
+    T createFromParcel(Parcel source);
+    T[] newArray(int size);
+  }
 }
@@ -1,29 +1,52 @@
 package com.ryanharter.auto.value.parcel;
 
+import android.os.Parcel;
 import android.os.Parcelable;
 import com.google.auto.common.MoreElements;
 import com.google.auto.value.extension.AutoValueExtension;
 import com.google.auto.value.processor.AutoValueProcessor;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.testing.compile.Compilation;
 import com.google.testing.compile.CompilationRule;
 import com.google.testing.compile.JavaFileObjects;
 import com.ryanharter.auto.value.parcel.util.TestMessager;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.TypeName;
 import com.ryanharter.auto.value.parcel.util.TestProcessingEnvironment;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.annotation.processing.Messager;
 import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.SourceVersion;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
 import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
 import javax.tools.JavaFileObject;
 import org.junit.Before;
 import org.junit.Rule;
@@ -31,11 +54,23 @@ import org.junit.Test;
 
 import static com.google.common.truth.Truth.assertAbout;
 import static com.google.common.truth.Truth.assertThat;
+import static com.google.testing.compile.CompilationSubject.compilations;
+import static com.google.testing.compile.Compiler.javac;
 import static com.google.testing.compile.JavaSourcesSubjectFactory.javaSources;
 import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
 public class AutoValueParcelExtensionTest {
 
+  /**
+   * The {@code Generated} annotation the extension picks when compiling against the running JDK,
+   * for tests that can only run on javac 9 or later.
+   */
+  private static final String GENERATED_ANNOTATION =
+      SourceVersion.latest().compareTo(SourceVersion.RELEASE_8) > 0
+          ? "javax.annotation.processing.Generated"
+          : "javax.annotation.Generated";
+
   @Rule public CompilationRule rule = new CompilationRule();
 
   AutoValueParcelExtension extension = new AutoValueParcelExtension();
@@ -57,6 +92,7 @@ public class AutoValueParcelExtensionTest {
     parcelable = JavaFileObjects.forSourceString("android.os.Parcelable", ""
         + "package android.os;\n"
         + "public interface Parcelable {\n"
+        + "int CONTENTS_FILE_DESCRIPTOR = 0x0001;\n"
         + "public interface Creator<T> {\n"
         + "  public T createFromParcel(Parcel source);\n"
         + "  public T[] newArray(int size);\n"
@@ -88,8 +124,11 @@ public class AutoValueParcelExtensionTest {
         "  CharSequence readCharSequence();\n" +
         "  HashMap readHashMap(ClassLoader cl);\n" +
         "  ArrayList readArrayList(ClassLoader cl);\n" +
+        "  ArrayList<String> createStringArrayList();\n" +
+        "  <T> ArrayList<T> createTypedArrayList(Parcelable.Creator<T> c);\n" +
         "  boolean[] createBooleanArray();\n" +
         "  byte[] createByteArray();\n" +
+        "  void readByteArray(byte[] val);\n" +
         "  char[] createCharArray();\n" +
         "  int[] createIntArray();\n" +
         "  long[] createLongArray();\n" +
@@ -107,8 +146,13 @@ public class AutoValueParcelExtensionTest {
         "  void writeCharSequence(CharSequence in);\n" +
         "  void writeMap(Map in);\n" +
         "  void writeList(List in);\n" +
+        "  void writeStringList(List<String> in);\n" +
+        "  <T extends Parcelable> void writeTypedList(List<T> in);\n" +
         "  void writeBooleanArray(boolean[] in);\n" +
         "  void writeByteArray(byte[] in);\n" +
+        "  void writeByteArray(byte[] in, int offset, int len);\n" +
+        "  int dataPosition();\n" +
+        "  void setDataPosition(int pos);\n" +
         "  void writeCharArray(char[] in);\n" +
         "  void writeIntArray(int[] in);\n" +
         "  void writeLongArray(long[] in);\n" +
@@ -713,6 +757,7 @@ public class AutoValueParcelExtensionTest {
         "import java.lang.Short;\n" +
         "import java.lang.String;\n" +
         "import java.lang.SuppressWarnings;\n" +
+        "import java.util.HashMap;\n" +
         "import java.util.List;\n" +
         "import java.util.Map;\n" +
         "import javax.annotation.Generated;\n" +
@@ -723,17 +768,19 @@ public class AutoValueParcelExtensionTest {
         "    @Override\n" +
         "    @SuppressWarnings({\"unchecked\",\"rawtypes\"})\n" +
         "    public AutoValue_Foo createFromParcel(Parcel in) {\n" +
+        "      long packed0 = in.readLong();\n" +
+        "      int packed1 = in.readInt();\n" +
         "      return new AutoValue_Foo(\n" +
         "        in.readString(),\n" +
         "        in.readInt() == 0 ? in.readString() : null,\n" +
-        "        in.readByte(),\n" +
-        "        in.readByte(),\n" +
+        "        (byte) packed0,\n" +
+        "        (byte) (packed0 >>> 8),\n" +
         "        in.readInt() == 0 ? in.readByte() : null,\n" +
         "        in.readInt(),\n" +
         "        in.readInt(),\n" +
         "        in.readInt() == 0 ? in.readInt() : null,\n" +
-        "        (short) in.readInt(),\n" +
-        "        (short) in.readInt(),\n" +
+        "        (short) (packed0 >>> 16),\n" +
+        "        (short) (packed0 >>> 32),\n" +
         "        in.readInt() == 0 ? (short) in.readInt() : null,\n" +
         "        in.readLong(),\n" +
         "        in.readLong(),\n" +
@@ -744,25 +791,25 @@ public class AutoValueParcelExtensionTest {
         "        in.readDouble(),\n" +
         "        in.readDouble(),\n" +
         "        in.readInt() == 0 ? in.readDouble() : null,\n" +
-        "        in.readInt() == 1,\n" +
-        "        in.readInt() == 1,\n" +
+        "        (packed0 & 0x1000000000000L) != 0,\n" +
+        "        (packed0 & 0x2000000000000L) != 0,\n" +
         "        in.readInt() == 0 ? in.readInt() == 1 : null,\n" +
         "        in.readParcelable(Foo.class.getClassLoader()),\n" +
         "        in.readParcelable(Foo.class.getClassLoader()),\n" +
         "        TextUtils.CHAR_SEQUENCE_CREATOR.createFromParcel(in),\n" +
         "        in.readInt() == 0 ? TextUtils.CHAR_SEQUENCE_CREATOR.createFromParcel(in) : null,\n" +
-        "        (Map<String, String>) in.readHashMap(Foo.class.getClassLoader()),\n" +
-        "        (Map<String, String>) in.readHashMap(Foo.class.getClassLoader()),\n" +
-        "        (List<String>) in.readArrayList(Foo.class.getClassLoader()),\n" +
-        "        (List<String>) in.readArrayList(Foo.class.getClassLoader()),\n" +
-        "        ImmutableList.<String>copyOf(in.readArrayList(String.class.getClassLoader())),\n" +
-        "        in.readInt() == 0 ? ImmutableList.<String>copyOf(in.readArrayList(String.class.getClassLoader())) : null,\n" +
+        "        readMap(in),\n" +
+        "        readMap(in),\n" +
+        "        in.createStringArrayList(),\n" +
+        "        in.createStringArrayList(),\n" +
+        "        readImmutableList(in),\n" +
+        "        in.readInt() == 0 ? readImmutableList(in) : null,\n" +
         "        ImmutableList.copyOf(in.readArrayList(Object.class.getClassLoader())),\n" +
         "        in.readInt() == 0 ? ImmutableList.copyOf(in.readArrayList(Object.class.getClassLoader())) : null,\n" +
-        "        ImmutableSet.<String>copyOf(in.readArrayList(String.class.getClassLoader())),\n" +
-        "        in.readInt() == 0 ? ImmutableSet.<String>copyOf(in.readArrayList(String.class.getClassLoader())) : null,\n" +
-        "        ImmutableMap.<String, Integer>copyOf(in.readHashMap(String.class.getClassLoader())),\n" +
-        "        in.readInt() == 0 ? ImmutableMap.<String, Integer>copyOf(in.readHashMap(String.class.getClassLoader())) : null,\n" +
+        "        readImmutableSet(in),\n" +
+        "        in.readInt() == 0 ? readImmutableSet(in) : null,\n" +
+        "        readImmutableMap(in),\n" +
+        "        in.readInt() == 0 ? readImmutableMap(in) : null,\n" +
         "        in.createBooleanArray(),\n" +
         "        in.readInt() == 0 ? in.createBooleanArray() : null,\n" +
         "        in.createByteArray(),\n" +
@@ -789,15 +836,15 @@ public class AutoValueParcelExtensionTest {
         "        (Parcelable1) in.readParcelable(Foo.class.getClassLoader()),\n" +
         "        (FooBinder) in.readStrongBinder(),\n" +
         "        in.readInt() == 0 ? (FooBinder) in.readStrongBinder() : null,\n" +
-        "        (char) in.readInt(),\n" +
-        "        (char) in.readInt(),\n" +
+        "        (char) packed1,\n" +
+        "        (char) (packed1 >>> 16),\n" +
         "        in.readInt() == 0 ? (char) in.readInt() : null,\n" +
         "        in.createCharArray(),\n" +
         "        in.readInt() == 0 ? in.createCharArray() : null,\n" +
         "        Enum.valueOf(Numbers.class, in.readString()),\n" +
         "        in.readInt() == 0 ? Enum.valueOf(Numbers.class, in.readString()) : null,\n" +
-        "        (Numbers2) in.readParcelable(Foo.class.getClassLoader()),\n" +
-        "        (Numbers2) in.readParcelable(Foo.class.getClassLoader())\n" +
+        "        Numbers2.CREATOR.createFromParcel(in),\n" +
+        "        in.readInt() == 0 ? Numbers2.CREATOR.createFromParcel(in) : null\n" +
         "      );\n" +
         "    }\n" +
         "    @Override\n" +
@@ -813,6 +860,14 @@ public class AutoValueParcelExtensionTest {
         "\n" +
         "  @Override\n" +
         "  public void writeToParcel(Parcel dest, int flags) {\n" +
+        "    dest.writeLong((b() & 0xFFL)\n" +
+        "        | (B() & 0xFFL) << 8\n" +
+        "        | (d() & 0xFFFFL) << 16\n" +
+        "        | (D() & 0xFFFFL) << 32\n" +
+        "        | (h() ? 1L : 0L) << 48\n" +
+        "        | (H() ? 1L : 0L) << 49);\n" +
+        "    dest.writeInt((ag() & 0xFFFF)\n" +
+        "        | (ah() & 0xFFFF) << 16);\n" +
         "    dest.writeString(a());\n" +
         "    if (an() == null) {\n" +
         "      dest.writeInt(1);\n" +
@@ -820,8 +875,6 @@ public class AutoValueParcelExtensionTest {
         "      dest.writeInt(0);\n" +
         "      dest.writeString(an());\n" +
         "    }\n" +
-        "    dest.writeInt(b());\n" +
-        "    dest.writeInt(B());\n" +
         "    if (BN() == null) {\n" +
         "      dest.writeInt(1);\n" +
         "    } else {\n" +
@@ -836,8 +889,6 @@ public class AutoValueParcelExtensionTest {
         "      dest.writeInt(0);\n" +
         "      dest.writeInt(CN());\n" +
         "    }\n" +
-        "    dest.writeInt(d());\n" +
-        "    dest.writeInt(D().intValue());\n" +
         "    if (DN() == null) {\n" +
         "      dest.writeInt(1);\n" +
         "    } else {\n" +
@@ -868,8 +919,6 @@ public class AutoValueParcelExtensionTest {
         "      dest.writeInt(0);\n" +
         "      dest.writeDouble(GN());\n" +
         "    }\n" +
-        "    dest.writeInt(h() ? 1 : 0);\n" +
-        "    dest.writeInt(H() ? 1 : 0);\n" +
         "    if (HN() == null) {\n" +
         "      dest.writeInt(1);\n" +
         "    } else {\n" +
@@ -885,16 +934,16 @@ public class AutoValueParcelExtensionTest {
         "      dest.writeInt(0);\n" +
         "      TextUtils.writeToParcel(jn(), dest, flags);\n" +
         "    }\n" +
-        "    dest.writeMap(k());\n" +
-        "    dest.writeMap(kn());\n" +
-        "    dest.writeList(l());\n" +
-        "    dest.writeList(ln());\n" +
-        "    dest.writeList(il().asList());\n" +
+        "    writeMap(k(), dest, flags);\n" +
+        "    writeMap(kn(), dest, flags);\n" +
+        "    dest.writeStringList(l());\n" +
+        "    dest.writeStringList(ln());\n" +
+        "    writeImmutableList(il(), dest, flags);\n" +
         "    if (iln() == null) {\n" +
         "      dest.writeInt(1);\n" +
         "    } else {\n" +
         "      dest.writeInt(0);\n" +
-        "      dest.writeList(iln().asList());\n" +
+        "      writeImmutableList(iln(), dest, flags);\n" +
         "    }\n" +
         "    dest.writeList(ilg().asList());\n" +
         "    if (ilgn() == null) {\n" +
@@ -903,19 +952,19 @@ public class AutoValueParcelExtensionTest {
         "      dest.writeInt(0);\n" +
         "      dest.writeList(ilgn().asList());\n" +
         "    }\n" +
-        "    dest.writeList(is().asList());\n" +
+        "    writeImmutableSet(is(), dest, flags);\n" +
         "    if (isn() == null) {\n" +
         "      dest.writeInt(1);\n" +
         "    } else {\n" +
         "      dest.writeInt(0);\n" +
-        "      dest.writeList(isn().asList());\n" +
+        "      writeImmutableSet(isn(), dest, flags);\n" +
         "    }\n" +
-        "    dest.writeMap(im());\n" +
+        "    writeImmutableMap(im(), dest, flags);\n" +
         "    if (imn() == null) {\n" +
         "      dest.writeInt(1);\n" +
         "    } else {\n" +
         "      dest.writeInt(0);\n" +
-        "      dest.writeMap(imn());\n" +
+        "      writeImmutableMap(imn(), dest, flags);\n" +
         "    }\n" +
         "    dest.writeBooleanArray(m());\n" +
         "    if (mn() == null) {\n" +
@@ -983,8 +1032,6 @@ public class AutoValueParcelExtensionTest {
         "      dest.writeInt(0);\n" +
         "      dest.writeStrongBinder(aen());\n" +
         "    }\n" +
-        "    dest.writeInt(ag());\n" +
-        "    dest.writeInt(ah());\n" +
         "    if (ahn() == null) {\n" +
         "      dest.writeInt(1);\n" +
         "    } else {\n" +
@@ -1005,8 +1052,95 @@ public class AutoValueParcelExtensionTest {
         "      dest.writeInt(0);\n" +
         "      dest.writeString(((Enum<?>) ajn()).name());\n" +
         "    }\n" +
-        "    dest.writeParcelable(ak(), flags);\n" +
-        "    dest.writeParcelable(akn(), flags);\n" +
+        "    ak().writeToParcel(dest, flags);\n" +
+        "    if (akn() == null) {\n" +
+        "      dest.writeInt(1);\n" +
+        "    } else {\n" +
+        "      dest.writeInt(0);\n" +
+        "      akn().writeToParcel(dest, flags);\n" +
+        "    }\n" +
+        "  }\n" +
+        "\n" +
+        "  private static void writeMap(Map<String, String> value, Parcel dest, int flags) {\n" +
+        "    if (value == null) {\n" +
+        "      dest.writeInt(-1);\n" +
+        "      return;\n" +
+        "    }\n" +
+        "    dest.writeInt(value.size());\n" +
+        "    for (Map.Entry<String, String> entry : value.entrySet()) {\n" +
+        "      dest.writeString(entry.getKey());\n" +
+        "      dest.writeString(entry.getValue());\n" +
+        "    }\n" +
+        "  }\n" +
+        "\n" +
+        "  private static void writeImmutableList(ImmutableList<String> value, Parcel dest, int flags) {\n" +
+        "    dest.writeInt(value.size());\n" +
+        "    for (String element : value) {\n" +
+        "      dest.writeString(element);\n" +
+        "    }\n" +
+        "  }\n" +
+        "\n" +
+        "  private static void writeImmutableSet(ImmutableSet<String> value, Parcel dest, int flags) {\n" +
+        "    dest.writeInt(value.size());\n" +
+        "    for (String element : value) {\n" +
+        "      dest.writeString(element);\n" +
+        "    }\n" +
+        "  }\n" +
+        "\n" +
+        "  private static void writeImmutableMap(ImmutableMap<String, Integer> value, Parcel dest, int flags) {\n" +
+        "    dest.writeInt(value.size());\n" +
+        "    for (Map.Entry<String, Integer> entry : value.entrySet()) {\n" +
+        "      dest.writeString(entry.getKey());\n" +
+        "      dest.writeInt(entry.getValue());\n" +
+        "    }\n" +
+        "  }\n" +
+        "\n" +
+        "  private static Map<String, String> readMap(Parcel in) {\n" +
+        "    int size = in.readInt();\n" +
+        "    if (size < 0) {\n" +
+        "      return null;\n" +
+        "    }\n" +
+        "    Map<String, String> map = new HashMap<String, String>((int) (size / 0.75f) + 1);\n" +
+        "    for (int i = 0; i < size; i++) {\n" +
+        "      map.put(in.readString(), in.readString());\n" +
+        "    }\n" +
+        "    return map;\n" +
+        "  }\n" +
+        "\n" +
+        "  private static ImmutableList<String> readImmutableList(Parcel in) {\n" +
+        "    int size = in.readInt();\n" +
+        "    if (size == 0) {\n" +
+        "      return ImmutableList.of();\n" +
+        "    }\n" +
+        "    ImmutableList.Builder<String> builder = ImmutableList.builderWithExpectedSize(size);\n" +
+        "    for (int i = 0; i < size; i++) {\n" +
+        "      builder.add(in.readString());\n" +
+        "    }\n" +
+        "    return builder.build();\n" +
+        "  }\n" +
+        "\n" +
+        "  private static ImmutableSet<String> readImmutableSet(Parcel in) {\n" +
+        "    int size = in.readInt();\n" +
+        "    if (size == 0) {\n" +
+        "      return ImmutableSet.of();\n" +
+        "    }\n" +
+        "    ImmutableSet.Builder<String> builder = ImmutableSet.builderWithExpectedSize(size);\n" +
+        "    for (int i = 0; i < size; i++) {\n" +
+        "      builder.add(in.readString());\n" +
+        "    }\n" +
+        "    return builder.build();\n" +
+        "  }\n" +
+        "\n" +
+        "  private static ImmutableMap<String, Integer> readImmutableMap(Parcel in) {\n" +
+        "    int size = in.readInt();\n" +
+        "    if (size == 0) {\n" +
+        "      return ImmutableMap.of();\n" +
+        "    }\n" +
+        "    ImmutableMap.Builder<String, Integer> builder = ImmutableMap.builderWithExpectedSize(size);\n" +
+        "    for (int i = 0; i < size; i++) {\n" +
+        "      builder.put(in.readString(), in.readInt());\n" +
+        "    }\n" +
+        "    return builder.build();\n" +
         "  }\n" +
         "\n" +
         "  @Override\n" +
@@ -1048,6 +1182,7 @@ public class AutoValueParcelExtensionTest {
         "import java.lang.Override;\n" +
         "import java.lang.String;\n" +
         "import java.lang.SuppressWarnings;\n" +
+        "import java.util.HashMap;\n" +
         "import java.util.List;\n" +
         "import java.util.Map;\n" +
         "import javax.annotation.Generated;\n" +
@@ -1061,9 +1196,9 @@ public class AutoValueParcelExtensionTest {
         "    public AutoValue_Test createFromParcel(Parcel in) {\n" +
         "      return new AutoValue_Test(\n" +
         "          (Map) in.readHashMap(Test.class.getClassLoader()),\n" +
-        "          (Map<String, CharSequence>) in.readHashMap(Test.class.getClassLoader()),\n" +
+        "          readMap(in),\n" +
         "          (List) in.readArrayList(Test.class.getClassLoader()),\n" +
-        "          (List<String>) in.readArrayList(Test.class.getClassLoader())" +
+        "          in.createStringArrayList()" +
         "      );\n" +
         "    }\n" +
         "    @Override\n" +
@@ -1080,9 +1215,33 @@ public class AutoValueParcelExtensionTest {
         "  @Override\n" +
         "  public void writeToParcel(Parcel dest, int flags) {\n" +
         "    dest.writeMap(a());\n" +
-        "    dest.writeMap(b());\n" +
+        "    writeMap(b(), dest, flags);\n" +
         "    dest.writeList(c());\n" +
-        "    dest.writeList(d());\n" +
+        "    dest.writeStringList(d());\n" +
+        "  }\n" +
+        "\n" +
+        "  private static void writeMap(Map<String, CharSequence> value, Parcel dest, int flags) {\n" +
+        "    if (value == null) {\n" +
+        "      dest.writeInt(-1);\n" +
+        "      return;\n" +
+        "    }\n" +
+        "    dest.writeInt(value.size());\n" +
+        "    for (Map.Entry<String, CharSequence> entry : value.entrySet()) {\n" +
+        "      dest.writeString(entry.getKey());\n" +
+        "      dest.writeValue(entry.getValue());\n" +
+        "    }\n" +
+        "  }\n" +
+        "\n" +
+        "  private static Map<String, CharSequence> readMap(Parcel in) {\n" +
+        "    int size = in.readInt();\n" +
+        "    if (size < 0) {\n" +
+        "      return null;\n" +
+        "    }\n" +
+        "    Map<String, CharSequence> map = new HashMap<String, CharSequence>((int) (size / 0.75f) + 1);\n" +
+        "    for (int i = 0; i < size; i++) {\n" +
+        "      map.put(in.readString(), (CharSequence) in.readValue(Test.class.getClassLoader()));\n" +
+        "    }\n" +
+        "    return map;\n" +
         "  }\n" +
         "\n" +
         "  @Override\n" +
@@ -1182,20 +1341,19 @@ public class AutoValueParcelExtensionTest {
         + "\n"
         + "import android.os.Parcel;\n"
         + "import android.os.Parcelable;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelAdapters;\n"
         + "import java.lang.Override;\n"
         + "import javax.annotation.Generated;\n"
         + "\n"
         + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")"
         + "final class AutoValue_Foo extends $AutoValue_Foo {\n"
         + "\n"
-        + "  private static final BarTypeAdapter BAR_TYPE_ADAPTER = new BarTypeAdapter();\n"
-        + "\n"
         + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
         + "    @Override\n"
         + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
         + "      return new AutoValue_Foo(\n"
-        + "        BAR_TYPE_ADAPTER.fromParcel(in),\n"
-        + "        BAR_TYPE_ADAPTER.fromParcel(in)\n"
+        + "        TypeAdapterHolder.BAR_TYPE_ADAPTER.fromParcel(in),\n"
+        + "        TypeAdapterHolder.BAR_TYPE_ADAPTER.fromParcel(in)\n"
         + "      );\n"
         + "    }\n"
         + "    @Override\n"
@@ -1210,14 +1368,18 @@ public class AutoValueParcelExtensionTest {
         + "\n"
         + "  @Override\n"
         + "  public void writeToParcel(Parcel dest, int flags) {\n"
-        + "    BAR_TYPE_ADAPTER.toParcel(bar(), dest);\n"
-        + "    BAR_TYPE_ADAPTER.toParcel(bar1(), dest);\n"
+        + "    TypeAdapterHolder.BAR_TYPE_ADAPTER.toParcel(bar(), dest);\n"
+        + "    TypeAdapterHolder.BAR_TYPE_ADAPTER.toParcel(bar1(), dest);\n"
         + "  }\n"
         + "\n"
         + "  @Override\n"
         + "  public int describeContents() {\n"
         + "    return 0;\n"
         + "  }\n"
+        + "\n"
+        + "  private static final class TypeAdapterHolder {\n"
+        + "    static final BarTypeAdapter BAR_TYPE_ADAPTER = ParcelAdapters.get(BarTypeAdapter.class, BarTypeAdapter::new);\n"
+        + "  }\n"
         + "}\n");
 
     assertAbout(javaSources())
@@ -1257,7 +1419,7 @@ public class AutoValueParcelExtensionTest {
         + "    @SuppressWarnings({\"unchecked\",\"rawtypes\"})\n"
         + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
         + "      return new AutoValue_Foo(\n"
-        + "          (List<String>) in.readArrayList(Foo.class.getClassLoader()),\n"
+        + "          in.createStringArrayList(),\n"
         + "          (List<List<String>>) in.readArrayList(Foo.class.getClassLoader()),\n"
         + "          (List<List<List<String>>>) in.readArrayList(Foo.class.getClassLoader())\n"
         + "      );\n"
@@ -1275,7 +1437,7 @@ public class AutoValueParcelExtensionTest {
         + "\n"
         + "  @Override\n"
         + "  public void writeToParcel(Parcel dest, int flags) {\n"
-        + "    dest.writeList(flat());\n"
+        + "    dest.writeStringList(flat());\n"
         + "    dest.writeList(nested());\n"
         + "    dest.writeList(doubleNested());\n"
         + "  }\n"
@@ -1363,21 +1525,19 @@ public class AutoValueParcelExtensionTest {
         + "\n"
         + "import android.os.Parcel;\n"
         + "import android.os.Parcelable;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelAdapters;\n"
         + "import java.lang.Override;\n"
         + "import javax.annotation.Generated;\n"
         + "\n"
         + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")"
         + "final class AutoValue_Foo extends $AutoValue_Foo {\n"
         + "\n"
-        + "  private static final Bar.MyTypeAdapter MY_TYPE_ADAPTER = new Bar.MyTypeAdapter();\n"
-        + "  private static final Baz.MyTypeAdapter MY_TYPE_ADAPTER_ = new Baz.MyTypeAdapter();\n"
-        + "\n"
         + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
         + "    @Override\n"
         + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
         + "      return new AutoValue_Foo(\n"
-        + "        MY_TYPE_ADAPTER.fromParcel(in),\n"
-        + "        MY_TYPE_ADAPTER_.fromParcel(in)\n"
+        + "        TypeAdapterHolder.MY_TYPE_ADAPTER.fromParcel(in),\n"
+        + "        TypeAdapterHolder.MY_TYPE_ADAPTER_.fromParcel(in)\n"
         + "      );\n"
         + "    }\n"
         + "    @Override\n"
@@ -1392,14 +1552,19 @@ public class AutoValueParcelExtensionTest {
         + "\n"
         + "  @Override\n"
         + "  public void writeToParcel(Parcel dest, int flags) {\n"
-        + "    MY_TYPE_ADAPTER.toParcel(bar(), dest);\n"
-        + "    MY_TYPE_ADAPTER_.toParcel(baz(), dest);\n"
+        + "    TypeAdapterHolder.MY_TYPE_ADAPTER.toParcel(bar(), dest);\n"
+        + "    TypeAdapterHolder.MY_TYPE_ADAPTER_.toParcel(baz(), dest);\n"
         + "  }\n"
         + "\n"
         + "  @Override\n"
         + "  public int describeContents() {\n"
         + "    return 0;\n"
         + "  }\n"
+        + "\n"
+        + "  private static final class TypeAdapterHolder {\n"
+        + "    static final Bar.MyTypeAdapter MY_TYPE_ADAPTER = ParcelAdapters.get(Bar.MyTypeAdapter.class, Bar.MyTypeAdapter::new);\n"
+        + "    static final Baz.MyTypeAdapter MY_TYPE_ADAPTER_ = ParcelAdapters.get(Baz.MyTypeAdapter.class, Baz.MyTypeAdapter::new);\n"
+        + "  }\n"
         + "}\n");
 
     assertAbout(javaSources())
@@ -1455,20 +1620,19 @@ public class AutoValueParcelExtensionTest {
         + "\n"
         + "import android.os.Parcel;\n"
         + "import android.os.Parcelable;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelAdapters;\n"
         + "import java.lang.Override;\n"
         + "import javax.annotation.Generated;\n"
         + "\n"
         + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")"
         + "final class AutoValue_Foo extends $AutoValue_Foo {\n"
         + "\n"
-        + "  private static final BarTypeAdapter BAR_TYPE_ADAPTER = new BarTypeAdapter();\n"
-        + "\n"
         + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
         + "    @Override\n"
         + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
         + "      return new AutoValue_Foo(\n"
-        + "        in.readInt() == 0 ? BAR_TYPE_ADAPTER.fromParcel(in) : null,\n"
-        + "        BAR_TYPE_ADAPTER.fromParcel(in)\n"
+        + "        in.readInt() == 0 ? TypeAdapterHolder.BAR_TYPE_ADAPTER.fromParcel(in) : null,\n"
+        + "        TypeAdapterHolder.BAR_TYPE_ADAPTER.fromParcel(in)\n"
         + "      );\n"
         + "    }\n"
         + "    @Override\n"
@@ -1487,15 +1651,19 @@ public class AutoValueParcelExtensionTest {
         + "      dest.writeInt(1);\n"
         + "    } else {\n"
         + "      dest.writeInt(0);\n"
-        + "      BAR_TYPE_ADAPTER.toParcel(barNullable(), dest);\n"
+        + "      TypeAdapterHolder.BAR_TYPE_ADAPTER.toParcel(barNullable(), dest);\n"
         + "    }\n"
-        + "    BAR_TYPE_ADAPTER.toParcel(barNonNullable(), dest);\n"
+        + "    TypeAdapterHolder.BAR_TYPE_ADAPTER.toParcel(barNonNullable(), dest);\n"
         + "  }\n"
         + "\n"
         + "  @Override\n"
         + "  public int describeContents() {\n"
         + "    return 0;\n"
         + "  }\n"
+        + "\n"
+        + "  private static final class TypeAdapterHolder {\n"
+        + "    static final BarTypeAdapter BAR_TYPE_ADAPTER = ParcelAdapters.get(BarTypeAdapter.class, BarTypeAdapter::new);\n"
+        + "  }\n"
         + "}\n");
 
     assertAbout(javaSources())
@@ -1665,7 +1833,7 @@ public class AutoValueParcelExtensionTest {
             "    @SuppressWarnings({\"unchecked\",\"rawtypes\"})\n" +
             "    public AutoValue_Test createFromParcel(Parcel in) {\n" +
             "      return new AutoValue_Test(\n" +
-            "          (List<String>) in.readArrayList(Test.class.getClassLoader())\n" +
+            "          in.createStringArrayList()\n" +
             "      );\n" +
             "    }\n" +
             "    @Override\n" +
@@ -1681,7 +1849,7 @@ public class AutoValueParcelExtensionTest {
             "\n" +
             "  @Override\n" +
             "  public void writeToParcel(Parcel dest, int flags) {\n" +
-            "    dest.writeList(a());\n" +
+            "    dest.writeStringList(a());\n" +
             "  }\n" +
             "\n" +
             "  @Override\n" +
@@ -1716,6 +1884,7 @@ public class AutoValueParcelExtensionTest {
             "import java.lang.Override;\n" +
             "import java.lang.String;\n" +
             "import java.lang.SuppressWarnings;\n" +
+            "import java.util.HashMap;\n" +
             "import java.util.Map;\n" +
             "import javax.annotation.Generated;\n" +
             "\n" +
@@ -1726,7 +1895,7 @@ public class AutoValueParcelExtensionTest {
             "    @SuppressWarnings({\"unchecked\",\"rawtypes\"})\n" +
             "    public AutoValue_Test createFromParcel(Parcel in) {\n" +
             "      return new AutoValue_Test(\n" +
-            "          (Map<String, String>) in.readHashMap(Test.class.getClassLoader())\n" +
+            "          readMap(in)\n" +
             "      );\n" +
             "    }\n" +
             "    @Override\n" +
@@ -1742,7 +1911,31 @@ public class AutoValueParcelExtensionTest {
             "\n" +
             "  @Override\n" +
             "  public void writeToParcel(Parcel dest, int flags) {\n" +
-            "    dest.writeMap(a());\n" +
+            "    writeMap(a(), dest, flags);\n" +
+            "  }\n" +
+            "\n" +
+            "  private static void writeMap(Map<String, String> value, Parcel dest, int flags) {\n" +
+            "    if (value == null) {\n" +
+            "      dest.writeInt(-1);\n" +
+            "      return;\n" +
+            "    }\n" +
+            "    dest.writeInt(value.size());\n" +
+            "    for (Map.Entry<String, String> entry : value.entrySet()) {\n" +
+            "      dest.writeString(entry.getKey());\n" +
+            "      dest.writeString(entry.getValue());\n" +
+            "    }\n" +
+            "  }\n" +
+            "\n" +
+            "  private static Map<String, String> readMap(Parcel in) {\n" +
+            "    int size = in.readInt();\n" +
+            "    if (size < 0) {\n" +
+            "      return null;\n" +
+            "    }\n" +
+            "    Map<String, String> map = new HashMap<String, String>((int) (size / 0.75f) + 1);\n" +
+            "    for (int i = 0; i < size; i++) {\n" +
+            "      map.put(in.readString(), in.readString());\n" +
+            "    }\n" +
+            "    return map;\n" +
             "  }\n" +
             "\n" +
             "  @Override\n" +
@@ -1816,17 +2009,18 @@ public class AutoValueParcelExtensionTest {
             "  public static final Parcelable.Creator<AutoValue_Test> CREATOR = new Parcelable.Creator<AutoValue_Test>() {\n" +
             "    @Override\n" +
             "    public AutoValue_Test createFromParcel(Parcel in) {\n" +
+            "      int packed0 = in.readInt();\n" +
             "      return new AutoValue_Test(\n" +
-            "          in.readByte(),\n" +
+            "          (byte) packed0,\n" +
             "          in.readInt(),\n" +
-            "          (short) in.readInt(),\n" +
+            "          (short) (packed0 >>> 8),\n" +
             "          in.readLong(),\n" +
             "          in.readFloat(),\n" +
             "          in.readDouble(),\n" +
             "          TextUtils.CHAR_SEQUENCE_CREATOR.createFromParcel(in),\n" +
             "          in.readStrongBinder(),\n" +
             "          in.readString(),\n" +
-            "          in.readInt() == 1,\n" +
+            "          (packed0 & 0x1000000) != 0,\n" +
             "          in.createBooleanArray(),\n" +
             "          in.createByteArray(),\n" +
             "          in.createIntArray(),\n" +
@@ -1849,16 +2043,16 @@ public class AutoValueParcelExtensionTest {
             "\n" +
             "  @Override\n" +
             "  public void writeToParcel(Parcel dest, int flags) {\n" +
-            "    dest.writeInt(a());\n" +
+            "    dest.writeInt((a() & 0xFF)\n" +
+            "        | (c() & 0xFFFF) << 8\n" +
+            "        | (k() ? 1 : 0) << 24);\n" +
             "    dest.writeInt(b());\n" +
-            "    dest.writeInt(c());\n" +
             "    dest.writeLong(d());\n" +
             "    dest.writeFloat(e());\n" +
             "    dest.writeDouble(f());\n" +
             "    TextUtils.writeToParcel(g(), dest, flags);\n" +
             "    dest.writeStrongBinder(i());\n" +
             "    dest.writeString(j());\n" +
-            "    dest.writeInt(k() ? 1 : 0);\n" +
             "    dest.writeBooleanArray(l());\n" +
             "    dest.writeByteArray(m());\n" +
             "    dest.writeIntArray(o());\n" +
@@ -2251,7 +2445,7 @@ public class AutoValueParcelExtensionTest {
         + "    @Override\n"
         + "    public AutoValue_PBar createFromParcel(Parcel in) {\n"
         + "      return new AutoValue_PBar(\n"
-        + "          (PFoo) in.readParcelable(PBar.class.getClassLoader())\n"
+        + "          AutoValue_PFoo.CREATOR.createFromParcel(in)\n"
         + "      );\n"
         + "    }\n"
         + "    @Override\n"
@@ -2266,7 +2460,7 @@ public class AutoValueParcelExtensionTest {
         + "\n"
         + "  @Override\n"
         + "  public void writeToParcel(Parcel dest, int flags) {\n"
-        + "    dest.writeParcelable(foo(), flags);\n"
+        + "    foo().writeToParcel(dest, flags);\n"
         + "  }\n"
         + "\n"
         + "  @Override\n"
@@ -2284,6 +2478,3007 @@ public class AutoValueParcelExtensionTest {
         .generatesSources(expectedPFoo, expectedPBar);
   }
 
+  @Test public void writesEnumOrdinals() {
+    JavaFileObject numbersEnum = JavaFileObjects.forSourceString("test.Numbers", ""
+        + "package test;\n"
+        + "public enum Numbers {\n"
+        + "  ONE, TWO, THREE\n"
+        + "}\n");
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelOrdinal;\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  @ParcelOrdinal public abstract Numbers a();\n"
+        + "  @ParcelOrdinal @Nullable public abstract Numbers b();\n"
+        + "  public abstract Numbers c();\n"
+        + "}");
+
+    JavaFileObject expected = JavaFileObjects.forSourceString("test/AutoValue_Foo", ""
+        + "package test;\n"
+        + "\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "import java.lang.Enum;\n"
+        + "import java.lang.IllegalArgumentException;\n"
+        + "import java.lang.Override;\n"
+        + "import javax.annotation.Generated;\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")\n"
+        + "final class AutoValue_Foo extends $AutoValue_Foo {\n"
+        + "  private static final Numbers[] NUMBERS_VALUES = Numbers.values();\n"
+        + "\n"
+        + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
+        + "      return new AutoValue_Foo(\n"
+        + "          readNumbers(in),\n"
+        + "          in.readInt() == 0 ? readNumbers(in) : null,\n"
+        + "          Enum.valueOf(Numbers.class, in.readString())\n"
+        + "      );\n"
+        + "    }\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo[] newArray(int size) {\n"
+        + "      return new AutoValue_Foo[size];\n"
+        + "    }\n"
+        + "  };\n"
+        + "\n"
+        + "  AutoValue_Foo(Numbers a, @Nullable Numbers b, Numbers c) {\n"
+        + "    super(a, b, c);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {\n"
+        + "    dest.writeInt(((Enum<?>) a()).ordinal());\n"
+        + "    if (b() == null) {\n"
+        + "      dest.writeInt(1);\n"
+        + "    } else {\n"
+        + "      dest.writeInt(0);\n"
+        + "      dest.writeInt(((Enum<?>) b()).ordinal());\n"
+        + "    }\n"
+        + "    dest.writeString(((Enum<?>) c()).name());\n"
+        + "  }\n"
+        + "\n"
+        + "  private static Numbers readNumbers(Parcel in) {\n"
+        + "    int ordinal = in.readInt();\n"
+        + "    if (ordinal < 0 || ordinal >= NUMBERS_VALUES.length) {\n"
+        + "      throw new IllegalArgumentException(\"Unknown Numbers ordinal: \" + ordinal);\n"
+        + "    }\n"
+        + "    return NUMBERS_VALUES[ordinal];\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int describeContents() {\n"
+        + "    return 0;\n"
+        + "  }\n"
+        + "}");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(nullable, parcel, parcelable, numbersEnum, source))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .compilesWithoutError()
+        .and()
+        .generatesSources(expected);
+  }
+
+  @Test public void writesEnumOrdinalsForAnnotatedClass() {
+    JavaFileObject numbersEnum = JavaFileObjects.forSourceString("test.Numbers", ""
+        + "package test;\n"
+        + "public enum Numbers {\n"
+        + "  ONE, TWO, THREE\n"
+        + "}\n");
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelOrdinal;\n"
+        + "@ParcelOrdinal\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  public abstract Numbers a();\n"
+        + "  public abstract Numbers b();\n"
+        + "}");
+
+    JavaFileObject expected = JavaFileObjects.forSourceString("test/AutoValue_Foo", ""
+        + "package test;\n"
+        + "\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "import java.lang.Enum;\n"
+        + "import java.lang.IllegalArgumentException;\n"
+        + "import java.lang.Override;\n"
+        + "import javax.annotation.Generated;\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")\n"
+        + "final class AutoValue_Foo extends $AutoValue_Foo {\n"
+        + "  private static final Numbers[] NUMBERS_VALUES = Numbers.values();\n"
+        + "\n"
+        + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
+        + "      return new AutoValue_Foo(\n"
+        + "          readNumbers(in),\n"
+        + "          readNumbers(in)\n"
+        + "      );\n"
+        + "    }\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo[] newArray(int size) {\n"
+        + "      return new AutoValue_Foo[size];\n"
+        + "    }\n"
+        + "  };\n"
+        + "\n"
+        + "  AutoValue_Foo(Numbers a, Numbers b) {\n"
+        + "    super(a, b);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {\n"
+        + "    dest.writeInt(((Enum<?>) a()).ordinal());\n"
+        + "    dest.writeInt(((Enum<?>) b()).ordinal());\n"
+        + "  }\n"
+        + "\n"
+        + "  private static Numbers readNumbers(Parcel in) {\n"
+        + "    int ordinal = in.readInt();\n"
+        + "    if (ordinal < 0 || ordinal >= NUMBERS_VALUES.length) {\n"
+        + "      throw new IllegalArgumentException(\"Unknown Numbers ordinal: \" + ordinal);\n"
+        + "    }\n"
+        + "    return NUMBERS_VALUES[ordinal];\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int describeContents() {\n"
+        + "    return 0;\n"
+        + "  }\n"
+        + "}");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(parcel, parcelable, numbersEnum, source))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .compilesWithoutError()
+        .and()
+        .generatesSources(expected);
+  }
+
+  @Test public void writesTypeVariableEnumsByNameForAnnotatedClass() throws Exception {
+    JavaFileObject numbersEnum = JavaFileObjects.forSourceString("test.Numbers", ""
+        + "package test;\n"
+        + "public enum Numbers {\n"
+        + "  ONE, TWO, THREE\n"
+        + "}\n");
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelOrdinal;\n"
+        + "@ParcelOrdinal\n"
+        + "@AutoValue public abstract class Foo<E extends Enum<E>> implements Parcelable {\n"
+        + "  public abstract Numbers a();\n"
+        + "  public abstract E status();\n"
+        + "  public static Foo<Numbers> sample() {\n"
+        + "    return new AutoValue_Foo<>(Numbers.TWO, Numbers.THREE);\n"
+        + "  }\n"
+        + "}");
+
+    ClassLoader loader = compile(numbersEnum, source);
+    Parcelable foo = (Parcelable) loader.loadClass("test.Foo").getMethod("sample").invoke(null);
+    assertThat(roundTrip(loader, foo)).isEqualTo(foo);
+  }
+
+  @Test public void failsOnEnumOrdinalOfTypeVariable() {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelOrdinal;\n"
+        + "@AutoValue public abstract class Foo<E extends Enum<E>> implements Parcelable {\n"
+        + "  @ParcelOrdinal public abstract E status();\n"
+        + "}");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(parcel, parcelable, source))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .failsToCompile()
+        .withErrorContaining("ParcelOrdinal can't be used on property status, since its type is "
+            + "a type variable.")
+        .in(source).onLine(6);
+  }
+
+  @Test public void packsBooleansAndSmallPrimitives() {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  public abstract boolean a();\n"
+        + "  public abstract boolean b();\n"
+        + "  public abstract int c();\n"
+        + "  public abstract byte d();\n"
+        + "  public abstract short e();\n"
+        + "  public abstract Boolean f();\n"
+        + "  @Nullable public abstract Boolean g();\n"
+        + "}");
+
+    JavaFileObject expected = JavaFileObjects.forSourceString("test/AutoValue_Foo", ""
+        + "package test;\n"
+        + "\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "import java.lang.Boolean;\n"
+        + "import java.lang.Override;\n"
+        + "import javax.annotation.Generated;\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")\n"
+        + "final class AutoValue_Foo extends $AutoValue_Foo {\n"
+        + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
+        + "      int packed0 = in.readInt();\n"
+        + "      return new AutoValue_Foo(\n"
+        + "          (packed0 & 0x1) != 0,\n"
+        + "          (packed0 & 0x2) != 0,\n"
+        + "          in.readInt(),\n"
+        + "          (byte) (packed0 >>> 2),\n"
+        + "          (short) (packed0 >>> 10),\n"
+        + "          (packed0 & 0x4000000) != 0,\n"
+        + "          in.readInt() == 0 ? in.readInt() == 1 : null\n"
+        + "      );\n"
+        + "    }\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo[] newArray(int size) {\n"
+        + "      return new AutoValue_Foo[size];\n"
+        + "    }\n"
+        + "  };\n"
+        + "\n"
+        + "  AutoValue_Foo(boolean a, boolean b, int c, byte d, short e, Boolean f, @Nullable Boolean g) {\n"
+        + "    super(a, b, c, d, e, f, g);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {\n"
+        + "    dest.writeInt((a() ? 1 : 0)\n"
+        + "        | (b() ? 1 : 0) << 1\n"
+        + "        | (d() & 0xFF) << 2\n"
+        + "        | (e() & 0xFFFF) << 10\n"
+        + "        | (f() ? 1 : 0) << 26);\n"
+        + "    dest.writeInt(c());\n"
+        + "    if (g() == null) {\n"
+        + "      dest.writeInt(1);\n"
+        + "    } else {\n"
+        + "      dest.writeInt(0);\n"
+        + "      dest.writeInt(g() ? 1 : 0);\n"
+        + "    }\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int describeContents() {\n"
+        + "    return 0;\n"
+        + "  }\n"
+        + "}");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(nullable, parcel, parcelable, source))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .compilesWithoutError()
+        .and()
+        .generatesSources(expected);
+  }
+
+  @Test public void writesNullBitmap() {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelNullBitmap;\n"
+        + "import java.util.List;\n"
+        + "@ParcelNullBitmap\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  @Nullable public abstract String a();\n"
+        + "  public abstract boolean b();\n"
+        + "  @Nullable public abstract Long c();\n"
+        + "  @Nullable public abstract List<String> d();\n"
+        + "}");
+
+    JavaFileObject expected = JavaFileObjects.forSourceString("test/AutoValue_Foo", ""
+        + "package test;\n"
+        + "\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "import java.lang.Long;\n"
+        + "import java.lang.Override;\n"
+        + "import java.lang.String;\n"
+        + "import java.lang.SuppressWarnings;\n"
+        + "import java.util.List;\n"
+        + "import javax.annotation.Generated;\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")\n"
+        + "final class AutoValue_Foo extends $AutoValue_Foo {\n"
+        + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
+        + "    @Override\n"
+        + "    @SuppressWarnings({\"unchecked\", \"rawtypes\"})\n"
+        + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
+        + "      int packed0 = in.readInt();\n"
+        + "      return new AutoValue_Foo(\n"
+        + "          (packed0 & 0x1) != 0 ? in.readString() : null,\n"
+        + "          (packed0 & 0x2) != 0,\n"
+        + "          (packed0 & 0x4) != 0 ? in.readLong() : null,\n"
+        + "          in.createStringArrayList()\n"
+        + "      );\n"
+        + "    }\n"
+        + "    @Override\n"
+        + "    @SuppressWarnings({\"unchecked\", \"rawtypes\"})\n"
+        + "    public AutoValue_Foo[] newArray(int size) {\n"
+        + "      return new AutoValue_Foo[size];\n"
+        + "    }\n"
+        + "  };\n"
+        + "\n"
+        + "  AutoValue_Foo(@Nullable String a, boolean b, @Nullable Long c, @Nullable List<String> d) {\n"
+        + "    super(a, b, c, d);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {\n"
+        + "    dest.writeInt((a() != null ? 1 : 0)\n"
+        + "        | (b() ? 1 : 0) << 1\n"
+        + "        | (c() != null ? 1 : 0) << 2);\n"
+        + "    if (a() != null) {\n"
+        + "      dest.writeString(a());\n"
+        + "    }\n"
+        + "    if (c() != null) {\n"
+        + "      dest.writeLong(c());\n"
+        + "    }\n"
+        + "    dest.writeStringList(d());\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int describeContents() {\n"
+        + "    return 0;\n"
+        + "  }\n"
+        + "}");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(nullable, parcel, parcelable, source))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .compilesWithoutError()
+        .and()
+        .generatesSources(expected);
+  }
+
+  @Test public void writesTypedLists() {
+    JavaFileObject baz = JavaFileObjects.forSourceString("test.Baz", ""
+        + "package test;\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "public final class Baz implements Parcelable {\n"
+        + "  public int describeContents() { return 0; }\n"
+        + "  public void writeToParcel(Parcel p, int i) {}\n"
+        + "  public static final Parcelable.Creator<Baz> CREATOR = null;\n"
+        + "}");
+    JavaFileObject bar = JavaFileObjects.forSourceString("test.Bar", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "@AutoValue public abstract class Bar implements Parcelable {\n"
+        + "  public abstract String name();\n"
+        + "}");
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import java.util.List;\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  public abstract List<Baz> a();\n"
+        + "  public abstract List<Bar> b();\n"
+        + "  public abstract List<Integer> c();\n"
+        + "}");
+
+    JavaFileObject expected = JavaFileObjects.forSourceString("test/AutoValue_Foo", ""
+        + "package test;\n"
+        + "\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "import java.lang.Integer;\n"
+        + "import java.lang.Override;\n"
+        + "import java.lang.SuppressWarnings;\n"
+        + "import java.util.List;\n"
+        + "import javax.annotation.Generated;\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")\n"
+        + "final class AutoValue_Foo extends $AutoValue_Foo {\n"
+        + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
+        + "    @Override\n"
+        + "    @SuppressWarnings({\"unchecked\", \"rawtypes\"})\n"
+        + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
+        + "      return new AutoValue_Foo(\n"
+        + "          in.createTypedArrayList(Baz.CREATOR),\n"
+        + "          (List<Bar>) (List) in.createTypedArrayList(AutoValue_Bar.CREATOR),\n"
+        + "          (List<Integer>) in.readArrayList(Foo.class.getClassLoader())\n"
+        + "      );\n"
+        + "    }\n"
+        + "    @Override\n"
+        + "    @SuppressWarnings({\"unchecked\", \"rawtypes\"})\n"
+        + "    public AutoValue_Foo[] newArray(int size) {\n"
+        + "      return new AutoValue_Foo[size];\n"
+        + "    }\n"
+        + "  };\n"
+        + "\n"
+        + "  AutoValue_Foo(List<Baz> a, List<Bar> b, List<Integer> c) {\n"
+        + "    super(a, b, c);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {\n"
+        + "    dest.writeTypedList(a());\n"
+        + "    dest.writeTypedList(b());\n"
+        + "    dest.writeList(c());\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int describeContents() {\n"
+        + "    return 0;\n"
+        + "  }\n"
+        + "}");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(parcel, parcelable, baz, bar, source))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .compilesWithoutError()
+        .and()
+        .generatesSources(expected);
+  }
+
+  @Test public void readsParcelablesThroughCreator() {
+    JavaFileObject baz = JavaFileObjects.forSourceString("test.Baz", ""
+        + "package test;\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "public final class Baz implements Parcelable {\n"
+        + "  public int describeContents() { return 0; }\n"
+        + "  public void writeToParcel(Parcel p, int i) {}\n"
+        + "  public static final Parcelable.Creator<Baz> CREATOR = null;\n"
+        + "}");
+    JavaFileObject base = JavaFileObjects.forSourceString("test.Base", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "public abstract class Base implements Parcelable {\n"
+        + "}");
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  @Nullable public abstract Baz a();\n"
+        + "  public abstract Base b();\n"
+        + "  @Nullable public abstract Foo c();\n"
+        + "}");
+
+    JavaFileObject expected = JavaFileObjects.forSourceString("test/AutoValue_Foo", ""
+        + "package test;\n"
+        + "\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "import java.lang.Override;\n"
+        + "import javax.annotation.Generated;\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")\n"
+        + "final class AutoValue_Foo extends $AutoValue_Foo {\n"
+        + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
+        + "      return new AutoValue_Foo(\n"
+        + "          in.readInt() == 0 ? Baz.CREATOR.createFromParcel(in) : null,\n"
+        + "          (Base) in.readParcelable(Foo.class.getClassLoader()),\n"
+        + "          in.readInt() == 0 ? AutoValue_Foo.CREATOR.createFromParcel(in) : null\n"
+        + "      );\n"
+        + "    }\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo[] newArray(int size) {\n"
+        + "      return new AutoValue_Foo[size];\n"
+        + "    }\n"
+        + "  };\n"
+        + "\n"
+        + "  AutoValue_Foo(@Nullable Baz a, Base b, @Nullable Foo c) {\n"
+        + "    super(a, b, c);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {\n"
+        + "    if (a() == null) {\n"
+        + "      dest.writeInt(1);\n"
+        + "    } else {\n"
+        + "      dest.writeInt(0);\n"
+        + "      a().writeToParcel(dest, flags);\n"
+        + "    }\n"
+        + "    dest.writeParcelable(b(), flags);\n"
+        + "    if (c() == null) {\n"
+        + "      dest.writeInt(1);\n"
+        + "    } else {\n"
+        + "      dest.writeInt(0);\n"
+        + "      c().writeToParcel(dest, flags);\n"
+        + "    }\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int describeContents() {\n"
+        + "    return 0;\n"
+        + "  }\n"
+        + "}");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(nullable, parcel, parcelable, baz, base, source))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .compilesWithoutError()
+        .and()
+        .generatesSources(expected);
+  }
+
+  @Test public void readsImmutableCollectionsIntoPresizedBuilders() {
+    JavaFileObject bar = JavaFileObjects.forSourceString("test.Bar", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "@AutoValue public abstract class Bar implements Parcelable {\n"
+        + "  public abstract String name();\n"
+        + "}");
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.google.common.collect.ImmutableList;\n"
+        + "import com.google.common.collect.ImmutableSortedSet;\n"
+        + "import java.util.List;\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  public abstract ImmutableList<Bar> a();\n"
+        + "  public abstract ImmutableList<Bar> b();\n"
+        + "  public abstract ImmutableList<List<String>> c();\n"
+        + "  public abstract ImmutableSortedSet<String> d();\n"
+        + "}");
+
+    JavaFileObject expected = JavaFileObjects.forSourceString("test/AutoValue_Foo", ""
+        + "package test;\n"
+        + "\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.common.collect.ImmutableList;\n"
+        + "import com.google.common.collect.ImmutableSortedSet;\n"
+        + "import java.lang.Override;\n"
+        + "import java.lang.String;\n"
+        + "import java.lang.SuppressWarnings;\n"
+        + "import java.util.List;\n"
+        + "import javax.annotation.Generated;\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")\n"
+        + "final class AutoValue_Foo extends $AutoValue_Foo {\n"
+        + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
+        + "    @Override\n"
+        + "    @SuppressWarnings({\"unchecked\", \"rawtypes\"})\n"
+        + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
+        + "      return new AutoValue_Foo(\n"
+        + "          readImmutableList(in),\n"
+        + "          readImmutableList(in),\n"
+        + "          readImmutableList_(in),\n"
+        + "          ImmutableSortedSet.<String>copyOf(in.readArrayList(String.class.getClassLoader()))\n"
+        + "      );\n"
+        + "    }\n"
+        + "    @Override\n"
+        + "    @SuppressWarnings({\"unchecked\", \"rawtypes\"})\n"
+        + "    public AutoValue_Foo[] newArray(int size) {\n"
+        + "      return new AutoValue_Foo[size];\n"
+        + "    }\n"
+        + "  };\n"
+        + "\n"
+        + "  AutoValue_Foo(ImmutableList<Bar> a, ImmutableList<Bar> b, ImmutableList<List<String>> c, ImmutableSortedSet<String> d) {\n"
+        + "    super(a, b, c, d);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {\n"
+        + "    writeImmutableList(a(), dest, flags);\n"
+        + "    writeImmutableList(b(), dest, flags);\n"
+        + "    writeImmutableList_(c(), dest, flags);\n"
+        + "    dest.writeList(d().asList());\n"
+        + "  }\n"
+        + "\n"
+        + "  private static void writeImmutableList(ImmutableList<Bar> value, Parcel dest, int flags) {\n"
+        + "    dest.writeInt(value.size());\n"
+        + "    for (Bar element : value) {\n"
+        + "      element.writeToParcel(dest, flags);\n"
+        + "    }\n"
+        + "  }\n"
+        + "\n"
+        + "  private static void writeImmutableList_(ImmutableList<List<String>> value, Parcel dest, int flags) {\n"
+        + "    dest.writeInt(value.size());\n"
+        + "    for (List<String> element : value) {\n"
+        + "      dest.writeValue(element);\n"
+        + "    }\n"
+        + "  }\n"
+        + "\n"
+        + "  private static ImmutableList<Bar> readImmutableList(Parcel in) {\n"
+        + "    int size = in.readInt();\n"
+        + "    if (size == 0) {\n"
+        + "      return ImmutableList.of();\n"
+        + "    }\n"
+        + "    ImmutableList.Builder<Bar> builder = ImmutableList.builderWithExpectedSize(size);\n"
+        + "    for (int i = 0; i < size; i++) {\n"
+        + "      builder.add(AutoValue_Bar.CREATOR.createFromParcel(in));\n"
+        + "    }\n"
+        + "    return builder.build();\n"
+        + "  }\n"
+        + "\n"
+        + "  @SuppressWarnings(\"unchecked\")\n"
+        + "  private static ImmutableList<List<String>> readImmutableList_(Parcel in) {\n"
+        + "    int size = in.readInt();\n"
+        + "    if (size == 0) {\n"
+        + "      return ImmutableList.of();\n"
+        + "    }\n"
+        + "    ImmutableList.Builder<List<String>> builder = ImmutableList.builderWithExpectedSize(size);\n"
+        + "    for (int i = 0; i < size; i++) {\n"
+        + "      builder.add((List<String>) in.readValue(Foo.class.getClassLoader()));\n"
+        + "    }\n"
+        + "    return builder.build();\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int describeContents() {\n"
+        + "    return 0;\n"
+        + "  }\n"
+        + "}");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(parcel, parcelable, bar, source))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .compilesWithoutError()
+        .and()
+        .generatesSources(expected);
+  }
+
+  @Test public void nestedImmutableCollectionsRoundTrip() throws Exception {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.google.common.collect.ImmutableList;\n"
+        + "import com.google.common.collect.ImmutableMap;\n"
+        + "import com.google.common.collect.ImmutableSet;\n"
+        + "import com.google.common.collect.ImmutableSortedSet;\n"
+        + "import java.util.HashMap;\n"
+        + "import java.util.Map;\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  public abstract ImmutableList<ImmutableList<String>> a();\n"
+        + "  public abstract ImmutableSet<ImmutableMap<String, Integer>> b();\n"
+        + "  public abstract Map<String, ImmutableList<Long>> c();\n"
+        + "  public abstract ImmutableList<ImmutableSortedSet<String>> d();\n"
+        + "  public static Foo sample() {\n"
+        + "    Map<String, ImmutableList<Long>> c = new HashMap<>();\n"
+        + "    c.put(\"some\", ImmutableList.of(1L, 2L));\n"
+        + "    c.put(\"none\", null);\n"
+        + "    return new AutoValue_Foo(\n"
+        + "        ImmutableList.of(ImmutableList.of(\"a\", \"b\"), ImmutableList.<String>of()),\n"
+        + "        ImmutableSet.of(ImmutableMap.of(\"one\", 1), ImmutableMap.of(\"two\", 2)),\n"
+        + "        c,\n"
+        + "        ImmutableList.of(ImmutableSortedSet.of(\"z\", \"y\")));\n"
+        + "  }\n"
+        + "}");
+
+    ClassLoader loader = compile(source);
+    Class<?> foo = loader.loadClass("test.Foo");
+    Object value = foo.getMethod("sample").invoke(null);
+    Object result = roundTrip(loader, (Parcelable) value);
+    assertThat(result).isEqualTo(value);
+
+    // readValue would have returned these as an ArrayList and a HashMap.
+    for (Object element : (Iterable<?>) foo.getMethod("a").invoke(result)) {
+      assertThat(element).isInstanceOf(ImmutableList.class);
+    }
+    for (Object element : (Iterable<?>) foo.getMethod("b").invoke(result)) {
+      assertThat(element).isInstanceOf(ImmutableMap.class);
+    }
+    assertThat(((Map<?, ?>) foo.getMethod("c").invoke(result)).get("some"))
+        .isInstanceOf(ImmutableList.class);
+  }
+
+  @Test public void writesTypedMaps() {
+    JavaFileObject bar = JavaFileObjects.forSourceString("test.Bar", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "@AutoValue public abstract class Bar implements Parcelable {\n"
+        + "  public abstract String name();\n"
+        + "}");
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import java.util.LinkedHashMap;\n"
+        + "import java.util.TreeMap;\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  public abstract LinkedHashMap<String, Integer> a();\n"
+        + "  public abstract TreeMap<String, Bar> b();\n"
+        + "}");
+
+    JavaFileObject expected = JavaFileObjects.forSourceString("test/AutoValue_Foo", ""
+        + "package test;\n"
+        + "\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "import java.lang.Integer;\n"
+        + "import java.lang.Override;\n"
+        + "import java.lang.String;\n"
+        + "import java.lang.SuppressWarnings;\n"
+        + "import java.util.LinkedHashMap;\n"
+        + "import java.util.Map;\n"
+        + "import java.util.TreeMap;\n"
+        + "import javax.annotation.Generated;\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")\n"
+        + "final class AutoValue_Foo extends $AutoValue_Foo {\n"
+        + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
+        + "    @Override\n"
+        + "    @SuppressWarnings({\"unchecked\", \"rawtypes\"})\n"
+        + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
+        + "      return new AutoValue_Foo(\n"
+        + "          readLinkedHashMap(in),\n"
+        + "          readTreeMap(in)\n"
+        + "      );\n"
+        + "    }\n"
+        + "    @Override\n"
+        + "    @SuppressWarnings({\"unchecked\", \"rawtypes\"})\n"
+        + "    public AutoValue_Foo[] newArray(int size) {\n"
+        + "      return new AutoValue_Foo[size];\n"
+        + "    }\n"
+        + "  };\n"
+        + "\n"
+        + "  AutoValue_Foo(LinkedHashMap<String, Integer> a, TreeMap<String, Bar> b) {\n"
+        + "    super(a, b);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {\n"
+        + "    writeLinkedHashMap(a(), dest, flags);\n"
+        + "    writeTreeMap(b(), dest, flags);\n"
+        + "  }\n"
+        + "\n"
+        + "  private static void writeLinkedHashMap(LinkedHashMap<String, Integer> value, Parcel dest, int flags) {\n"
+        + "    if (value == null) {\n"
+        + "      dest.writeInt(-1);\n"
+        + "      return;\n"
+        + "    }\n"
+        + "    dest.writeInt(value.size());\n"
+        + "    for (Map.Entry<String, Integer> entry : value.entrySet()) {\n"
+        + "      dest.writeString(entry.getKey());\n"
+        + "      if (entry.getValue() == null) {\n"
+        + "        dest.writeInt(1);\n"
+        + "      } else {\n"
+        + "        dest.writeInt(0);\n"
+        + "        dest.writeInt(entry.getValue());\n"
+        + "      }\n"
+        + "    }\n"
+        + "  }\n"
+        + "\n"
+        + "  private static void writeTreeMap(TreeMap<String, Bar> value, Parcel dest, int flags) {\n"
+        + "    if (value == null) {\n"
+        + "      dest.writeInt(-1);\n"
+        + "      return;\n"
+        + "    }\n"
+        + "    dest.writeInt(value.size());\n"
+        + "    for (Map.Entry<String, Bar> entry : value.entrySet()) {\n"
+        + "      dest.writeString(entry.getKey());\n"
+        + "      if (entry.getValue() == null) {\n"
+        + "        dest.writeInt(1);\n"
+        + "      } else {\n"
+        + "        dest.writeInt(0);\n"
+        + "        entry.getValue().writeToParcel(dest, flags);\n"
+        + "      }\n"
+        + "    }\n"
+        + "  }\n"
+        + "\n"
+        + "  private static LinkedHashMap<String, Integer> readLinkedHashMap(Parcel in) {\n"
+        + "    int size = in.readInt();\n"
+        + "    if (size < 0) {\n"
+        + "      return null;\n"
+        + "    }\n"
+        + "    LinkedHashMap<String, Integer> map = new LinkedHashMap<String, Integer>((int) (size / 0.75f) + 1);\n"
+        + "    for (int i = 0; i < size; i++) {\n"
+        + "      map.put(in.readString(), in.readInt() == 0 ? in.readInt() : null);\n"
+        + "    }\n"
+        + "    return map;\n"
+        + "  }\n"
+        + "\n"
+        + "  private static TreeMap<String, Bar> readTreeMap(Parcel in) {\n"
+        + "    int size = in.readInt();\n"
+        + "    if (size < 0) {\n"
+        + "      return null;\n"
+        + "    }\n"
+        + "    TreeMap<String, Bar> map = new TreeMap<String, Bar>();\n"
+        + "    for (int i = 0; i < size; i++) {\n"
+        + "      map.put(in.readString(), in.readInt() == 0 ? AutoValue_Bar.CREATOR.createFromParcel(in) : null);\n"
+        + "    }\n"
+        + "    return map;\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int describeContents() {\n"
+        + "    return 0;\n"
+        + "  }\n"
+        + "}");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(parcel, parcelable, bar, source))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .compilesWithoutError()
+        .and()
+        .generatesSources(expected);
+  }
+
+  @Test public void writesVarInts() {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelVarInt;\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  public abstract String a();\n"
+        + "  @ParcelVarInt public abstract int b();\n"
+        + "  @ParcelVarInt public abstract long c();\n"
+        + "  @ParcelVarInt @Nullable public abstract Long d();\n"
+        + "  @ParcelVarInt public abstract Integer e();\n"
+        + "  public abstract int f();\n"
+        + "}");
+
+    JavaFileObject expected = JavaFileObjects.forSourceString("test/AutoValue_Foo", ""
+        + "package test;\n"
+        + "\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "import java.lang.Integer;\n"
+        + "import java.lang.Long;\n"
+        + "import java.lang.Override;\n"
+        + "import java.lang.String;\n"
+        + "import javax.annotation.Generated;\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")\n"
+        + "final class AutoValue_Foo extends $AutoValue_Foo {\n"
+        + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
+        + "      long varInts = 0L;\n"
+        + "      long varInt0 = 0L;\n"
+        + "      for (int shift = 0; ; shift += 7) {\n"
+        + "        varInts = readVarIntByte(in, varInts);\n"
+        + "        varInt0 |= (varInts & 0x7FL) << shift;\n"
+        + "        if ((varInts & 0x80) == 0) {\n"
+        + "          break;\n"
+        + "        }\n"
+        + "      }\n"
+        + "      long varInt1 = 0L;\n"
+        + "      for (int shift = 0; ; shift += 7) {\n"
+        + "        varInts = readVarIntByte(in, varInts);\n"
+        + "        varInt1 |= (varInts & 0x7FL) << shift;\n"
+        + "        if ((varInts & 0x80) == 0) {\n"
+        + "          break;\n"
+        + "        }\n"
+        + "      }\n"
+        + "      long varInt2 = 0L;\n"
+        + "      for (int shift = 0; ; shift += 7) {\n"
+        + "        varInts = readVarIntByte(in, varInts);\n"
+        + "        varInt2 |= (varInts & 0x7FL) << shift;\n"
+        + "        if ((varInts & 0x80) == 0) {\n"
+        + "          break;\n"
+        + "        }\n"
+        + "      }\n"
+        + "      return new AutoValue_Foo(\n"
+        + "          in.readString(),\n"
+        + "          (int) ((varInt0 >>> 1) ^ -(varInt0 & 1)),\n"
+        + "          (varInt1 >>> 1) ^ -(varInt1 & 1),\n"
+        + "          in.readInt() == 0 ? in.readLong() : null,\n"
+        + "          (int) ((varInt2 >>> 1) ^ -(varInt2 & 1)),\n"
+        + "          in.readInt()\n"
+        + "      );\n"
+        + "    }\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo[] newArray(int size) {\n"
+        + "      return new AutoValue_Foo[size];\n"
+        + "    }\n"
+        + "  };\n"
+        + "\n"
+        + "  AutoValue_Foo(String a, int b, long c, @Nullable Long d, Integer e, int f) {\n"
+        + "    super(a, b, c, d, e, f);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {\n"
+        + "    long varInts = 0L;\n"
+        + "    varInts = writeVarInt(dest, varInts, b());\n"
+        + "    varInts = writeVarLong(dest, varInts, c());\n"
+        + "    varInts = writeVarInt(dest, varInts, e());\n"
+        + "    if (varInts != 0L) {\n"
+        + "      dest.writeInt((int) varInts);\n"
+        + "    }\n"
+        + "    dest.writeString(a());\n"
+        + "    if (d() == null) {\n"
+        + "      dest.writeInt(1);\n"
+        + "    } else {\n"
+        + "      dest.writeInt(0);\n"
+        + "      dest.writeLong(d());\n"
+        + "    }\n"
+        + "    dest.writeInt(f());\n"
+        + "  }\n"
+        + "\n"
+        + "  private static long writeVarIntByte(Parcel dest, long pending, int b) {\n"
+        + "    int count = (int) (pending >>> 32);\n"
+        + "    int word = (int) pending | (b << (count * 8));\n"
+        + "    if (count == 3) {\n"
+        + "      dest.writeInt(word);\n"
+        + "      return 0L;\n"
+        + "    }\n"
+        + "    return ((long) (count + 1) << 32) | (word & 0xFFFFFFFFL);\n"
+        + "  }\n"
+        + "\n"
+        + "  private static long writeVarInt(Parcel dest, long pending, int value) {\n"
+        + "    int zigzag = (value << 1) ^ (value >> 31);\n"
+        + "    while ((zigzag & ~0x7F) != 0) {\n"
+        + "      pending = writeVarIntByte(dest, pending, (zigzag & 0x7F) | 0x80);\n"
+        + "      zigzag >>>= 7;\n"
+        + "    }\n"
+        + "    return writeVarIntByte(dest, pending, zigzag);\n"
+        + "  }\n"
+        + "\n"
+        + "  private static long writeVarLong(Parcel dest, long pending, long value) {\n"
+        + "    long zigzag = (value << 1) ^ (value >> 63);\n"
+        + "    while ((zigzag & ~0x7FL) != 0) {\n"
+        + "      pending = writeVarIntByte(dest, pending, (int) (zigzag & 0x7F) | 0x80);\n"
+        + "      zigzag >>>= 7;\n"
+        + "    }\n"
+        + "    return writeVarIntByte(dest, pending, (int) zigzag);\n"
+        + "  }\n"
+        + "\n"
+        + "  private static long readVarIntByte(Parcel in, long pending) {\n"
+        + "    int count = (int) (pending >>> 32);\n"
+        + "    int word = (int) pending >>> 8;\n"
+        + "    if (count == 0) {\n"
+        + "      word = in.readInt();\n"
+        + "      count = 4;\n"
+        + "    }\n"
+        + "    return ((long) (count - 1) << 32) | (word & 0xFFFFFFFFL);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int describeContents() {\n"
+        + "    return 0;\n"
+        + "  }\n"
+        + "}");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(nullable, parcel, parcelable, source))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .compilesWithoutError()
+        .and()
+        .generatesSources(expected);
+  }
+
+  @Test public void varIntsRoundTrip() throws Exception {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelVarInt;\n"
+        + "@ParcelVarInt\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  public abstract int a();\n"
+        + "  public abstract long b();\n"
+        + "  public abstract Integer c();\n"
+        + "  public abstract long d();\n"
+        + "  public abstract int e();\n"
+        + "  @Nullable public abstract Long f();\n"
+        + "  public static Foo create(int value, long longValue) {\n"
+        + "    return new AutoValue_Foo(value, longValue, -value, -longValue, value >> 7,\n"
+        + "        longValue == 0 ? null : longValue);\n"
+        + "  }\n"
+        + "}\n");
+
+    ClassLoader loader = compile(nullable, source);
+    Method create = loader.loadClass("test.Foo").getMethod("create", int.class, long.class);
+    int[] ints = { 0, 1, -1, 63, -64, 64, 300, -300, Integer.MAX_VALUE, Integer.MIN_VALUE };
+    long[] longs = { 0L, 1L, -1L, 1L << 35, -(1L << 35), Long.MAX_VALUE, Long.MIN_VALUE };
+    for (int value : ints) {
+      for (long longValue : longs) {
+        Parcelable foo = (Parcelable) create.invoke(null, value, longValue);
+        assertThat(roundTrip(loader, foo)).isEqualTo(foo);
+      }
+    }
+
+    // Five zeros take five bytes, padded to eight, instead of the 28 they take at fixed width,
+    // followed by the null marker of f.
+    Parcel parcel = Parcel.obtain();
+    ((Parcelable) create.invoke(null, 0, 0L)).writeToParcel(parcel, 0);
+    assertThat(parcel.dataSize()).isEqualTo(8 + 4);
+    parcel.recycle();
+  }
+
+  @Test public void writesStringsThroughStringTable() {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelStringTable;\n"
+        + "@ParcelStringTable\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  public abstract String a();\n"
+        + "  @Nullable public abstract String b();\n"
+        + "  public abstract int c();\n"
+        + "}");
+
+    JavaFileObject expected = JavaFileObjects.forSourceString("test/AutoValue_Foo", ""
+        + "package test;\n"
+        + "\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.ryanharter.auto.value.parcel.StringTable;\n"
+        + "import java.lang.Override;\n"
+        + "import java.lang.String;\n"
+        + "import javax.annotation.Generated;\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")\n"
+        + "final class AutoValue_Foo extends $AutoValue_Foo {\n"
+        + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
+        + "      StringTable strings = StringTable.begin(in);\n"
+        + "      try {\n"
+        + "        return new AutoValue_Foo(\n"
+        + "            strings.readString(),\n"
+        + "            strings.readString(),\n"
+        + "            in.readInt()\n"
+        + "        );\n"
+        + "      } finally {\n"
+        + "        strings.end();\n"
+        + "      }\n"
+        + "    }\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo[] newArray(int size) {\n"
+        + "      return new AutoValue_Foo[size];\n"
+        + "    }\n"
+        + "  };\n"
+        + "\n"
+        + "  AutoValue_Foo(String a, @Nullable String b, int c) {\n"
+        + "    super(a, b, c);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {\n"
+        + "    StringTable strings = StringTable.begin(dest);\n"
+        + "    try {\n"
+        + "      strings.writeString(a());\n"
+        + "      strings.writeString(b());\n"
+        + "      dest.writeInt(c());\n"
+        + "    } finally {\n"
+        + "      strings.end();\n"
+        + "    }\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int describeContents() {\n"
+        + "    return 0;\n"
+        + "  }\n"
+        + "}");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(nullable, parcel, parcelable, source))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .compilesWithoutError()
+        .and()
+        .generatesSources(expected);
+  }
+
+  @Test public void writesPrimitivesToByteBuffer() {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelByteBuffer;\n"
+        + "@ParcelByteBuffer\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  public abstract boolean a();\n"
+        + "  public abstract boolean b();\n"
+        + "  public abstract int c();\n"
+        + "  public abstract double d();\n"
+        + "  public abstract Long e();\n"
+        + "  @Nullable public abstract Integer f();\n"
+        + "  public abstract String g();\n"
+        + "}");
+
+    JavaFileObject expected = JavaFileObjects.forSourceString("test/AutoValue_Foo", ""
+        + "package test;\n"
+        + "\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "import java.lang.Integer;\n"
+        + "import java.lang.Long;\n"
+        + "import java.lang.Override;\n"
+        + "import java.lang.String;\n"
+        + "import java.lang.ThreadLocal;\n"
+        + "import java.nio.ByteBuffer;\n"
+        + "import javax.annotation.Generated;\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")\n"
+        + "final class AutoValue_Foo extends $AutoValue_Foo {\n"
+        + "  private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {\n"
+        + "    @Override\n"
+        + "    protected ByteBuffer initialValue() {\n"
+        + "      return ByteBuffer.allocate(24);\n"
+        + "    }\n"
+        + "  };\n"
+        + "\n"
+        + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
+        + "      ByteBuffer buffer = BUFFER.get();\n"
+        + "      in.readByteArray(buffer.array());\n"
+        + "      buffer.clear();\n"
+        + "      int packed0 = buffer.getInt();\n"
+        + "      int buffered0 = buffer.getInt();\n"
+        + "      double buffered1 = buffer.getDouble();\n"
+        + "      long buffered2 = buffer.getLong();\n"
+        + "      return new AutoValue_Foo(\n"
+        + "          (packed0 & 0x1) != 0,\n"
+        + "          (packed0 & 0x2) != 0,\n"
+        + "          buffered0,\n"
+        + "          buffered1,\n"
+        + "          buffered2,\n"
+        + "          in.readInt() == 0 ? in.readInt() : null,\n"
+        + "          in.readString()\n"
+        + "      );\n"
+        + "    }\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo[] newArray(int size) {\n"
+        + "      return new AutoValue_Foo[size];\n"
+        + "    }\n"
+        + "  };\n"
+        + "\n"
+        + "  AutoValue_Foo(boolean a, boolean b, int c, double d, Long e, @Nullable Integer f, String g) {\n"
+        + "    super(a, b, c, d, e, f, g);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {\n"
+        + "    ByteBuffer buffer = BUFFER.get();\n"
+        + "    buffer.clear();\n"
+        + "    buffer.putInt((a() ? 1 : 0)\n"
+        + "        | (b() ? 1 : 0) << 1);\n"
+        + "    buffer.putInt(c());\n"
+        + "    buffer.putDouble(d());\n"
+        + "    buffer.putLong(e());\n"
+        + "    dest.writeByteArray(buffer.array());\n"
+        + "    if (f() == null) {\n"
+        + "      dest.writeInt(1);\n"
+        + "    } else {\n"
+        + "      dest.writeInt(0);\n"
+        + "      dest.writeInt(f());\n"
+        + "    }\n"
+        + "    dest.writeString(g());\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int describeContents() {\n"
+        + "    return 0;\n"
+        + "  }\n"
+        + "}");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(nullable, parcel, parcelable, source))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .compilesWithoutError()
+        .and()
+        .generatesSources(expected);
+  }
+
+  @Test public void byteBuffersRoundTrip() throws Exception {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelByteBuffer;\n"
+        + "@ParcelByteBuffer\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  @Nullable public abstract Foo child();\n"
+        + "  public abstract boolean a();\n"
+        + "  public abstract byte b();\n"
+        + "  public abstract short c();\n"
+        + "  public abstract char d();\n"
+        + "  public abstract int e();\n"
+        + "  public abstract long f();\n"
+        + "  public abstract float g();\n"
+        + "  public abstract double h();\n"
+        + "  public abstract Long i();\n"
+        + "  @Nullable public abstract Integer j();\n"
+        + "  public abstract String k();\n"
+        + "  public static Foo create(int i, Foo child) {\n"
+        + "    return new AutoValue_Foo(child, i % 2 == 0, (byte) -i, (short) (i * 1000), (char) ('a' + i),\n"
+        + "        i == 0 ? Integer.MIN_VALUE : i, -i * (1L << 40), i / 4f, i / 3.0, (long) i,\n"
+        + "        i % 3 == 0 ? null : i, \"sample \" + i);\n"
+        + "  }\n"
+        + "}\n");
+
+    ClassLoader loader = compile(nullable, source);
+    Method create = loader.loadClass("test.Foo")
+        .getMethod("create", int.class, loader.loadClass("test.Foo"));
+    Object foo = null;
+    for (int i = 0; i < 5; i++) {
+      // Each value starts with the previous one, which is read into the same buffer before the
+      // outer value's buffered properties are used.
+      foo = create.invoke(null, i, foo);
+      assertThat(roundTrip(loader, (Parcelable) foo)).isEqualTo(foo);
+    }
+  }
+
+  @Test public void writesBlobsThroughSharedMemory() {
+    JavaFileObject build = JavaFileObjects.forSourceString("android.os.Build", ""
+        + "package android.os;\n"
+        + "public class Build {\n"
+        + "  public static class VERSION {\n"
+        + "    public static final int SDK_INT = 0;\n"
+        + "  }\n"
+        + "  public static class VERSION_CODES {\n"
+        + "    public static final int O_MR1 = 27;\n"
+        + "  }\n"
+        + "}");
+    JavaFileObject errnoException = JavaFileObjects.forSourceString("android.system.ErrnoException", ""
+        + "package android.system;\n"
+        + "public class ErrnoException extends Exception {}");
+    JavaFileObject sharedMemory = JavaFileObjects.forSourceString("android.os.SharedMemory", ""
+        + "package android.os;\n"
+        + "import android.system.ErrnoException;\n"
+        + "import java.nio.ByteBuffer;\n"
+        + "public final class SharedMemory implements Parcelable {\n"
+        + "  public static final Parcelable.Creator<SharedMemory> CREATOR = null;\n"
+        + "  public static SharedMemory create(String name, int size) throws ErrnoException { return null; }\n"
+        + "  public static void unmap(ByteBuffer buffer) {}\n"
+        + "  public ByteBuffer mapReadOnly() throws ErrnoException { return null; }\n"
+        + "  public ByteBuffer mapReadWrite() throws ErrnoException { return null; }\n"
+        + "  public void close() {}\n"
+        + "  public int describeContents() { return 0; }\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {}\n"
+        + "}");
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelBlob;\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  @ParcelBlob public abstract byte[] a();\n"
+        + "  @ParcelBlob(threshold = 1024) @Nullable public abstract byte[] b();\n"
+        + "  public abstract byte[] c();\n"
+        + "}");
+
+    JavaFileObject expected = JavaFileObjects.forSourceString("test/AutoValue_Foo", ""
+        + "package test;\n"
+        + "\n"
+        + "import android.os.Build;\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "import android.os.SharedMemory;\n"
+        + "import android.system.ErrnoException;\n"
+        + "import java.lang.IllegalStateException;\n"
+        + "import java.lang.Override;\n"
+        + "import java.nio.ByteBuffer;\n"
+        + "import javax.annotation.Generated;\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")\n"
+        + "final class AutoValue_Foo extends $AutoValue_Foo {\n"
+        + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
+        + "      return new AutoValue_Foo(\n"
+        + "          readBlob(in),\n"
+        + "          readBlob(in),\n"
+        + "          in.createByteArray()\n"
+        + "      );\n"
+        + "    }\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo[] newArray(int size) {\n"
+        + "      return new AutoValue_Foo[size];\n"
+        + "    }\n"
+        + "  };\n"
+        + "\n"
+        + "  AutoValue_Foo(byte[] a, @Nullable byte[] b, byte[] c) {\n"
+        + "    super(a, b, c);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {\n"
+        + "    writeBlob(dest, a(), 16384, flags);\n"
+        + "    writeBlob(dest, b(), 1024, flags);\n"
+        + "    dest.writeByteArray(c());\n"
+        + "  }\n"
+        + "\n"
+        + "  private static void writeBlob(Parcel dest, byte[] value, int threshold, int flags) {\n"
+        + "    if (value == null) {\n"
+        + "      dest.writeInt(-1);\n"
+        + "    } else if (value.length <= threshold || Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1) {\n"
+        + "      dest.writeInt(0);\n"
+        + "      dest.writeByteArray(value);\n"
+        + "    } else {\n"
+        + "      SharedMemory memory;\n"
+        + "      try {\n"
+        + "        memory = SharedMemory.create(null, value.length);\n"
+        + "      } catch (ErrnoException e) {\n"
+        + "        throw new IllegalStateException(e);\n"
+        + "      }\n"
+        + "      try {\n"
+        + "        ByteBuffer buffer = memory.mapReadWrite();\n"
+        + "        try {\n"
+        + "          buffer.put(value);\n"
+        + "        } finally {\n"
+        + "          SharedMemory.unmap(buffer);\n"
+        + "        }\n"
+        + "        dest.writeInt(1);\n"
+        + "        memory.writeToParcel(dest, flags);\n"
+        + "      } catch (ErrnoException e) {\n"
+        + "        throw new IllegalStateException(e);\n"
+        + "      } finally {\n"
+        + "        memory.close();\n"
+        + "      }\n"
+        + "    }\n"
+        + "  }\n"
+        + "\n"
+        + "  private static byte[] readBlob(Parcel in) {\n"
+        + "    int kind = in.readInt();\n"
+        + "    if (kind < 0) {\n"
+        + "      return null;\n"
+        + "    } else if (kind == 0) {\n"
+        + "      return in.createByteArray();\n"
+        + "    }\n"
+        + "    SharedMemory memory = SharedMemory.CREATOR.createFromParcel(in);\n"
+        + "    try {\n"
+        + "      ByteBuffer buffer = memory.mapReadOnly();\n"
+        + "      try {\n"
+        + "        byte[] value = new byte[buffer.remaining()];\n"
+        + "        buffer.get(value);\n"
+        + "        return value;\n"
+        + "      } finally {\n"
+        + "        SharedMemory.unmap(buffer);\n"
+        + "      }\n"
+        + "    } catch (ErrnoException e) {\n"
+        + "      throw new IllegalStateException(e);\n"
+        + "    } finally {\n"
+        + "      memory.close();\n"
+        + "    }\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int describeContents() {\n"
+        + "    return Parcelable.CONTENTS_FILE_DESCRIPTOR;\n"
+        + "  }\n"
+        + "}");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(nullable, parcel, parcelable, build, errnoException, sharedMemory,
+            source))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .compilesWithoutError()
+        .and()
+        .generatesSources(expected);
+  }
+
+  @Test public void blobsRoundTripAndCloseSharedMemory() throws Exception {
+    JavaFileObject build = JavaFileObjects.forSourceString("android.os.Build", ""
+        + "package android.os;\n"
+        + "public class Build {\n"
+        + "  public static class VERSION {\n"
+        + "    public static final int SDK_INT = 27;\n"
+        + "  }\n"
+        + "  public static class VERSION_CODES {\n"
+        + "    public static final int O_MR1 = 27;\n"
+        + "  }\n"
+        + "}");
+    JavaFileObject errnoException = JavaFileObjects.forSourceString("android.system.ErrnoException", ""
+        + "package android.system;\n"
+        + "public class ErrnoException extends Exception {}");
+    // Keeps the region in the Parcel itself, and counts the regions that haven't been closed.
+    JavaFileObject sharedMemory = JavaFileObjects.forSourceString("android.os.SharedMemory", ""
+        + "package android.os;\n"
+        + "import android.system.ErrnoException;\n"
+        + "import java.nio.ByteBuffer;\n"
+        + "public final class SharedMemory implements Parcelable {\n"
+        + "  public static int open;\n"
+        + "  public static boolean failWrites;\n"
+        + "  public static final Parcelable.Creator<SharedMemory> CREATOR =\n"
+        + "      new Parcelable.Creator<SharedMemory>() {\n"
+        + "        public SharedMemory createFromParcel(Parcel in) {\n"
+        + "          return new SharedMemory(in.createByteArray());\n"
+        + "        }\n"
+        + "        public SharedMemory[] newArray(int size) {\n"
+        + "          return new SharedMemory[size];\n"
+        + "        }\n"
+        + "      };\n"
+        + "  private final byte[] bytes;\n"
+        + "  private SharedMemory(byte[] bytes) {\n"
+        + "    this.bytes = bytes;\n"
+        + "    open++;\n"
+        + "  }\n"
+        + "  public static SharedMemory create(String name, int size) throws ErrnoException {\n"
+        + "    return new SharedMemory(new byte[size]);\n"
+        + "  }\n"
+        + "  public static void unmap(ByteBuffer buffer) {}\n"
+        + "  public ByteBuffer mapReadOnly() throws ErrnoException {\n"
+        + "    return ByteBuffer.wrap(bytes).asReadOnlyBuffer();\n"
+        + "  }\n"
+        + "  public ByteBuffer mapReadWrite() throws ErrnoException {\n"
+        + "    return ByteBuffer.wrap(bytes);\n"
+        + "  }\n"
+        + "  public void close() {\n"
+        + "    open--;\n"
+        + "  }\n"
+        + "  public int describeContents() {\n"
+        + "    return CONTENTS_FILE_DESCRIPTOR;\n"
+        + "  }\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {\n"
+        + "    if (failWrites) {\n"
+        + "      throw new IllegalStateException(\"can't write descriptor\");\n"
+        + "    }\n"
+        + "    dest.writeByteArray(bytes);\n"
+        + "  }\n"
+        + "}");
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelBlob;\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  @ParcelBlob(threshold = 4) public abstract byte[] a();\n"
+        + "  @ParcelBlob(threshold = 4) @Nullable public abstract byte[] b();\n"
+        + "  public static Foo create(byte[] a, byte[] b) {\n"
+        + "    return new AutoValue_Foo(a, b);\n"
+        + "  }\n"
+        + "}");
+
+    ClassLoader loader = compile(nullable, build, errnoException, sharedMemory, source);
+    Class<?> foo = loader.loadClass("test.Foo");
+    Field open = loader.loadClass("android.os.SharedMemory").getField("open");
+    byte[][][] samples = {
+        { { 1, 2, 3 }, null },
+        { { 1, 2, 3, 4, 5, 6, 7, 8 }, { 9 } },
+        { {}, { 1, 2, 3, 4, 5 } },
+    };
+    for (byte[][] sample : samples) {
+      Parcelable value = (Parcelable) foo.getMethod("create", byte[].class, byte[].class)
+          .invoke(null, sample[0], sample[1]);
+      Object result = roundTrip(loader, value);
+      assertThat((byte[]) foo.getMethod("a").invoke(result)).isEqualTo(sample[0]);
+      assertThat((byte[]) foo.getMethod("b").invoke(result)).isEqualTo(sample[1]);
+      assertThat(open.getInt(null)).isEqualTo(0);
+    }
+
+    loader.loadClass("android.os.SharedMemory").getField("failWrites").setBoolean(null, true);
+    Parcelable value = (Parcelable) foo.getMethod("create", byte[].class, byte[].class)
+        .invoke(null, new byte[16], null);
+    Parcel parcel = Parcel.obtain();
+    try {
+      value.writeToParcel(parcel, 0);
+      fail();
+    } catch (IllegalStateException expected) {
+      assertThat(open.getInt(null)).isEqualTo(0);
+    }
+    parcel.recycle();
+  }
+
+  @Test public void generatesParcelReader() {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelReader;\n"
+        + "@ParcelReader\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  public abstract String routingKey();\n"
+        + "  public abstract boolean flag();\n"
+        + "  public abstract boolean other();\n"
+        + "  @Nullable public abstract Long timestamp();\n"
+        + "}");
+
+    JavaFileObject expected = JavaFileObjects.forSourceString("test/AutoValue_Foo", ""
+        + "package test;\n"
+        + "\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "import java.lang.Long;\n"
+        + "import java.lang.Override;\n"
+        + "import java.lang.String;\n"
+        + "import javax.annotation.Generated;\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")\n"
+        + "final class AutoValue_Foo extends $AutoValue_Foo {\n"
+        + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
+        + "      in.setDataPosition(in.dataPosition() + 8);\n"
+        + "      int packed0 = in.readInt();\n"
+        + "      return new AutoValue_Foo(\n"
+        + "          in.readString(),\n"
+        + "          (packed0 & 0x1) != 0,\n"
+        + "          (packed0 & 0x2) != 0,\n"
+        + "          in.readInt() == 0 ? in.readLong() : null\n"
+        + "      );\n"
+        + "    }\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo[] newArray(int size) {\n"
+        + "      return new AutoValue_Foo[size];\n"
+        + "    }\n"
+        + "  };\n"
+        + "\n"
+        + "  AutoValue_Foo(String routingKey, boolean flag, boolean other, @Nullable Long timestamp) {\n"
+        + "    super(routingKey, flag, other, timestamp);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {\n"
+        + "    int offsetTableStart = dest.dataPosition();\n"
+        + "    int[] offsets = new int[2];\n"
+        + "    for (int i = 0; i < offsets.length; i++) {\n"
+        + "      dest.writeInt(0);\n"
+        + "    }\n"
+        + "    dest.writeInt((flag() ? 1 : 0)\n"
+        + "        | (other() ? 1 : 0) << 1);\n"
+        + "    offsets[0] = dest.dataPosition() - offsetTableStart;\n"
+        + "    dest.writeString(routingKey());\n"
+        + "    offsets[1] = dest.dataPosition() - offsetTableStart;\n"
+        + "    if (timestamp() == null) {\n"
+        + "      dest.writeInt(1);\n"
+        + "    } else {\n"
+        + "      dest.writeInt(0);\n"
+        + "      dest.writeLong(timestamp());\n"
+        + "    }\n"
+        + "    int offsetTableEnd = dest.dataPosition();\n"
+        + "    dest.setDataPosition(offsetTableStart);\n"
+        + "    for (int offset : offsets) {\n"
+        + "      dest.writeInt(offset);\n"
+        + "    }\n"
+        + "    dest.setDataPosition(offsetTableEnd);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int describeContents() {\n"
+        + "    return 0;\n"
+        + "  }\n"
+        + "}");
+    JavaFileObject expectedReader = JavaFileObjects.forSourceString("test/FooParcelReader", ""
+        + "package test;\n"
+        + "\n"
+        + "import android.os.Parcel;\n"
+        + "import java.lang.Long;\n"
+        + "import java.lang.String;\n"
+        + "import javax.annotation.Generated;\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")\n"
+        + "public final class FooParcelReader {\n"
+        + "  private FooParcelReader() {\n"
+        + "  }\n"
+        + "\n"
+        + "  public static String readRoutingKey(Parcel in, int start) {\n"
+        + "    int position = in.dataPosition();\n"
+        + "    in.setDataPosition(start);\n"
+        + "    in.setDataPosition(start + in.readInt());\n"
+        + "    try {\n"
+        + "      return in.readString();\n"
+        + "    } finally {\n"
+        + "      in.setDataPosition(position);\n"
+        + "    }\n"
+        + "  }\n"
+        + "\n"
+        + "  public static Long readTimestamp(Parcel in, int start) {\n"
+        + "    int position = in.dataPosition();\n"
+        + "    in.setDataPosition(start + 4);\n"
+        + "    in.setDataPosition(start + in.readInt());\n"
+        + "    try {\n"
+        + "      return in.readInt() == 0 ? in.readLong() : null;\n"
+        + "    } finally {\n"
+        + "      in.setDataPosition(position);\n"
+        + "    }\n"
+        + "  }\n"
+        + "}");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(nullable, parcel, parcelable, source))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .compilesWithoutError()
+        .and()
+        .generatesSources(expected, expectedReader);
+  }
+
+  @Test public void parcelReaderMatchesFullDecode() throws Exception {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelReader;\n"
+        + "import java.util.Arrays;\n"
+        + "import java.util.Collections;\n"
+        + "import java.util.List;\n"
+        + "@ParcelReader\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  public abstract String name();\n"
+        + "  @Nullable public abstract String nickname();\n"
+        + "  public abstract boolean flag();\n"
+        + "  @Nullable public abstract Long timestamp();\n"
+        + "  public abstract int count();\n"
+        + "  public abstract double ratio();\n"
+        + "  public abstract List<String> tags();\n"
+        + "  public static Foo create(int i) {\n"
+        + "    StringBuilder name = new StringBuilder();\n"
+        + "    for (int j = 0; j <= i; j++) {\n"
+        + "      name.append((char) ('a' + j));\n"
+        + "    }\n"
+        + "    return new AutoValue_Foo(name.toString(), i % 2 == 0 ? null : \"n\" + i, i % 3 == 0,\n"
+        + "        i % 3 == 1 ? null : -i * (1L << 40), i * 7, i / 3.0,\n"
+        + "        i % 4 == 0 ? Collections.<String>emptyList() : Arrays.asList(\"x\", name.toString()));\n"
+        + "  }\n"
+        + "}\n");
+
+    ClassLoader loader = compile(nullable, source);
+    Class<?> foo = loader.loadClass("test.Foo");
+    Map<Method, Method> readers = new LinkedHashMap<>();
+    for (Method reader : loader.loadClass("test.FooParcelReader").getMethods()) {
+      if (reader.getName().startsWith("read")) {
+        String property = reader.getName().substring(4);
+        property = Character.toLowerCase(property.charAt(0)) + property.substring(1);
+        readers.put(reader, foo.getMethod(property));
+      }
+    }
+    List<String> readerNames = new ArrayList<>();
+    for (Method reader : readers.keySet()) {
+      readerNames.add(reader.getName());
+    }
+    assertThat(readerNames).containsExactly("readName", "readNickname", "readFlag",
+        "readTimestamp", "readCount", "readRatio", "readTags");
+
+    // Several values of different sizes back to back, so every one starts at a different offset.
+    Parcel parcel = Parcel.obtain();
+    List<Object> values = new ArrayList<>();
+    List<Integer> starts = new ArrayList<>();
+    for (int i = 0; i < 12; i++) {
+      Parcelable value = (Parcelable) foo.getMethod("create", int.class).invoke(null, i);
+      starts.add(parcel.dataPosition());
+      value.writeToParcel(parcel, 0);
+      values.add(value);
+    }
+    int end = parcel.dataPosition();
+
+    Parcelable.Creator<?> creator = creator(loader, "test.AutoValue_Foo");
+    List<Object> decoded = new ArrayList<>();
+    for (int i = 0; i < values.size(); i++) {
+      parcel.setDataPosition(starts.get(i));
+      Object value = creator.createFromParcel(parcel);
+      assertThat(value).isEqualTo(values.get(i));
+      decoded.add(value);
+    }
+    assertThat(parcel.dataPosition()).isEqualTo(end);
+
+    List<int[]> reads = new ArrayList<>();
+    for (int i = 0; i < values.size(); i++) {
+      for (int j = 0; j < readers.size(); j++) {
+        reads.add(new int[] { i, j });
+      }
+    }
+    Random random = new Random(0x5eed);
+    Collections.shuffle(reads, random);
+    List<Method> readerMethods = new ArrayList<>(readers.keySet());
+    for (int[] read : reads) {
+      Method reader = readerMethods.get(read[1]);
+      int position = random.nextInt(end + 1);
+      parcel.setDataPosition(position);
+      Object expected = readers.get(reader).invoke(decoded.get(read[0]));
+      assertThat(reader.invoke(null, parcel, starts.get(read[0]))).isEqualTo(expected);
+      assertThat(parcel.dataPosition()).isEqualTo(position);
+    }
+    parcel.recycle();
+  }
+
+  @Test public void generatesVisitorDecoder() {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelVisitor;\n"
+        + "@ParcelVisitor\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  public abstract int count();\n"
+        + "  @Nullable public abstract String name();\n"
+        + "  public abstract boolean flag();\n"
+        + "}");
+
+    JavaFileObject expected = JavaFileObjects.forSourceString("test/AutoValue_Foo", ""
+        + "package test;\n"
+        + "\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "import java.lang.Override;\n"
+        + "import java.lang.String;\n"
+        + "import javax.annotation.Generated;\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")\n"
+        + "final class AutoValue_Foo extends $AutoValue_Foo {\n"
+        + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
+        + "      return new AutoValue_Foo(\n"
+        + "          in.readInt(),\n"
+        + "          in.readInt() == 0 ? in.readString() : null,\n"
+        + "          in.readInt() == 1\n"
+        + "      );\n"
+        + "    }\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo[] newArray(int size) {\n"
+        + "      return new AutoValue_Foo[size];\n"
+        + "    }\n"
+        + "  };\n"
+        + "\n"
+        + "  AutoValue_Foo(int count, @Nullable String name, boolean flag) {\n"
+        + "    super(count, name, flag);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {\n"
+        + "    dest.writeInt(count());\n"
+        + "    if (name() == null) {\n"
+        + "      dest.writeInt(1);\n"
+        + "    } else {\n"
+        + "      dest.writeInt(0);\n"
+        + "      dest.writeString(name());\n"
+        + "    }\n"
+        + "    dest.writeInt(flag() ? 1 : 0);\n"
+        + "  }\n"
+        + "\n"
+        + "  public static void decode(Parcel in, FooVisitor visitor) {\n"
+        + "    visitor.onCount(in.readInt());\n"
+        + "    visitor.onName(in.readInt() == 0 ? in.readString() : null);\n"
+        + "    visitor.onFlag(in.readInt() == 1);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int describeContents() {\n"
+        + "    return 0;\n"
+        + "  }\n"
+        + "}");
+    JavaFileObject expectedVisitor = JavaFileObjects.forSourceString("test/FooVisitor", ""
+        + "package test;\n"
+        + "\n"
+        + "import java.lang.String;\n"
+        + "import javax.annotation.Generated;\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")\n"
+        + "public interface FooVisitor {\n"
+        + "  void onCount(int count);\n"
+        + "\n"
+        + "  void onName(@Nullable String name);\n"
+        + "\n"
+        + "  void onFlag(boolean flag);\n"
+        + "}");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(nullable, parcel, parcelable, source))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .compilesWithoutError()
+        .and()
+        .generatesSources(expected, expectedVisitor);
+  }
+
+  @Test public void usesSingletonTypeAdapters() {
+    JavaFileObject dateAdapter = JavaFileObjects.forSourceString("test.DateTypeAdapter", ""
+        + "package test;\n"
+        + "import android.os.Parcel;\n"
+        + "import java.util.Date;\n"
+        + "import com.ryanharter.auto.value.parcel.TypeAdapter;\n"
+        + "public final class DateTypeAdapter implements TypeAdapter<Date> {\n"
+        + "  public static final DateTypeAdapter INSTANCE = new DateTypeAdapter();\n"
+        + "  private DateTypeAdapter() {}\n"
+        + "  public Date fromParcel(Parcel in) {\n"
+        + "    return new Date(in.readLong());\n"
+        + "  }\n"
+        + "  public void toParcel(Date value, Parcel dest) {\n"
+        + "    dest.writeLong(value.getTime());\n"
+        + "  }\n"
+        + "}\n");
+    JavaFileObject uuidAdapter = JavaFileObjects.forSourceString("test.UuidTypeAdapter", ""
+        + "package test;\n"
+        + "import android.os.Parcel;\n"
+        + "import java.util.UUID;\n"
+        + "import com.ryanharter.auto.value.parcel.TypeAdapter;\n"
+        + "public enum UuidTypeAdapter implements TypeAdapter<UUID> {\n"
+        + "  ADAPTER;\n"
+        + "  public UUID fromParcel(Parcel in) {\n"
+        + "    return new UUID(in.readLong(), in.readLong());\n"
+        + "  }\n"
+        + "  public void toParcel(UUID value, Parcel dest) {\n"
+        + "    dest.writeLong(value.getMostSignificantBits());\n"
+        + "    dest.writeLong(value.getLeastSignificantBits());\n"
+        + "  }\n"
+        + "}\n");
+    JavaFileObject foo = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelAdapter;\n"
+        + "import java.util.Date;\n"
+        + "import java.util.UUID;\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  @ParcelAdapter(DateTypeAdapter.class) public abstract Date date();\n"
+        + "  @ParcelAdapter(UuidTypeAdapter.class) public abstract UUID id();\n"
+        + "}\n");
+
+    JavaFileObject expected = JavaFileObjects.forSourceString("test/AutoValue_Foo", ""
+        + "package test;\n"
+        + "\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "import java.lang.Override;\n"
+        + "import java.util.Date;\n"
+        + "import java.util.UUID;\n"
+        + "import javax.annotation.Generated;\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")"
+        + "final class AutoValue_Foo extends $AutoValue_Foo {\n"
+        + "\n"
+        + "  private static final DateTypeAdapter DATE_TYPE_ADAPTER = DateTypeAdapter.INSTANCE;\n"
+        + "\n"
+        + "  private static final UuidTypeAdapter UUID_TYPE_ADAPTER = UuidTypeAdapter.ADAPTER;\n"
+        + "\n"
+        + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
+        + "      return new AutoValue_Foo(\n"
+        + "        DATE_TYPE_ADAPTER.fromParcel(in),\n"
+        + "        UUID_TYPE_ADAPTER.fromParcel(in)\n"
+        + "      );\n"
+        + "    }\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo[] newArray(int size) {\n"
+        + "      return new AutoValue_Foo[size];\n"
+        + "    }\n"
+        + "  };\n"
+        + "\n"
+        + "  AutoValue_Foo(Date date, UUID id) {\n"
+        + "    super(date, id);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {\n"
+        + "    DATE_TYPE_ADAPTER.toParcel(date(), dest);\n"
+        + "    UUID_TYPE_ADAPTER.toParcel(id(), dest);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int describeContents() {\n"
+        + "    return 0;\n"
+        + "  }\n"
+        + "}\n");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(parcel, parcelable, dateAdapter, uuidAdapter, foo))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .compilesWithoutError()
+        .and()
+        .generatesSources(expected);
+  }
+
+  @Test public void failsWhenTypeAdapterCantBeCreated() {
+    JavaFileObject adapter = JavaFileObjects.forSourceString("other.DateAdapter", ""
+        + "package other;\n"
+        + "import android.os.Parcel;\n"
+        + "import com.ryanharter.auto.value.parcel.TypeAdapter;\n"
+        + "import java.util.Date;\n"
+        + "public class DateAdapter implements TypeAdapter<Date> {\n"
+        + "  DateAdapter() {}\n"
+        + "  public Date fromParcel(Parcel in) {\n"
+        + "    return new Date(in.readLong());\n"
+        + "  }\n"
+        + "  public void toParcel(Date value, Parcel dest) {\n"
+        + "    dest.writeLong(value.getTime());\n"
+        + "  }\n"
+        + "}\n");
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelAdapter;\n"
+        + "import java.util.Date;\n"
+        + "import other.DateAdapter;\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  @ParcelAdapter(DateAdapter.class) public abstract Date date();\n"
+        + "}\n");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(parcel, parcelable, adapter, source))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .failsToCompile()
+        .withErrorContaining("TypeAdapter other.DateAdapter needs a no-arg constructor that's "
+            + "visible from package test.")
+        .in(source);
+  }
+
+  @Test public void createsPackagePrivateTypeAdaptersLazilyAndOnce() throws Exception {
+    JavaFileObject adapter = JavaFileObjects.forSourceString("test.DateAdapter", ""
+        + "package test;\n"
+        + "import android.os.Parcel;\n"
+        + "import com.ryanharter.auto.value.parcel.TypeAdapter;\n"
+        + "import java.util.Date;\n"
+        + "class DateAdapter implements TypeAdapter<Date> {\n"
+        + "  static int created;\n"
+        + "  DateAdapter() {\n"
+        + "    created++;\n"
+        + "  }\n"
+        + "  public Date fromParcel(Parcel in) {\n"
+        + "    return new Date(in.readLong());\n"
+        + "  }\n"
+        + "  public void toParcel(Date value, Parcel dest) {\n"
+        + "    dest.writeLong(value.getTime());\n"
+        + "  }\n"
+        + "}\n");
+    JavaFileObject foo = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelAdapter;\n"
+        + "import java.util.Date;\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  @ParcelAdapter(DateAdapter.class) public abstract Date date();\n"
+        + "  public static Foo sample() {\n"
+        + "    return new AutoValue_Foo(new Date(1234L));\n"
+        + "  }\n"
+        + "}\n");
+    JavaFileObject bar = JavaFileObjects.forSourceString("test.Bar", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelAdapter;\n"
+        + "import java.util.Date;\n"
+        + "@AutoValue public abstract class Bar implements Parcelable {\n"
+        + "  @ParcelAdapter(DateAdapter.class) public abstract Date date();\n"
+        + "  public static Bar sample() {\n"
+        + "    return new AutoValue_Bar(new Date(5678L));\n"
+        + "  }\n"
+        + "}\n");
+
+    ClassLoader loader = compile(adapter, foo, bar);
+    Field created = loader.loadClass("test.DateAdapter").getDeclaredField("created");
+    created.setAccessible(true);
+    creator(loader, "test.AutoValue_Foo");
+    creator(loader, "test.AutoValue_Bar");
+    assertThat(created.getInt(null)).isEqualTo(0);
+
+    Parcelable fooValue =
+        (Parcelable) loader.loadClass("test.Foo").getMethod("sample").invoke(null);
+    Parcelable barValue =
+        (Parcelable) loader.loadClass("test.Bar").getMethod("sample").invoke(null);
+    assertThat(roundTrip(loader, fooValue)).isEqualTo(fooValue);
+    assertThat(roundTrip(loader, barValue)).isEqualTo(barValue);
+    assertThat(created.getInt(null)).isEqualTo(1);
+  }
+
+  @Test public void sharesStringTablesOnlyWithNestedAnnotatedClasses() throws Exception {
+    JavaFileObject item = JavaFileObjects.forSourceString("test.Item", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelStringTable;\n"
+        + "@ParcelStringTable\n"
+        + "@AutoValue public abstract class Item implements Parcelable {\n"
+        + "  public abstract String category();\n"
+        + "  @Nullable public abstract String locale();\n"
+        + "  public static Item create(String category, String locale) {\n"
+        + "    return new AutoValue_Item(category, locale);\n"
+        + "  }\n"
+        + "}\n");
+    JavaFileObject mid = JavaFileObjects.forSourceString("test.Mid", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "@AutoValue public abstract class Mid implements Parcelable {\n"
+        + "  public abstract Item item();\n"
+        + "}\n");
+    JavaFileObject outer = JavaFileObjects.forSourceString("test.Outer", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelStringTable;\n"
+        + "import java.util.Arrays;\n"
+        + "import java.util.List;\n"
+        + "@ParcelStringTable\n"
+        + "@AutoValue public abstract class Outer implements Parcelable {\n"
+        + "  public abstract String category();\n"
+        + "  public abstract List<Item> items();\n"
+        + "  public abstract Item first();\n"
+        + "  public abstract Mid mid();\n"
+        + "  public static Outer sample() {\n"
+        + "    Item book = Item.create(\"books\", \"en\");\n"
+        + "    return new AutoValue_Outer(\"books\",\n"
+        + "        Arrays.asList(book, Item.create(\"books\", null), Item.create(\"music\", \"en\")),\n"
+        + "        book, new AutoValue_Mid(Item.create(\"books\", \"en\")));\n"
+        + "  }\n"
+        + "}\n");
+    JavaFileObject holder = JavaFileObjects.forSourceString("test.Holder", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelReader;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelStringTable;\n"
+        + "@ParcelStringTable @ParcelReader\n"
+        + "@AutoValue public abstract class Holder implements Parcelable {\n"
+        + "  public abstract String name();\n"
+        + "  public abstract Item item();\n"
+        + "  public static Holder sample() {\n"
+        + "    return new AutoValue_Holder(\"books\", Item.create(\"books\", \"books\"));\n"
+        + "  }\n"
+        + "}\n");
+
+    ClassLoader loader = compile(nullable, item, mid, outer, holder);
+    Parcelable outerValue =
+        (Parcelable) loader.loadClass("test.Outer").getMethod("sample").invoke(null);
+    assertThat(roundTrip(loader, outerValue)).isEqualTo(outerValue);
+
+    // Once in the table Outer shares with its items, and once in the table of the Item in Mid.
+    Parcel parcel = Parcel.obtain();
+    outerValue.writeToParcel(parcel, 0);
+    assertThat(occurrences(parcel.marshall(), "books")).isEqualTo(2);
+    parcel.recycle();
+
+    Parcelable holderValue =
+        (Parcelable) loader.loadClass("test.Holder").getMethod("sample").invoke(null);
+    assertThat(roundTrip(loader, holderValue)).isEqualTo(holderValue);
+    parcel = Parcel.obtain();
+    holderValue.writeToParcel(parcel, 0);
+    Object read = loader.loadClass("test.HolderParcelReader")
+        .getMethod("readItem", Parcel.class, int.class)
+        .invoke(null, parcel, 0);
+    assertThat(read)
+        .isEqualTo(loader.loadClass("test.Holder").getMethod("item").invoke(holderValue));
+    parcel.recycle();
+  }
+
+  @Test public void callsPrimitiveTypeAdaptersWithoutBoxing() {
+    JavaFileObject percentAdapter = JavaFileObjects.forSourceString("test.PercentTypeAdapter", ""
+        + "package test;\n"
+        + "import android.os.Parcel;\n"
+        + "import com.ryanharter.auto.value.parcel.IntTypeAdapter;\n"
+        + "public class PercentTypeAdapter implements IntTypeAdapter {\n"
+        + "  public int readInt(Parcel in) {\n"
+        + "    return in.readInt() / 100;\n"
+        + "  }\n"
+        + "  public void writeInt(int value, Parcel dest) {\n"
+        + "    dest.writeInt(value * 100);\n"
+        + "  }\n"
+        + "}\n");
+    JavaFileObject foo = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelAdapter;\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  @ParcelAdapter(PercentTypeAdapter.class) public abstract int progress();\n"
+        + "  @ParcelAdapter(PercentTypeAdapter.class) @Nullable public abstract Integer battery();\n"
+        + "}\n");
+
+    JavaFileObject expected = JavaFileObjects.forSourceString("test/AutoValue_Foo", ""
+        + "package test;\n"
+        + "\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelAdapters;\n"
+        + "import java.lang.Integer;\n"
+        + "import java.lang.Override;\n"
+        + "import javax.annotation.Generated;\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")"
+        + "final class AutoValue_Foo extends $AutoValue_Foo {\n"
+        + "\n"
+        + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
+        + "      return new AutoValue_Foo(\n"
+        + "        TypeAdapterHolder.PERCENT_TYPE_ADAPTER.readInt(in),\n"
+        + "        in.readInt() == 0 ? TypeAdapterHolder.PERCENT_TYPE_ADAPTER.readInt(in) : null\n"
+        + "      );\n"
+        + "    }\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo[] newArray(int size) {\n"
+        + "      return new AutoValue_Foo[size];\n"
+        + "    }\n"
+        + "  };\n"
+        + "\n"
+        + "  AutoValue_Foo(int progress, @Nullable Integer battery) {\n"
+        + "    super(progress, battery);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {\n"
+        + "    TypeAdapterHolder.PERCENT_TYPE_ADAPTER.writeInt(progress(), dest);\n"
+        + "    if (battery() == null) {\n"
+        + "      dest.writeInt(1);\n"
+        + "    } else {\n"
+        + "      dest.writeInt(0);\n"
+        + "      TypeAdapterHolder.PERCENT_TYPE_ADAPTER.writeInt(battery(), dest);\n"
+        + "    }\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int describeContents() {\n"
+        + "    return 0;\n"
+        + "  }\n"
+        + "\n"
+        + "  private static final class TypeAdapterHolder {\n"
+        + "    static final PercentTypeAdapter PERCENT_TYPE_ADAPTER = ParcelAdapters.get(PercentTypeAdapter.class, PercentTypeAdapter::new);\n"
+        + "  }\n"
+        + "}\n");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(nullable, parcel, parcelable, percentAdapter, foo))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .compilesWithoutError()
+        .and()
+        .generatesSources(expected);
+  }
+
+  @Test public void writesAdaptedListElementsInBatches() {
+    JavaFileObject dateAdapter = JavaFileObjects.forSourceString("test.DateTypeAdapter", ""
+        + "package test;\n"
+        + "import android.os.Parcel;\n"
+        + "import com.ryanharter.auto.value.parcel.TypeAdapter;\n"
+        + "import java.util.ArrayList;\n"
+        + "import java.util.Date;\n"
+        + "import java.util.List;\n"
+        + "public class DateTypeAdapter implements TypeAdapter<Date> {\n"
+        + "  public Date fromParcel(Parcel in) {\n"
+        + "    return new Date(in.readLong());\n"
+        + "  }\n"
+        + "  public void toParcel(Date value, Parcel dest) {\n"
+        + "    dest.writeLong(value.getTime());\n"
+        + "  }\n"
+        + "  @Override public List<Date> fromParcelAll(Parcel in, int count) {\n"
+        + "    long[] times = in.createLongArray();\n"
+        + "    List<Date> values = new ArrayList<>(count);\n"
+        + "    for (long time : times) {\n"
+        + "      values.add(new Date(time));\n"
+        + "    }\n"
+        + "    return values;\n"
+        + "  }\n"
+        + "  @Override public void toParcelAll(List<Date> values, Parcel dest) {\n"
+        + "    long[] times = new long[values.size()];\n"
+        + "    for (int i = 0; i < times.length; i++) {\n"
+        + "      times[i] = values.get(i).getTime();\n"
+        + "    }\n"
+        + "    dest.writeLongArray(times);\n"
+        + "  }\n"
+        + "}\n");
+    JavaFileObject foo = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelAdapter;\n"
+        + "import java.util.Date;\n"
+        + "import java.util.List;\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  @ParcelAdapter(DateTypeAdapter.class) public abstract Date created();\n"
+        + "  @ParcelAdapter(DateTypeAdapter.class) public abstract List<Date> updates();\n"
+        + "  @ParcelAdapter(DateTypeAdapter.class) @Nullable public abstract List<Date> deletes();\n"
+        + "}\n");
+
+    JavaFileObject expected = JavaFileObjects.forSourceString("test/AutoValue_Foo", ""
+        + "package test;\n"
+        + "\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelAdapters;\n"
+        + "import java.lang.Override;\n"
+        + "import java.util.Date;\n"
+        + "import java.util.List;\n"
+        + "import javax.annotation.Generated;\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")"
+        + "final class AutoValue_Foo extends $AutoValue_Foo {\n"
+        + "\n"
+        + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
+        + "      return new AutoValue_Foo(\n"
+        + "        TypeAdapterHolder.DATE_TYPE_ADAPTER.fromParcel(in),\n"
+        + "        TypeAdapterHolder.DATE_TYPE_ADAPTER.fromParcelAll(in, in.readInt()),\n"
+        + "        in.readInt() == 0 ? TypeAdapterHolder.DATE_TYPE_ADAPTER.fromParcelAll(in, in.readInt()) : null\n"
+        + "      );\n"
+        + "    }\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo[] newArray(int size) {\n"
+        + "      return new AutoValue_Foo[size];\n"
+        + "    }\n"
+        + "  };\n"
+        + "\n"
+        + "  AutoValue_Foo(Date created, List<Date> updates, @Nullable List<Date> deletes) {\n"
+        + "    super(created, updates, deletes);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {\n"
+        + "    TypeAdapterHolder.DATE_TYPE_ADAPTER.toParcel(created(), dest);\n"
+        + "    dest.writeInt(updates().size());\n"
+        + "    TypeAdapterHolder.DATE_TYPE_ADAPTER.toParcelAll(updates(), dest);\n"
+        + "    if (deletes() == null) {\n"
+        + "      dest.writeInt(1);\n"
+        + "    } else {\n"
+        + "      dest.writeInt(0);\n"
+        + "      dest.writeInt(deletes().size());\n"
+        + "      TypeAdapterHolder.DATE_TYPE_ADAPTER.toParcelAll(deletes(), dest);\n"
+        + "    }\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int describeContents() {\n"
+        + "    return 0;\n"
+        + "  }\n"
+        + "\n"
+        + "  private static final class TypeAdapterHolder {\n"
+        + "    static final DateTypeAdapter DATE_TYPE_ADAPTER = ParcelAdapters.get(DateTypeAdapter.class, DateTypeAdapter::new);\n"
+        + "  }\n"
+        + "}\n");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(nullable, parcel, parcelable, dateAdapter, foo))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .compilesWithoutError()
+        .and()
+        .generatesSources(expected);
+  }
+
+  @Test public void adaptsTypeArgumentsWithParcelAdapter() {
+    // javac 8 doesn't report the annotations on type arguments to processors.
+    assumeTrue(SourceVersion.latest().compareTo(SourceVersion.RELEASE_8) > 0);
+    JavaFileObject dateAdapter = JavaFileObjects.forSourceString("test.DateTypeAdapter", ""
+        + "package test;\n"
+        + "import android.os.Parcel;\n"
+        + "import com.ryanharter.auto.value.parcel.TypeAdapter;\n"
+        + "import java.util.Date;\n"
+        + "public class DateTypeAdapter implements TypeAdapter<Date> {\n"
+        + "  public Date fromParcel(Parcel in) {\n"
+        + "    return new Date(in.readLong());\n"
+        + "  }\n"
+        + "  public void toParcel(Date value, Parcel dest) {\n"
+        + "    dest.writeLong(value.getTime());\n"
+        + "  }\n"
+        + "}\n");
+    JavaFileObject foo = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelAdapter;\n"
+        + "import java.util.Date;\n"
+        + "import java.util.List;\n"
+        + "import java.util.Map;\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  public abstract List<@ParcelAdapter(DateTypeAdapter.class) Date> dates();\n"
+        + "  @Nullable\n"
+        + "  public abstract Map<String, @ParcelAdapter(DateTypeAdapter.class) Date> deadlines();\n"
+        + "}\n");
+
+    JavaFileObject expected = JavaFileObjects.forSourceString("test/AutoValue_Foo", ""
+        + "package test;\n"
+        + "\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelAdapters;\n"
+        + "import java.lang.Override;\n"
+        + "import java.lang.String;\n"
+        + "import java.util.Date;\n"
+        + "import java.util.List;\n"
+        + "import java.util.Map;\n"
+        + "import " + GENERATED_ANNOTATION + ";\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")"
+        + "final class AutoValue_Foo extends $AutoValue_Foo {\n"
+        + "\n"
+        + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
+        + "      return new AutoValue_Foo(\n"
+        + "        TypeAdapterHolder.DATE_TYPE_ADAPTER.fromParcelAll(in, in.readInt()),\n"
+        + "        in.readInt() == 0 ? ParcelAdapters.readMap(in, TypeAdapterHolder.DATE_TYPE_ADAPTER) : null\n"
+        + "      );\n"
+        + "    }\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo[] newArray(int size) {\n"
+        + "      return new AutoValue_Foo[size];\n"
+        + "    }\n"
+        + "  };\n"
+        + "\n"
+        + "  AutoValue_Foo(List<Date> dates, @Nullable Map<String, Date> deadlines) {\n"
+        + "    super(dates, deadlines);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {\n"
+        + "    dest.writeInt(dates().size());\n"
+        + "    TypeAdapterHolder.DATE_TYPE_ADAPTER.toParcelAll(dates(), dest);\n"
+        + "    if (deadlines() == null) {\n"
+        + "      dest.writeInt(1);\n"
+        + "    } else {\n"
+        + "      dest.writeInt(0);\n"
+        + "      ParcelAdapters.writeMap(deadlines(), TypeAdapterHolder.DATE_TYPE_ADAPTER, dest);\n"
+        + "    }\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int describeContents() {\n"
+        + "    return 0;\n"
+        + "  }\n"
+        + "\n"
+        + "  private static final class TypeAdapterHolder {\n"
+        + "    static final DateTypeAdapter DATE_TYPE_ADAPTER = ParcelAdapters.get(DateTypeAdapter.class, DateTypeAdapter::new);\n"
+        + "  }\n"
+        + "}\n");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(nullable, parcel, parcelable, dateAdapter, foo))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .compilesWithoutError()
+        .and()
+        .generatesSources(expected);
+  }
+
+  @Test public void failsWhenTypeArgumentAdapterDoesNotMatch() {
+    // javac 8 doesn't report the annotations on type arguments to processors.
+    assumeTrue(SourceVersion.latest().compareTo(SourceVersion.RELEASE_8) > 0);
+    JavaFileObject dateAdapter = JavaFileObjects.forSourceString("test.DateTypeAdapter", ""
+        + "package test;\n"
+        + "import android.os.Parcel;\n"
+        + "import com.ryanharter.auto.value.parcel.TypeAdapter;\n"
+        + "import java.util.Date;\n"
+        + "public class DateTypeAdapter implements TypeAdapter<Date> {\n"
+        + "  public Date fromParcel(Parcel in) {\n"
+        + "    return new Date(in.readLong());\n"
+        + "  }\n"
+        + "  public void toParcel(Date value, Parcel dest) {\n"
+        + "    dest.writeLong(value.getTime());\n"
+        + "  }\n"
+        + "}\n");
+    JavaFileObject foo = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelAdapter;\n"
+        + "import java.util.Date;\n"
+        + "import java.util.Map;\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  public abstract Map<@ParcelAdapter(DateTypeAdapter.class) Date, String> dates();\n"
+        + "}\n");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(parcel, parcelable, dateAdapter, foo))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .failsToCompile()
+        .withErrorContaining("ParcelAdapter can only be used on the element type of a List");
+  }
+
+  @Test public void usesParcelCodecsFromProcessorPath() {
+    JavaFileObject money = JavaFileObjects.forSourceString("test.Money", ""
+        + "package test;\n"
+        + "public final class Money {\n"
+        + "  public Money(long cents, String currency) {}\n"
+        + "  public long cents() { return 0; }\n"
+        + "  public String currency() { return null; }\n"
+        + "}\n");
+    JavaFileObject foo = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  public abstract Money price();\n"
+        + "  @Nullable public abstract Money discount();\n"
+        + "  public abstract int count();\n"
+        + "}\n");
+
+    JavaFileObject expected = JavaFileObjects.forSourceString("test/AutoValue_Foo", ""
+        + "package test;\n"
+        + "\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "import java.lang.Override;\n"
+        + "import javax.annotation.Generated;\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")"
+        + "final class AutoValue_Foo extends $AutoValue_Foo {\n"
+        + "\n"
+        + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
+        + "      return new AutoValue_Foo(\n"
+        + "        new Money(in.readLong(), in.readString()),\n"
+        + "        in.readInt() == 0 ? new Money(in.readLong(), in.readString()) : null,\n"
+        + "        in.readInt()\n"
+        + "      );\n"
+        + "    }\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo[] newArray(int size) {\n"
+        + "      return new AutoValue_Foo[size];\n"
+        + "    }\n"
+        + "  };\n"
+        + "\n"
+        + "  AutoValue_Foo(Money price, @Nullable Money discount, int count) {\n"
+        + "    super(price, discount, count);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {\n"
+        + "    dest.writeLong(price().cents());\n"
+        + "    dest.writeString(price().currency());\n"
+        + "    if (discount() == null) {\n"
+        + "      dest.writeInt(1);\n"
+        + "    } else {\n"
+        + "      dest.writeInt(0);\n"
+        + "      dest.writeLong(discount().cents());\n"
+        + "      dest.writeString(discount().currency());\n"
+        + "    }\n"
+        + "    dest.writeInt(count());\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int describeContents() {\n"
+        + "    return 0;\n"
+        + "  }\n"
+        + "}\n");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(nullable, parcel, parcelable, money, foo))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(
+            new AutoValueParcelExtension(ImmutableList.of(new MoneyCodec())))))
+        .compilesWithoutError()
+        .and()
+        .generatesSources(expected);
+  }
+
+  @Test public void failsWhenParcelCodecClaimsBuiltInType() {
+    ParcelCodec stringCodec = new MoneyCodec() {
+      @Override public Set<TypeName> types() {
+        return ImmutableSet.of(ClassName.get(String.class));
+      }
+    };
+    JavaFileObject foo = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  public abstract String name();\n"
+        + "}\n");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(parcel, parcelable, foo))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(
+            new AutoValueParcelExtension(ImmutableList.of(stringCodec)))))
+        .failsToCompile()
+        .withErrorContaining("but claims java.lang.String");
+  }
+
+  static class MoneyCodec implements ParcelCodec {
+    @Override public Set<TypeName> types() {
+      return ImmutableSet.of(ClassName.get("test", "Money"));
+    }
+
+    @Override public CodeBlock read(TypeMirror type, ParameterSpec in) {
+      return CodeBlock.of("new Money($N.readLong(), $N.readString())", in, in);
+    }
+
+    @Override public CodeBlock write(TypeMirror type, CodeBlock value, ParameterSpec out,
+        ParameterSpec flags) {
+      return CodeBlock.builder()
+          .addStatement("$N.writeLong($L.cents())", out, value)
+          .addStatement("$N.writeString($L.currency())", out, value)
+          .build();
+    }
+  }
+
+  @Test public void roundTripsGeneratedCodeThroughParcel() throws Exception {
+    JavaFileObject bar = JavaFileObjects.forSourceString("test.Bar", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "@AutoValue public abstract class Bar implements Parcelable {\n"
+        + "  public abstract String name();\n"
+        + "  public abstract long id();\n"
+        + "}");
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import java.util.Arrays;\n"
+        + "import java.util.Collections;\n"
+        + "import java.util.List;\n"
+        + "import java.util.Map;\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  public enum Status { ACTIVE, CLOSED }\n"
+        + "  public abstract int a();\n"
+        + "  public abstract long b();\n"
+        + "  public abstract boolean c();\n"
+        + "  @Nullable public abstract Double d();\n"
+        + "  @Nullable public abstract Double e();\n"
+        + "  public abstract String f();\n"
+        + "  public abstract List<String> g();\n"
+        + "  public abstract Map<String, Integer> h();\n"
+        + "  public abstract Status i();\n"
+        + "  public abstract Bar j();\n"
+        + "  public abstract List<Bar> k();\n"
+        + "  public abstract int[] l();\n"
+        + "  public static Foo sample() {\n"
+        + "    Bar bar = new AutoValue_Bar(\"bar\", 42L);\n"
+        + "    return new AutoValue_Foo(7, Long.MAX_VALUE, true, 1.5, null, \"f\u00e9\",\n"
+        + "        Arrays.asList(\"x\", \"yz\"), Collections.singletonMap(\"one\", 1),\n"
+        + "        Status.CLOSED, bar, Arrays.asList(bar, new AutoValue_Bar(\"baz\", -1L)),\n"
+        + "        new int[] { 1, 2, 3 });\n"
+        + "  }\n"
+        + "}");
+
+    ClassLoader loader = compile(nullable, bar, source);
+    Parcelable value = (Parcelable) loader.loadClass("test.Foo").getMethod("sample").invoke(null);
+    Parcel parcel = Parcel.obtain();
+    value.writeToParcel(parcel, 0);
+    byte[] bytes = parcel.marshall();
+    assertThat(bytes.length % 4).isEqualTo(0);
+
+    Parcel copy = Parcel.obtain();
+    copy.unmarshall(bytes, 0, bytes.length);
+    Object result = creator(loader, "test.AutoValue_Foo").createFromParcel(copy);
+    assertThat(copy.dataPosition()).isEqualTo(bytes.length);
+    // Arrays don't take part in AutoValue's equals.
+    assertThat(result.toString()).isEqualTo(value.toString());
+  }
+
+  @Test public void generatedCodeWritesPlatformParcelSizes() throws Exception {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  public abstract int a();\n"
+        + "  @Nullable public abstract Double b();\n"
+        + "  public abstract String c();\n"
+        + "  public abstract long d();\n"
+        + "  public static Foo sample() {\n"
+        + "    return new AutoValue_Foo(1, null, \"ab\", 2L);\n"
+        + "  }\n"
+        + "}");
+
+    ClassLoader loader = compile(nullable, source);
+    Parcelable value = (Parcelable) loader.loadClass("test.Foo").getMethod("sample").invoke(null);
+    Parcel parcel = Parcel.obtain();
+    value.writeToParcel(parcel, 0);
+
+    // int, null marker, string length + two chars + terminator padded to 8, long.
+    assertThat(parcel.dataSize()).isEqualTo(4 + 4 + 4 + 8 + 8);
+    parcel.setDataPosition(0);
+    assertThat(creator(loader, "test.AutoValue_Foo").createFromParcel(parcel)).isEqualTo(value);
+  }
+
+  @Test public void generatesParcelSizeConstantForFixedWidthClasses() {
+    JavaFileObject foo = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelSizeEstimate;\n"
+        + "@ParcelSizeEstimate\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  public abstract int a();\n"
+        + "  public abstract long b();\n"
+        + "  public abstract float c();\n"
+        + "  public abstract double d();\n"
+        + "}\n");
+
+    JavaFileObject expected = JavaFileObjects.forSourceString("test/AutoValue_Foo", ""
+        + "package test;\n"
+        + "\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.ryanharter.auto.value.parcel.SizedParcelable;\n"
+        + "import java.lang.Override;\n"
+        + "import javax.annotation.Generated;\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")"
+        + "final class AutoValue_Foo extends $AutoValue_Foo implements SizedParcelable {\n"
+        + "  public static final int PARCEL_SIZE = 24;\n"
+        + "\n"
+        + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
+        + "      return new AutoValue_Foo(\n"
+        + "        in.readInt(),\n"
+        + "        in.readLong(),\n"
+        + "        in.readFloat(),\n"
+        + "        in.readDouble()\n"
+        + "      );\n"
+        + "    }\n"
+        + "    @Override\n"
+        + "    public AutoValue_Foo[] newArray(int size) {\n"
+        + "      return new AutoValue_Foo[size];\n"
+        + "    }\n"
+        + "  };\n"
+        + "\n"
+        + "  AutoValue_Foo(int a, long b, float c, double d) {\n"
+        + "    super(a, b, c, d);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {\n"
+        + "    dest.writeInt(a());\n"
+        + "    dest.writeLong(b());\n"
+        + "    dest.writeFloat(c());\n"
+        + "    dest.writeDouble(d());\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int describeContents() {\n"
+        + "    return 0;\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int estimateParcelSize() {\n"
+        + "    return PARCEL_SIZE;\n"
+        + "  }\n"
+        + "}\n");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(parcel, parcelable, foo))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .compilesWithoutError()
+        .and()
+        .generatesSources(expected);
+  }
+
+  @Test public void estimatesParcelSizeOfVariableWidthClasses() {
+    JavaFileObject foo = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelSizeEstimate;\n"
+        + "import java.util.List;\n"
+        + "@ParcelSizeEstimate\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  public abstract int a();\n"
+        + "  @Nullable public abstract Double b();\n"
+        + "  public abstract String c();\n"
+        + "  public abstract List<String> d();\n"
+        + "}\n");
+
+    JavaFileObject expected = JavaFileObjects.forSourceString("test/AutoValue_Foo", ""
+        + "package test;\n"
+        + "\n"
+        + "import android.os.Parcel;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelSizes;\n"
+        + "import com.ryanharter.auto.value.parcel.SizedParcelable;\n"
+        + "import java.lang.Double;\n"
+        + "import java.lang.Override;\n"
+        + "import java.lang.String;\n"
+        + "import java.lang.SuppressWarnings;\n"
+        + "import java.util.List;\n"
+        + "import javax.annotation.Generated;\n"
+        + "\n"
+        + "@Generated(\"com.ryanharter.auto.value.parcel.AutoValueParcelExtension\")"
+        + "final class AutoValue_Foo extends $AutoValue_Foo implements SizedParcelable {\n"
+        + "  public static final Parcelable.Creator<AutoValue_Foo> CREATOR = new Parcelable.Creator<AutoValue_Foo>() {\n"
+        + "    @Override\n"
+        + "    @SuppressWarnings({\"unchecked\", \"rawtypes\"})\n"
+        + "    public AutoValue_Foo createFromParcel(Parcel in) {\n"
+        + "      return new AutoValue_Foo(\n"
+        + "        in.readInt(),\n"
+        + "        in.readInt() == 0 ? in.readDouble() : null,\n"
+        + "        in.readString(),\n"
+        + "        in.createStringArrayList()\n"
+        + "      );\n"
+        + "    }\n"
+        + "    @Override\n"
+        + "    @SuppressWarnings({\"unchecked\", \"rawtypes\"})\n"
+        + "    public AutoValue_Foo[] newArray(int size) {\n"
+        + "      return new AutoValue_Foo[size];\n"
+        + "    }\n"
+        + "  };\n"
+        + "\n"
+        + "  AutoValue_Foo(int a, @Nullable Double b, String c, List<String> d) {\n"
+        + "    super(a, b, c, d);\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public void writeToParcel(Parcel dest, int flags) {\n"
+        + "    dest.writeInt(a());\n"
+        + "    if (b() == null) {\n"
+        + "      dest.writeInt(1);\n"
+        + "    } else {\n"
+        + "      dest.writeInt(0);\n"
+        + "      dest.writeDouble(b());\n"
+        + "    }\n"
+        + "    dest.writeString(c());\n"
+        + "    dest.writeStringList(d());\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int describeContents() {\n"
+        + "    return 0;\n"
+        + "  }\n"
+        + "\n"
+        + "  @Override\n"
+        + "  public int estimateParcelSize() {\n"
+        + "    int size = 8;\n"
+        + "    size += b() == null ? 0 : 8;\n"
+        + "    size += ParcelSizes.string(c());\n"
+        + "    size += ParcelSizes.stringList(d());\n"
+        + "    return size;\n"
+        + "  }\n"
+        + "}\n");
+
+    assertAbout(javaSources())
+        .that(Arrays.asList(nullable, parcel, parcelable, foo))
+        .processedWith(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .compilesWithoutError()
+        .and()
+        .generatesSources(expected);
+  }
+
+  @Test public void estimatedParcelSizesMatchWhatIsWritten() throws Exception {
+    JavaFileObject bar = JavaFileObjects.forSourceString("test.Bar", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelNullBitmap;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelSizeEstimate;\n"
+        + "@ParcelSizeEstimate @ParcelNullBitmap\n"
+        + "@AutoValue public abstract class Bar implements Parcelable {\n"
+        + "  public abstract boolean a();\n"
+        + "  public abstract char b();\n"
+        + "  @Nullable public abstract Long c();\n"
+        + "}");
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Foo", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelSizeEstimate;\n"
+        + "import java.util.ArrayList;\n"
+        + "import java.util.Arrays;\n"
+        + "import java.util.List;\n"
+        + "import java.util.Map;\n"
+        + "@ParcelSizeEstimate\n"
+        + "@AutoValue public abstract class Foo implements Parcelable {\n"
+        + "  public enum Status { ACTIVE, CLOSED }\n"
+        + "  public abstract int a();\n"
+        + "  @Nullable public abstract Double b();\n"
+        + "  public abstract String c();\n"
+        + "  public abstract List<String> d();\n"
+        + "  public abstract Status e();\n"
+        + "  public abstract Bar f();\n"
+        + "  public abstract List<Bar> g();\n"
+        + "  public abstract int[] h();\n"
+        + "  public abstract Map<String, String> i();\n"
+        + "  public abstract Map<String, Integer> j();\n"
+        + "  public static List<Foo> samples() {\n"
+        + "    List<Foo> samples = new ArrayList<>();\n"
+        + "    for (int i = 0; i < 50; i++) {\n"
+        + "      Map<String, Integer> counts = new java.util.HashMap<>();\n"
+        + "      counts.put(\"count\", i);\n"
+        + "      counts.put(\"missing\", null);\n"
+        + "      Bar bar = new AutoValue_Bar(i % 2 == 0, 'x', i % 3 == 0 ? null : (long) i);\n"
+        + "      samples.add(new AutoValue_Foo(i, i % 2 == 0 ? null : 1.5, \"sample \" + i,\n"
+        + "          Arrays.asList(\"x\", \"yz\"), Status.values()[i % 2], bar,\n"
+        + "          Arrays.asList(bar, bar), new int[i],\n"
+        + "          java.util.Collections.singletonMap(\"key\", \"value \" + i), counts));\n"
+        + "    }\n"
+        + "    return samples;\n"
+        + "  }\n"
+        + "}");
+
+    JavaFileObject varInts = JavaFileObjects.forSourceString("test.VarInts", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelSizeEstimate;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelVarInt;\n"
+        + "@ParcelSizeEstimate @ParcelVarInt\n"
+        + "@AutoValue public abstract class VarInts implements Parcelable {\n"
+        + "  public abstract int a();\n"
+        + "  public abstract long b();\n"
+        + "  public abstract int c();\n"
+        + "  public static VarInts create(int i) {\n"
+        + "    return new AutoValue_VarInts(i == 0 ? Integer.MIN_VALUE : i,\n"
+        + "        i == 0 ? Long.MIN_VALUE : -i, i == 0 ? -1 : Integer.MAX_VALUE);\n"
+        + "  }\n"
+        + "}");
+    JavaFileObject strings = JavaFileObjects.forSourceString("test.Strings", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelSizeEstimate;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelStringTable;\n"
+        + "@ParcelSizeEstimate @ParcelStringTable\n"
+        + "@AutoValue public abstract class Strings implements Parcelable {\n"
+        + "  public abstract String a();\n"
+        + "  @Nullable public abstract String b();\n"
+        + "  public abstract String c();\n"
+        + "  public static Strings create(int i) {\n"
+        + "    return new AutoValue_Strings(\"sample \" + i, i % 2 == 0 ? null : \"sample \" + i,\n"
+        + "        \"other\");\n"
+        + "  }\n"
+        + "}");
+    JavaFileObject buffered = JavaFileObjects.forSourceString("test.Buffered", ""
+        + "package test;\n"
+        + "import android.os.Parcelable;\n"
+        + "import com.google.auto.value.AutoValue;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelByteBuffer;\n"
+        + "import com.ryanharter.auto.value.parcel.ParcelSizeEstimate;\n"
+        + "@ParcelSizeEstimate @ParcelByteBuffer\n"
+        + "@AutoValue public abstract class Buffered implements Parcelable {\n"
+        + "  public abstract boolean a();\n"
+        + "  public abstract long b();\n"
+        + "  public abstract double c();\n"
+        + "  public abstract short d();\n"
+        + "  @Nullable public abstract Integer e();\n"
+        + "  public abstract String f();\n"
+        + "  public static Buffered create(int i) {\n"
+        + "    return new AutoValue_Buffered(i % 2 == 0, i, i / 2.0, (short) i,\n"
+        + "        i % 3 == 0 ? null : i, \"sample \" + i);\n"
+        + "  }\n"
+        + "}");
+
+    ClassLoader loader = compile(nullable, bar, source, varInts, strings, buffered);
+    @SuppressWarnings("unchecked")
+    List<SizedParcelable> samples =
+        (List<SizedParcelable>) loader.loadClass("test.Foo").getMethod("samples").invoke(null);
+    int total = 0;
+    for (SizedParcelable sample : samples) {
+      Parcel parcel = Parcel.obtain();
+      sample.writeToParcel(parcel, 0);
+      assertThat(sample.estimateParcelSize()).isEqualTo(parcel.dataSize());
+      total += parcel.dataSize();
+    }
+
+    Parcel parcel = Parcel.obtain();
+    ParcelSizes.writeAll(samples, parcel, 0);
+    assertThat(parcel.dataSize()).isEqualTo(total);
+    // Reserved once up front, so the buffer was never grown while writing.
+    assertThat(parcel.dataCapacity()).isEqualTo(total);
+
+    // Varints and string table entries can take less than their estimate, but never more.
+    List<SizedParcelable> packed = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      for (String name : Arrays.asList("test.VarInts", "test.Strings", "test.Buffered")) {
+        packed.add((SizedParcelable)
+            loader.loadClass(name).getMethod("create", int.class).invoke(null, i));
+      }
+    }
+    int estimated = 0;
+    for (SizedParcelable sample : packed) {
+      parcel = Parcel.obtain();
+      sample.writeToParcel(parcel, 0);
+      if (sample.getClass().getName().endsWith("Buffered")) {
+        assertThat(sample.estimateParcelSize()).isEqualTo(parcel.dataSize());
+      } else {
+        assertThat(sample.estimateParcelSize()).isAtLeast(parcel.dataSize());
+      }
+      estimated += sample.estimateParcelSize();
+    }
+
+    parcel = Parcel.obtain();
+    ParcelSizes.writeAll(packed, parcel, 0);
+    assertThat(parcel.dataSize()).isAtMost(estimated);
+    assertThat(parcel.dataCapacity()).isEqualTo(estimated);
+  }
+
+  /**
+   * Compiles {@code sources} with the extension against the {@code android.os} classes in the
+   * test sources, and returns a class loader for the output.
+   */
+  @Test public void typeAnalysisWalksEachTypeOncePerEnvironment() {
+    TypeElement arrayList = elements.getTypeElement("java.util.ArrayList");
+    AtomicInteger firstWalks = new AtomicInteger();
+    ProcessingEnvironment first = new TestProcessingEnvironment(
+        new TestMessager(), elements, countingAsElement(rule.getTypes(), firstWalks));
+
+    TypeAnalysis analysis = extension.typeAnalysis(first);
+    assertThat(extension.typeAnalysis(first)).isSameInstanceAs(analysis);
+    TypeName parcelableType = Parcelables.getParcelableType(analysis, arrayList);
+    int walks = firstWalks.get();
+    assertThat(walks).isGreaterThan(0);
+    assertThat(Parcelables.getParcelableType(analysis, arrayList)).isEqualTo(parcelableType);
+    assertThat(firstWalks.get()).isEqualTo(walks);
+
+    AtomicInteger secondWalks = new AtomicInteger();
+    ProcessingEnvironment second = new TestProcessingEnvironment(
+        new TestMessager(), elements, countingAsElement(rule.getTypes(), secondWalks));
+    TypeAnalysis secondAnalysis = extension.typeAnalysis(second);
+    assertThat(secondAnalysis).isNotSameInstanceAs(analysis);
+    assertThat(Parcelables.getParcelableType(secondAnalysis, arrayList))
+        .isEqualTo(parcelableType);
+    assertThat(secondWalks.get()).isEqualTo(walks);
+    assertThat(firstWalks.get()).isEqualTo(walks);
+  }
+
+  /** Returns {@code types}, counting the calls to {@link Types#asElement} in {@code calls}. */
+  private static Types countingAsElement(Types types, AtomicInteger calls) {
+    return (Types) Proxy.newProxyInstance(Types.class.getClassLoader(),
+        new Class<?>[] { Types.class }, (proxy, method, args) -> {
+          if (method.getName().equals("asElement")) {
+            calls.incrementAndGet();
+          }
+          try {
+            return method.invoke(types, args);
+          } catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+        });
+  }
+
+  private static ClassLoader compile(JavaFileObject... sources) {
+    Compilation compilation = javac()
+        .withProcessors(new AutoValueProcessor(ImmutableList.of(new AutoValueParcelExtension())))
+        .compile(sources);
+    assertAbout(compilations()).that(compilation).succeeded();
+    Map<String, byte[]> classes = new LinkedHashMap<>();
+    for (JavaFileObject file : compilation.generatedFiles()) {
+      if (file.getKind() == JavaFileObject.Kind.CLASS) {
+        String path = file.toUri().getPath();
+        String name = path.substring(path.indexOf('/', 1) + 1, path.length() - ".class".length())
+            .replace('/', '.');
+        try (InputStream in = file.openInputStream()) {
+          classes.put(name, ByteStreams.toByteArray(in));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    }
+    return new ClassLoader(AutoValueParcelExtensionTest.class.getClassLoader()) {
+      @Override protected Class<?> findClass(String name) throws ClassNotFoundException {
+        byte[] bytes = classes.get(name);
+        if (bytes == null) {
+          throw new ClassNotFoundException(name);
+        }
+        return defineClass(name, bytes, 0, bytes.length);
+      }
+    };
+  }
+
+  private static Parcelable.Creator<?> creator(ClassLoader loader, String className)
+      throws ReflectiveOperationException {
+    Field field = loader.loadClass(className).getField("CREATOR");
+    field.setAccessible(true);
+    return (Parcelable.Creator<?>) field.get(null);
+  }
+
+  /**
+   * Writes {@code value} to a Parcel, and reads it back with the {@code CREATOR} of its generated
+   * class, checking that everything that was written is read.
+   */
+  /** Returns the number of times {@code value} is written as a String in {@code bytes}. */
+  private static int occurrences(byte[] bytes, String value) {
+    byte[] utf16 = value.getBytes(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN
+        ? StandardCharsets.UTF_16LE
+        : StandardCharsets.UTF_16BE);
+    int count = 0;
+    for (int i = 0; i + utf16.length <= bytes.length; i++) {
+      if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + utf16.length), utf16)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static Object roundTrip(ClassLoader loader, Parcelable value)
+      throws ReflectiveOperationException {
+    Parcel parcel = Parcel.obtain();
+    value.writeToParcel(parcel, 0);
+    byte[] bytes = parcel.marshall();
+
+    Parcel copy = Parcel.obtain();
+    copy.unmarshall(bytes, 0, bytes.length);
+    Thread thread = Thread.currentThread();
+    ClassLoader contextLoader = thread.getContextClassLoader();
+    thread.setContextClassLoader(loader);
+    try {
+      Object result = creator(loader, value.getClass().getName()).createFromParcel(copy);
+      assertThat(copy.dataPosition()).isEqualTo(bytes.length);
+      return result;
+    } finally {
+      thread.setContextClassLoader(contextLoader);
+    }
+  }
+
   private AutoValueExtension.Context createContext(TypeElement type) {
     String packageName = MoreElements.getPackage(type).getQualifiedName().toString();
     Set<ExecutableElement> allMethods = MoreElements.getLocalAndInheritedMethods(type, elements);
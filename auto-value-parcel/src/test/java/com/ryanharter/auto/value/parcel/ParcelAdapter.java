@@ -5,9 +5,10 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.Target;
 
 import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE_USE;
 import static java.lang.annotation.RetentionPolicy.SOURCE;
 
-@Target(METHOD)
+@Target({METHOD, TYPE_USE})
 @Retention(SOURCE)
 @Documented
 public @interface ParcelAdapter {
@@ -1,6 +1,8 @@
 package com.ryanharter.auto.value.parcel;
 
 import android.os.Parcel;
+import java.util.ArrayList;
+import java.util.List;
 
 public interface TypeAdapter<T> {
 
@@ -8,4 +10,18 @@ public interface TypeAdapter<T> {
 
   void toParcel(T value, Parcel dest);
 
+  default List<T> fromParcelAll(Parcel in, int count) {
+    List<T> values = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      values.add(fromParcel(in));
+    }
+    return values;
+  }
+
+  default void toParcelAll(List<T> values, Parcel dest) {
+    for (T value : values) {
+      toParcel(value, dest);
+    }
+  }
+
 }
@@ -0,0 +1,18 @@
+package com.ryanharter.auto.value.parcel.benchmarks;
+
+import android.os.Parcelable;
+import com.google.auto.value.AutoValue;
+import com.ryanharter.auto.value.parcel.ParcelAdapter;
+import java.util.Date;
+import java.util.List;
+
+@AutoValue
+abstract class Adapted implements Parcelable {
+  @ParcelAdapter(DateTypeAdapter.class) abstract Date created();
+  @ParcelAdapter(DateTypeAdapter.class) @Nullable abstract Date deleted();
+  @ParcelAdapter(DateTypeAdapter.class) abstract List<Date> updates();
+
+  static Adapted create(Date created, @Nullable Date deleted, List<Date> updates) {
+    return new AutoValue_Adapted(created, deleted, updates);
+  }
+}
@@ -0,0 +1,19 @@
+package com.ryanharter.auto.value.parcel.benchmarks;
+
+import android.os.Parcelable;
+import com.google.auto.value.AutoValue;
+import java.util.List;
+import java.util.Map;
+
+@AutoValue
+abstract class Containers implements Parcelable {
+  abstract List<String> tags();
+  abstract List<Primitives> samples();
+  abstract Map<String, String> labels();
+  abstract Map<String, Primitives> samplesByName();
+
+  static Containers create(List<String> tags, List<Primitives> samples,
+      Map<String, String> labels, Map<String, Primitives> samplesByName) {
+    return new AutoValue_Containers(tags, samples, labels, samplesByName);
+  }
+}
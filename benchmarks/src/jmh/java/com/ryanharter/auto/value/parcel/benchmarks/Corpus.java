@@ -0,0 +1,75 @@
+package com.ryanharter.auto.value.parcel.benchmarks;
+
+import android.os.Parcelable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The classes the benchmarks parcel, each with a representative value.
+ */
+public enum Corpus {
+  PRIMITIVES(AutoValue_Primitives.CREATOR) {
+    @Override Parcelable sample() {
+      return primitives(42);
+    }
+  },
+  NULLABLE_BOXES(AutoValue_NullableBoxes.CREATOR) {
+    @Override Parcelable sample() {
+      return NullableBoxes.create(42, null, 0.75, true, "nullable");
+    }
+  },
+  ENUMS(AutoValue_Enums.CREATOR) {
+    @Override Parcelable sample() {
+      return enums();
+    }
+  },
+  CONTAINERS(AutoValue_Containers.CREATOR) {
+    @Override Parcelable sample() {
+      List<String> tags = new ArrayList<>();
+      List<Primitives> samples = new ArrayList<>();
+      Map<String, String> labels = new LinkedHashMap<>();
+      Map<String, Primitives> samplesByName = new LinkedHashMap<>();
+      for (int i = 0; i < 16; i++) {
+        tags.add("tag-" + i);
+        samples.add(primitives(i));
+        labels.put("label-" + i, "value-" + i);
+        samplesByName.put("sample-" + i, primitives(i));
+      }
+      return Containers.create(tags, samples, labels, samplesByName);
+    }
+  },
+  NESTED(AutoValue_Nested.CREATOR) {
+    @Override Parcelable sample() {
+      return Nested.create(primitives(42),
+          NullableBoxes.create(null, 1_500_000_000_000L, null, false, "nested"), enums());
+    }
+  },
+  ADAPTED(AutoValue_Adapted.CREATOR) {
+    @Override Parcelable sample() {
+      return Adapted.create(new Date(1_500_000_000_000L), null,
+          Arrays.asList(new Date(1_500_000_001_000L), new Date(1_500_000_002_000L),
+              new Date(1_500_000_003_000L), new Date(1_500_000_004_000L)));
+    }
+  };
+
+  final Parcelable.Creator<? extends Parcelable> creator;
+
+  Corpus(Parcelable.Creator<? extends Parcelable> creator) {
+    this.creator = creator;
+  }
+
+  abstract Parcelable sample();
+
+  static Primitives primitives(int seed) {
+    return Primitives.create(seed, 1_500_000_000_000L + seed, seed / 3.0, seed / 7f, true,
+        seed % 2 == 0, (byte) seed, (short) (8000 + seed), (char) ('A' + seed % 26));
+  }
+
+  static Enums enums() {
+    return Enums.create(Enums.Status.ACTIVE, Enums.Status.PENDING, Enums.Status.CLOSED);
+  }
+}
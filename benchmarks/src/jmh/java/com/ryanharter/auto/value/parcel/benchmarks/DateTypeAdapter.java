@@ -0,0 +1,15 @@
+package com.ryanharter.auto.value.parcel.benchmarks;
+
+import android.os.Parcel;
+import com.ryanharter.auto.value.parcel.TypeAdapter;
+import java.util.Date;
+
+public final class DateTypeAdapter implements TypeAdapter<Date> {
+  @Override public Date fromParcel(Parcel in) {
+    return new Date(in.readLong());
+  }
+
+  @Override public void toParcel(Date value, Parcel dest) {
+    dest.writeLong(value.getTime());
+  }
+}
@@ -0,0 +1,20 @@
+package com.ryanharter.auto.value.parcel.benchmarks;
+
+import android.os.Parcelable;
+import com.google.auto.value.AutoValue;
+import com.ryanharter.auto.value.parcel.ParcelOrdinal;
+
+@AutoValue
+abstract class Enums implements Parcelable {
+  enum Status {
+    PENDING, ACTIVE, SUSPENDED, CLOSED
+  }
+
+  abstract Status status();
+  @Nullable abstract Status previousStatus();
+  @ParcelOrdinal abstract Status nextStatus();
+
+  static Enums create(Status status, @Nullable Status previousStatus, Status nextStatus) {
+    return new AutoValue_Enums(status, previousStatus, nextStatus);
+  }
+}
@@ -0,0 +1,15 @@
+package com.ryanharter.auto.value.parcel.benchmarks;
+
+import android.os.Parcelable;
+import com.google.auto.value.AutoValue;
+
+@AutoValue
+abstract class Nested implements Parcelable {
+  abstract Primitives primitives();
+  @Nullable abstract NullableBoxes boxes();
+  abstract Enums enums();
+
+  static Nested create(Primitives primitives, @Nullable NullableBoxes boxes, Enums enums) {
+    return new AutoValue_Nested(primitives, boxes, enums);
+  }
+}
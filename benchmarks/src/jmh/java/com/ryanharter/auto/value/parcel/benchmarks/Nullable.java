@@ -0,0 +1,13 @@
+package com.ryanharter.auto.value.parcel.benchmarks;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.RetentionPolicy.CLASS;
+
+@Retention(CLASS)
+@Target({METHOD, PARAMETER})
+@interface Nullable {
+}
@@ -0,0 +1,18 @@
+package com.ryanharter.auto.value.parcel.benchmarks;
+
+import android.os.Parcelable;
+import com.google.auto.value.AutoValue;
+
+@AutoValue
+abstract class NullableBoxes implements Parcelable {
+  @Nullable abstract Integer count();
+  @Nullable abstract Long timestamp();
+  @Nullable abstract Double ratio();
+  @Nullable abstract Boolean enabled();
+  @Nullable abstract String name();
+
+  static NullableBoxes create(@Nullable Integer count, @Nullable Long timestamp,
+      @Nullable Double ratio, @Nullable Boolean enabled, @Nullable String name) {
+    return new AutoValue_NullableBoxes(count, timestamp, ratio, enabled, name);
+  }
+}
@@ -0,0 +1,59 @@
+package com.ryanharter.auto.value.parcel.benchmarks;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the generated {@code writeToParcel} and {@code createFromParcel} for each class in the
+ * {@link Corpus}.  Run with {@code -prof gc} (the default in the Gradle configuration) to see the
+ * bytes allocated per operation alongside the time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ParcelBenchmark {
+
+  @Param
+  public Corpus corpus;
+
+  private Parcelable value;
+  private Parcel encodeParcel;
+  private Parcel decodeParcel;
+
+  @Setup
+  public void setUp() {
+    value = corpus.sample();
+    encodeParcel = Parcel.obtain();
+    decodeParcel = Parcel.obtain();
+    value.writeToParcel(decodeParcel, 0);
+
+    decodeParcel.setDataPosition(0);
+    Object decoded = corpus.creator.createFromParcel(decodeParcel);
+    if (!value.equals(decoded)) {
+      throw new AssertionError("Round trip of " + corpus + " gave " + decoded + ", not " + value);
+    }
+  }
+
+  @Benchmark
+  public Parcel encode() {
+    encodeParcel.setDataPosition(0);
+    encodeParcel.setDataSize(0);
+    value.writeToParcel(encodeParcel, 0);
+    return encodeParcel;
+  }
+
+  @Benchmark
+  public Object decode() {
+    decodeParcel.setDataPosition(0);
+    return corpus.creator.createFromParcel(decodeParcel);
+  }
+}
@@ -0,0 +1,23 @@
+package com.ryanharter.auto.value.parcel.benchmarks;
+
+import android.os.Parcelable;
+import com.google.auto.value.AutoValue;
+
+@AutoValue
+abstract class Primitives implements Parcelable {
+  abstract int count();
+  abstract long timestamp();
+  abstract double ratio();
+  abstract float scale();
+  abstract boolean enabled();
+  abstract boolean visible();
+  abstract byte flags();
+  abstract short port();
+  abstract char grade();
+
+  static Primitives create(int count, long timestamp, double ratio, float scale, boolean enabled,
+      boolean visible, byte flags, short port, char grade) {
+    return new AutoValue_Primitives(count, timestamp, ratio, scale, enabled, visible, flags, port,
+        grade);
+  }
+}
@@ -0,0 +1,250 @@
+package com.ryanharter.auto.value.parcel.benchmarks;
+
+import com.google.auto.value.processor.AutoValueProcessor;
+import com.ryanharter.auto.value.parcel.AutoValueParcelExtension;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Stream;
+import javax.annotation.processing.Completion;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Runs javac in process over synthesized AutoValue Parcelable classes, to see how the time spent
+ * in the extension grows with the number of classes and the number of properties per class.
+ *
+ * <p>For each combination of class count and property count this prints the wall time of the
+ * whole compilation, the time spent in annotation processing in total and per class, and the peak
+ * heap used.  Compilation stops after processing ({@code -proc:only}), so the numbers aren't
+ * dominated by javac generating bytecode for the output.
+ *
+ * <pre>
+ * ./gradlew :benchmarks:processorScalability -PscalabilityClasses=1000,5000 \
+ *     -PscalabilityProperties=5,50
+ * </pre>
+ */
+public final class ProcessorScalability {
+
+  private static final String PACKAGE = "scalability";
+
+  /** The property types the synthesized classes cycle through. */
+  private static final String[] TYPES = {
+      "int",
+      "long",
+      "String",
+      "@Nullable Integer",
+      "boolean",
+      "double",
+      "java.util.List<String>",
+      "java.util.Map<String, String>",
+      "Status",
+      "@Nullable String",
+      "NESTED",
+  };
+
+  private ProcessorScalability() {
+  }
+
+  public static void main(String[] args) throws IOException {
+    int[] classCounts = counts(args, 0, "1000,5000,10000");
+    int[] propertyCounts = counts(args, 1, "5,50,200");
+    String classpath = System.getProperty("scalability.classpath");
+    if (classpath == null) {
+      throw new IllegalStateException("Set scalability.classpath to the classpath the generated "
+          + "sources compile against, including android.jar and the adapter module.");
+    }
+
+    // One small run first, so class loading and JIT warmup aren't charged to the first result.
+    compile(100, 5, classpath);
+
+    System.out.printf(Locale.US, "%8s %10s %12s %15s %15s %12s%n",
+        "classes", "properties", "total (ms)", "processing (ms)", "per class (ms)", "heap (MB)");
+    for (int classCount : classCounts) {
+      for (int propertyCount : propertyCounts) {
+        Result result = compile(classCount, propertyCount, classpath);
+        System.out.printf(Locale.US, "%8d %10d %12d %15d %15.3f %12d%n",
+            classCount, propertyCount, result.totalMillis, result.processingMillis,
+            (double) result.processingMillis / classCount, result.peakHeapBytes >> 20);
+      }
+    }
+  }
+
+  private static int[] counts(String[] args, int index, String defaults) {
+    String value = args.length > index && !args[index].isEmpty() ? args[index] : defaults;
+    return Arrays.stream(value.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+  }
+
+  private static Result compile(int classCount, int propertyCount, String classpath)
+      throws IOException {
+    List<JavaFileObject> sources = sources(classCount, propertyCount);
+    Path output = Files.createTempDirectory("scalability");
+    try {
+      JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+      DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+      StandardJavaFileManager fileManager =
+          compiler.getStandardFileManager(diagnostics, null, null);
+      List<String> options = Arrays.asList("-proc:only", "-classpath", classpath,
+          "-s", output.toString(), "-d", output.toString());
+      JavaCompiler.CompilationTask task =
+          compiler.getTask(null, fileManager, diagnostics, options, null, sources);
+      TimedProcessor processor = new TimedProcessor(
+          new AutoValueProcessor(Collections.singletonList(new AutoValueParcelExtension())));
+      task.setProcessors(Collections.singletonList(processor));
+
+      System.gc();
+      List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP) {
+          pool.resetPeakUsage();
+          heapPools.add(pool);
+        }
+      }
+
+      long start = System.nanoTime();
+      boolean success = task.call();
+      long totalNanos = System.nanoTime() - start;
+
+      long peakHeap = 0;
+      for (MemoryPoolMXBean pool : heapPools) {
+        peakHeap += pool.getPeakUsage().getUsed();
+      }
+      fileManager.close();
+
+      if (!success) {
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+          if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+            System.err.println(diagnostic);
+          }
+        }
+        throw new IllegalStateException("Compiling " + classCount + " classes with "
+            + propertyCount + " properties failed.");
+      }
+      return new Result(totalNanos / 1_000_000, processor.nanos / 1_000_000, peakHeap);
+    } finally {
+      try (Stream<Path> files = Files.walk(output)) {
+        files.sorted(Collections.reverseOrder()).map(Path::toFile).forEach(File::delete);
+      }
+    }
+  }
+
+  private static List<JavaFileObject> sources(int classCount, int propertyCount) {
+    List<JavaFileObject> sources = new ArrayList<>(classCount + 2);
+    sources.add(source("Nullable", "package " + PACKAGE + ";\n"
+        + "public @interface Nullable {}\n"));
+    sources.add(source("Status", "package " + PACKAGE + ";\n"
+        + "public enum Status { PENDING, ACTIVE, SUSPENDED, CLOSED }\n"));
+    for (int i = 0; i < classCount; i++) {
+      StringBuilder source = new StringBuilder()
+          .append("package ").append(PACKAGE).append(";\n")
+          .append("@com.google.auto.value.AutoValue\n")
+          .append("public abstract class Model").append(i)
+          .append(" implements android.os.Parcelable {\n");
+      for (int p = 0; p < propertyCount; p++) {
+        String type = TYPES[(i + p) % TYPES.length];
+        if (type.equals("NESTED")) {
+          // Refer back to an earlier class, so type analysis sees user Parcelables too.
+          type = i == 0 ? "String" : "Model" + (i - 1);
+        }
+        source.append("  public abstract ").append(type).append(" property").append(p)
+            .append("();\n");
+      }
+      source.append("}\n");
+      sources.add(source("Model" + i, source.toString()));
+    }
+    return sources;
+  }
+
+  private static JavaFileObject source(String simpleName, String content) {
+    URI uri = URI.create("string:///" + PACKAGE + "/" + simpleName + ".java");
+    return new SimpleJavaFileObject(uri, JavaFileObject.Kind.SOURCE) {
+      @Override public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+        return content;
+      }
+
+      @Override public Writer openWriter() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private static final class Result {
+    final long totalMillis;
+    final long processingMillis;
+    final long peakHeapBytes;
+
+    Result(long totalMillis, long processingMillis, long peakHeapBytes) {
+      this.totalMillis = totalMillis;
+      this.processingMillis = processingMillis;
+      this.peakHeapBytes = peakHeapBytes;
+    }
+  }
+
+  /**
+   * Adds up the time the wrapped processor spends in {@link #init} and {@link #process}.
+   */
+  private static final class TimedProcessor implements Processor {
+    private final Processor delegate;
+    long nanos;
+
+    TimedProcessor(Processor delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override public Set<String> getSupportedOptions() {
+      return delegate.getSupportedOptions();
+    }
+
+    @Override public Set<String> getSupportedAnnotationTypes() {
+      return delegate.getSupportedAnnotationTypes();
+    }
+
+    @Override public SourceVersion getSupportedSourceVersion() {
+      return delegate.getSupportedSourceVersion();
+    }
+
+    @Override public void init(ProcessingEnvironment processingEnv) {
+      long start = System.nanoTime();
+      delegate.init(processingEnv);
+      nanos += System.nanoTime() - start;
+    }
+
+    @Override public boolean process(Set<? extends TypeElement> annotations,
+        RoundEnvironment roundEnv) {
+      long start = System.nanoTime();
+      boolean claimed = delegate.process(annotations, roundEnv);
+      nanos += System.nanoTime() - start;
+      return claimed;
+    }
+
+    @Override public Iterable<? extends Completion> getCompletions(Element element,
+        AnnotationMirror annotation, ExecutableElement member, String userText) {
+      return delegate.getCompletions(element, annotation, member, userText);
+    }
+  }
+}